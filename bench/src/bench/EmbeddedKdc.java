@@ -0,0 +1,139 @@
+package bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import javax.security.auth.Subject;
+import javax.security.auth.login.LoginContext;
+import javax.security.auth.login.LoginException;
+import org.apache.kerby.kerberos.kerb.KrbException;
+import org.apache.kerby.kerberos.kerb.server.KdcConfigKey;
+import org.apache.kerby.kerberos.kerb.server.SimpleKdcServer;
+
+/**
+ * Kerberos KDC running inside the JVM (Apache Kerby) in place of the lab
+ * KDC, so the service can be measured with no network beyond loopback.
+ *
+ * It creates the dossierbox service principal and a client principal in
+ * a keytab, and points the JDK at it: java.security.krb5.conf
+ * refers to the generated krb5.conf and java.security.auth.login.config to a
+ * JAAS configuration with keytab based "DossierBox" and "Client" entries.
+ * Kerberos reads that configuration once per JVM, so start it before any
+ * other Kerberos code runs.
+ */
+public final class EmbeddedKdc implements AutoCloseable {
+
+    public static final String REALM = "DOSSIERBOX.TEST";
+    public static final String SERVICE = "dossierbox";
+    public static final String CLIENT = "client";
+
+    private final SimpleKdcServer kdc;
+    private final File workDir;
+    private final File keytab;
+
+    private EmbeddedKdc(final SimpleKdcServer kdc, final File workDir, final File keytab) {
+        this.kdc = kdc;
+        this.workDir = workDir;
+        this.keytab = keytab;
+    }
+
+    /**
+     * Starts a KDC with the service principal and the CLIENT principal.
+     */
+    public static EmbeddedKdc start() throws IOException, KrbException {
+        return start(null);
+    }
+
+    /**
+     * Starts a KDC whose principals only have keys of the given encryption
+     * type, and a krb5.conf that only asks for it, so every session key is
+     * of that type (null for the defaults of Kerby and the JDK).
+     */
+    public static EmbeddedKdc start(final String enctype) throws IOException, KrbException {
+        final File workDir = Files.createTempDirectory("dossierbox-kdc").toFile();
+        final SimpleKdcServer kdc = new SimpleKdcServer();
+        kdc.setWorkDir(workDir);
+        kdc.setKdcHost("localhost");
+        kdc.setKdcRealm(REALM);
+        kdc.setAllowUdp(false);
+        kdc.setKdcTcpPort(freePort());
+        if (enctype != null) {
+            kdc.getKdcConfig().setString(KdcConfigKey.ENCRYPTION_TYPES, enctype);
+        }
+        kdc.init();
+        if (enctype != null) {
+            restrictEnctypes(new File(workDir, "krb5.conf"), enctype);
+        }
+        kdc.start();
+
+        final File keytab = new File(workDir, "dossierbox.keytab");
+        kdc.createAndExportPrincipals(keytab, SERVICE, CLIENT);
+
+        final File jaas = new File(workDir, "login.config");
+        try (PrintWriter writer = new PrintWriter(jaas, "UTF-8")) {
+            writer.println(entry("DossierBox", SERVICE, keytab, "storeKey=true"));
+            writer.println(entry("Client", CLIENT, keytab, ""));
+        }
+
+        System.clearProperty("java.security.krb5.realm");
+        System.clearProperty("java.security.krb5.kdc");
+        System.setProperty("java.security.krb5.conf", new File(workDir, "krb5.conf").getPath());
+        System.setProperty("java.security.auth.login.config", jaas.getPath());
+        return new EmbeddedKdc(kdc, workDir, keytab);
+    }
+
+    /**
+     * Logs in with an entry of the generated JAAS configuration
+     * ("DossierBox" or "Client").
+     */
+    public Subject login(final String entry) throws LoginException {
+        final LoginContext lc = new LoginContext(entry);
+        lc.login();
+        return lc.getSubject();
+    }
+
+    public File keytab() {
+        return keytab;
+    }
+
+    @Override
+    public void close() throws KrbException {
+        kdc.stop();
+        final File[] files = workDir.listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                file.delete();
+            }
+        }
+        workDir.delete();
+    }
+
+    private static void restrictEnctypes(final File krb5Conf, final String enctype)
+            throws IOException {
+        final String conf = new String(Files.readAllBytes(krb5Conf.toPath()), "UTF-8");
+        final String restricted = conf.replace("[libdefaults]", "[libdefaults]\n"
+                + "    default_tkt_enctypes = " + enctype + "\n"
+                + "    default_tgs_enctypes = " + enctype + "\n"
+                + "    permitted_enctypes = " + enctype);
+        Files.write(krb5Conf.toPath(), restricted.getBytes("UTF-8"));
+    }
+
+    private static String entry(final String name, final String principal,
+            final File keytab, final String extra) {
+        return name + " {\n"
+                + "  com.sun.security.auth.module.Krb5LoginModule required\n"
+                + "    useKeyTab=true doNotPrompt=true\n"
+                + "    keyTab=\"" + keytab.getPath() + "\"\n"
+                + "    principal=\"" + principal + "@" + REALM + "\"\n"
+                + "    " + extra + ";\n"
+                + "};";
+    }
+
+    static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package bench;
+
+import JGSSSecureAssociation.JGSSSecureAssociation;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import javax.security.auth.Subject;
+import org.ietf.jgss.GSSContext;
+import org.ietf.jgss.GSSCredential;
+import org.ietf.jgss.GSSException;
+import org.ietf.jgss.GSSManager;
+import org.ietf.jgss.Oid;
+
+/**
+ * Context and session plumbing shared by the benchmarks: contexts
+ * established in memory, and JGSSSecureAssociation peers served over
+ * loopback sockets or piped streams.
+ */
+final class GssSessions {
+
+    private static final int PIPE_SIZE = 256 * 1024;
+
+    /**
+     * Client side of a pair of piped streams.
+     */
+    static final class Pipe {
+        final InputStream in;
+        final OutputStream out;
+
+        Pipe(final InputStream in, final OutputStream out) {
+            this.in = in;
+            this.out = out;
+        }
+    }
+
+    private GssSessions() {
+    }
+
+    /**
+     * Creates an initiator context for the dossierbox service, requesting
+     * the same options as ClientTask.
+     */
+    static GSSContext newInitiator() throws GSSException {
+        final GSSManager manager = GSSManager.getInstance();
+        final GSSContext context = manager.createContext(
+                manager.createName(EmbeddedKdc.SERVICE, new Oid("1.2.840.113554.1.2.2.1")),
+                new Oid("1.2.840.113554.1.2.2"),
+                null,
+                GSSContext.DEFAULT_LIFETIME);
+        context.requestMutualAuth(true);
+        context.requestConf(true);
+        context.requestInteg(true);
+        return context;
+    }
+
+    static GSSContext newAcceptor() throws GSSException {
+        return GSSManager.getInstance().createContext((GSSCredential) null);
+    }
+
+    /**
+     * Establishes an initiator and an acceptor context by passing the tokens
+     * directly from one to the other, with no streams involved.
+     *
+     * @return the initiator and the acceptor, in that order
+     */
+    static GSSContext[] establish(final Subject client, final Subject service) throws Exception {
+        final GSSContext initiator = as(client, GssSessions::newInitiator);
+        final GSSContext acceptor = as(service, GssSessions::newAcceptor);
+        byte[] token = new byte[0];
+        while (!initiator.isEstablished() || !acceptor.isEstablished()) {
+            final byte[] in = token;
+            token = as(client, () -> initiator.initSecContext(in, 0, in.length));
+            if (token != null && !acceptor.isEstablished()) {
+                final byte[] out = token;
+                token = as(service, () -> acceptor.acceptSecContext(out, 0, out.length));
+            }
+            if (token == null) {
+                token = new byte[0];
+            }
+        }
+        return new GSSContext[] {initiator, acceptor};
+    }
+
+    /**
+     * Serves sessions on a loopback port as the service Subject: every
+     * connection is accepted and its messages received until the client
+     * closes, like ServerTask does.
+     */
+    static ServerSocket serveLoopback(final Subject service) throws IOException {
+        final ServerSocket server = new ServerSocket(0);
+        final Thread acceptor = new Thread(() -> {
+            while (!server.isClosed()) {
+                try {
+                    final Socket socket = server.accept();
+                    final Thread session = new Thread(() -> serve(service, socket));
+                    session.setDaemon(true);
+                    session.start();
+                } catch (final IOException ex) {
+                    return;
+                }
+            }
+        }, "loopback acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return server;
+    }
+
+    /**
+     * Connects a pair of piped streams to a thread that serves sessions on
+     * them as the service Subject, one after the other.
+     *
+     * @return the client side of the pipes
+     */
+    static Pipe servePiped(final Subject service) throws IOException {
+        final PipedInputStream clientIn = new PipedInputStream(PIPE_SIZE);
+        final PipedOutputStream serverOut = new PipedOutputStream(clientIn);
+        final PipedInputStream serverIn = new PipedInputStream(PIPE_SIZE);
+        final PipedOutputStream clientOut = new PipedOutputStream(serverIn);
+        final Thread server = new Thread(() -> {
+            while (true) {
+                serve(service, serverIn, serverOut);
+            }
+        }, "piped service");
+        server.setDaemon(true);
+        server.start();
+        return new Pipe(clientIn, clientOut);
+    }
+
+    /**
+     * The association traces every token on System.out; keep that console
+     * I/O out of the measurements.
+     */
+    static void silenceConsole() {
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(final int b) {
+            }
+
+            @Override
+            public void write(final byte[] b, final int off, final int len) {
+            }
+        }));
+    }
+
+    static <T> T as(final Subject subject, final PrivilegedExceptionAction<T> action)
+            throws Exception {
+        try {
+            return Subject.doAs(subject, action);
+        } catch (final PrivilegedActionException ex) {
+            throw ex.getException();
+        }
+    }
+
+    private static void serve(final Subject service, final Socket socket) {
+        try (Socket s = socket) {
+            serve(service, s.getInputStream(), s.getOutputStream());
+        } catch (final IOException ex) {
+            // Connection dropped by the benchmark
+        }
+    }
+
+    private static void serve(final Subject service, final InputStream in, final OutputStream out) {
+        try {
+            as(service, () -> {
+                final GSSContext context = newAcceptor();
+                final JGSSSecureAssociation jgss = new JGSSSecureAssociation(context);
+                jgss.setCompressionAllowed(true);
+                jgss.accept(in, out);
+                while (context.isEstablished() && jgss.receiveBytes() != null) {
+                }
+                context.dispose();
+                return null;
+            });
+        } catch (final Exception ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+}
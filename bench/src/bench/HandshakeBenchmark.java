@@ -0,0 +1,91 @@
+package bench;
+
+import JGSSSecureAssociation.JGSSSecureAssociation;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+import javax.security.auth.Subject;
+import org.ietf.jgss.GSSContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of establishing a context (initSecContext/acceptSecContext, with the
+ * service ticket already cached in the client Subject after warmup):
+ * in memory with no I/O, and through JGSSSecureAssociation over loopback
+ * sockets and over piped streams.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class HandshakeBenchmark {
+
+    private EmbeddedKdc kdc;
+    private Subject client;
+    private Subject service;
+    private ServerSocket loopback;
+    private GssSessions.Pipe pipe;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        GssSessions.silenceConsole();
+        kdc = EmbeddedKdc.start();
+        client = kdc.login("Client");
+        service = kdc.login("DossierBox");
+        loopback = GssSessions.serveLoopback(service);
+        pipe = GssSessions.servePiped(service);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        loopback.close();
+        kdc.close();
+    }
+
+    @Benchmark
+    public GSSContext inMemory() throws Exception {
+        final GSSContext[] contexts = GssSessions.establish(client, service);
+        contexts[1].dispose();
+        contexts[0].dispose();
+        return contexts[0];
+    }
+
+    @Benchmark
+    public boolean loopback() throws Exception {
+        return GssSessions.as(client, () -> {
+            try (Socket socket = new Socket(loopback.getInetAddress(), loopback.getLocalPort())) {
+                final GSSContext context = GssSessions.newInitiator();
+                final JGSSSecureAssociation jgss = new JGSSSecureAssociation(context);
+                jgss.init(socket.getInputStream(), socket.getOutputStream(), true, true);
+                final boolean established = context.isEstablished();
+                jgss.close();
+                return established;
+            }
+        });
+    }
+
+    @Benchmark
+    public boolean piped() throws Exception {
+        return GssSessions.as(client, () -> {
+            final GSSContext context = GssSessions.newInitiator();
+            final JGSSSecureAssociation jgss = new JGSSSecureAssociation(context);
+            jgss.init(pipe.in, pipe.out, true, true);
+            final boolean established = context.isEstablished();
+            jgss.close();
+            return established;
+        });
+    }
+}
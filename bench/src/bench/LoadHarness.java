@@ -0,0 +1,218 @@
+package bench;
+
+import JGSSSecureAssociation.JGSSSecureAssociation;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.security.PrivilegedExceptionAction;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.security.auth.Subject;
+import org.ietf.jgss.GSSContext;
+import service.ServiceLifecycle;
+import service.ServiceLogin;
+
+/**
+ * Capacity planning harness: starts an embedded KDC and the dossierbox
+ * service in this JVM (the same front end ServiceLogin would run, chosen
+ * by the threads argument and the dossierbox.* properties), then drives it
+ * with concurrent clients that behave like ClientTask: connect, establish a
+ * context, send messages over it and close.
+ *
+ * It reports handshakes and messages per second and latency percentiles
+ * for both. Run it with "ant loadtest -Dloadtest.args=...".
+ */
+public final class LoadHarness {
+
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+
+    /**
+     * Latencies measured by one client, in nanoseconds.
+     */
+    private static final class Recorder {
+        long[] handshakes = new long[64];
+        int handshakeCount;
+        long[] messages = new long[1024];
+        int messageCount;
+        int failures;
+        // Sessions refused by the admission control of the service
+        int busy;
+
+        void handshake(final long nanos) {
+            if (handshakeCount == handshakes.length) {
+                handshakes = Arrays.copyOf(handshakes, handshakeCount * 2);
+            }
+            handshakes[handshakeCount++] = nanos;
+        }
+
+        void message(final long nanos) {
+            if (messageCount == messages.length) {
+                messages = Arrays.copyOf(messages, messageCount * 2);
+            }
+            messages[messageCount++] = nanos;
+        }
+    }
+
+    private LoadHarness() {
+    }
+
+    public static void main(final String[] args) throws Exception {
+        if (args.length < 3) {
+            System.out.println("Usage: LoadHarness <clients> <sessions per client>"
+                    + " <messages per session> [<num threads|virtual> [<message size>]]");
+            return;
+        }
+        final int clients = Integer.parseInt(args[0]);
+        final int sessions = Integer.parseInt(args[1]);
+        final int messages = Integer.parseInt(args[2]);
+        final String threads = args.length > 3 ? args[3] : "10";
+        final int messageSize = args.length > 4 ? Integer.parseInt(args[4]) : 64;
+
+        final PrintStream out = System.out;
+        try (EmbeddedKdc kdc = EmbeddedKdc.start()) {
+            final Subject service = kdc.login("DossierBox");
+            final Subject client = kdc.login("Client");
+            final int port = EmbeddedKdc.freePort();
+            final ServiceLifecycle box = ServiceLogin.newService(port, threads, service);
+            startService(service, box, port);
+
+            final char[] filler = new char[messageSize];
+            Arrays.fill(filler, 'x');
+            final String message = new String(filler);
+
+            // The service and the association trace every token
+            GssSessions.silenceConsole();
+
+            final ExecutorService pool = Executors.newFixedThreadPool(clients);
+            final List<Future<Recorder>> results = new ArrayList<>();
+            final long start = System.nanoTime();
+            for (int i = 0; i < clients; i++) {
+                results.add(pool.submit(() -> GssSessions.as(client,
+                        () -> runClient(port, sessions, messages, message))));
+            }
+            final List<Recorder> recorders = new ArrayList<>();
+            for (final Future<Recorder> result : results) {
+                recorders.add(result.get());
+            }
+            final double seconds = (System.nanoTime() - start) / 1e9;
+            pool.shutdown();
+
+            report(out, clients, threads, messageSize, seconds, recorders);
+
+            // Every client has closed its sessions, so the drain is immediate
+            final long drain = System.nanoTime();
+            box.shutdown();
+            out.printf("drained in %.1f ms%n", (System.nanoTime() - drain) / 1e6);
+        }
+        System.exit(0);
+    }
+
+    static void startService(final Subject service,
+            final PrivilegedExceptionAction<Void> box, final int port) throws InterruptedException {
+        final Thread thread = new Thread(() -> {
+            try {
+                Subject.doAsPrivileged(service, box, null);
+            } catch (final Exception ex) {
+                ex.printStackTrace();
+            }
+        }, "dossierbox");
+        thread.setDaemon(true);
+        thread.start();
+        // Wait until the service listens
+        while (true) {
+            try (Socket probe = new Socket(InetAddress.getLoopbackAddress(), port)) {
+                return;
+            } catch (final java.io.IOException ex) {
+                Thread.sleep(20);
+            }
+        }
+    }
+
+    private static Recorder runClient(final int port, final int sessions, final int messages,
+            final String message) throws Exception {
+        final Recorder recorder = new Recorder();
+        for (int s = 0; s < sessions; s++) {
+            final long connect = System.nanoTime();
+            try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+                final GSSContext context = GssSessions.newInitiator();
+                final JGSSSecureAssociation jgss = new JGSSSecureAssociation(context);
+                jgss.init(socket.getInputStream(), socket.getOutputStream(), true, true);
+                if (!context.isEstablished()) {
+                    if (jgss.busyRetryAfter() >= 0) {
+                        recorder.busy++;
+                    } else {
+                        recorder.failures++;
+                    }
+                    continue;
+                }
+                recorder.handshake(System.nanoTime() - connect);
+                for (int m = 0; m < messages; m++) {
+                    final long sent = System.nanoTime();
+                    if (jgss.send(message, true)) {
+                        recorder.message(System.nanoTime() - sent);
+                    } else {
+                        recorder.failures++;
+                        break;
+                    }
+                }
+                jgss.close();
+            }
+        }
+        return recorder;
+    }
+
+    private static void report(final PrintStream out, final int clients, final String threads,
+            final int messageSize, final double seconds, final List<Recorder> recorders) {
+        int handshakeCount = 0;
+        int messageCount = 0;
+        int failures = 0;
+        int busy = 0;
+        for (final Recorder recorder : recorders) {
+            handshakeCount += recorder.handshakeCount;
+            messageCount += recorder.messageCount;
+            failures += recorder.failures;
+            busy += recorder.busy;
+        }
+        final long[] handshakes = new long[handshakeCount];
+        final long[] messages = new long[messageCount];
+        int h = 0;
+        int m = 0;
+        for (final Recorder recorder : recorders) {
+            System.arraycopy(recorder.handshakes, 0, handshakes, h, recorder.handshakeCount);
+            System.arraycopy(recorder.messages, 0, messages, m, recorder.messageCount);
+            h += recorder.handshakeCount;
+            m += recorder.messageCount;
+        }
+
+        out.printf(Locale.ROOT, "clients=%d threads=%s engine=%s message size=%d%n",
+                clients, threads, System.getProperty("dossierbox.engine", "blocking"), messageSize);
+        out.printf(Locale.ROOT, "elapsed %.2f s, %d failures, %d refused busy%n",
+                seconds, failures, busy);
+        out.printf(Locale.ROOT, "handshakes: %d (%.1f/s)%n", handshakeCount, handshakeCount / seconds);
+        out.printf(Locale.ROOT, "messages:   %d (%.1f/s)%n", messageCount, messageCount / seconds);
+        printLatencies(out, "handshake", handshakes);
+        printLatencies(out, "message", messages);
+    }
+
+    private static void printLatencies(final PrintStream out, final String name, final long[] nanos) {
+        if (nanos.length == 0) {
+            return;
+        }
+        Arrays.sort(nanos);
+        final StringBuilder line = new StringBuilder(String.format(Locale.ROOT, "%-9s latency ms:", name));
+        for (final double percentile : PERCENTILES) {
+            final int index = (int) Math.ceil(percentile / 100 * nanos.length) - 1;
+            line.append(String.format(Locale.ROOT, " p%s=%.3f",
+                    percentile == Math.rint(percentile) ? String.valueOf((int) percentile)
+                            : String.valueOf(percentile),
+                    nanos[Math.max(index, 0)] / 1e6));
+        }
+        line.append(String.format(Locale.ROOT, " max=%.3f", nanos[nanos.length - 1] / 1e6));
+        out.println(line);
+    }
+}
@@ -0,0 +1,215 @@
+package bench;
+
+import JGSSSecureAssociation.JGSSSecureAssociation;
+import JGSSSecureAssociation.PipelinedSender;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import javax.security.auth.Subject;
+import org.ietf.jgss.GSSContext;
+import org.ietf.jgss.MessageProp;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Per-message cost on an established context, by payload size and with
+ * confidentiality on or off: the bare wrap/unwrap and getMIC/verifyMIC
+ * calls, and a whole send() (wrap, unwrap, getMIC, verifyMIC and the round
+ * trip) through JGSSSecureAssociation over loopback and piped streams,
+ * and a sendWithMIC() over loopback (getMIC and verifyMIC of the message
+ * sent in clear, and of its range ack), which ignores confidentiality.
+ * The pipelined ones send BATCH messages at a time through a
+ * PipelinedSender over loopback, each acknowledged with its own MIC or, if
+ * windowed, in ranges; their score is per message. sendDeflatedLoopback
+ * sends a text payload of the same size, of dossier-like lines, over a
+ * session that negotiated compression (see requestCompression()); wrap
+ * costs the same whatever the bytes, so sendLoopback is its baseline.
+ *
+ * The in-memory calls reuse the same token, so the acceptor flags them as
+ * duplicates; that only sets supplementary status in the MessageProp.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class MessageBenchmark {
+
+    private static final int BATCH = 64;
+    // Smallest message deflated by sendDeflatedLoopback
+    private static final int COMPRESSION_THRESHOLD = 1024;
+
+    @Param({"64", "1024", "16384", "65536"})
+    public int payloadSize;
+
+    @Param({"true", "false"})
+    public boolean confidentiality;
+
+    private EmbeddedKdc kdc;
+    private GSSContext initiator;
+    private GSSContext acceptor;
+    private byte[] payload;
+    private byte[] wrapToken;
+    private byte[] micToken;
+    private String message;
+    private Socket socket;
+    private JGSSSecureAssociation loopback;
+    private JGSSSecureAssociation piped;
+    private Socket pipelinedSocket;
+    private JGSSSecureAssociation pipelinedAssociation;
+    private PipelinedSender pipelined;
+    private String dossier;
+    private Socket deflatedSocket;
+    private JGSSSecureAssociation deflated;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        GssSessions.silenceConsole();
+        kdc = EmbeddedKdc.start();
+        final Subject client = kdc.login("Client");
+        final Subject service = kdc.login("DossierBox");
+
+        final GSSContext[] contexts = GssSessions.establish(client, service);
+        initiator = contexts[0];
+        acceptor = contexts[1];
+        payload = new byte[payloadSize];
+        Arrays.fill(payload, (byte) 'x');
+        message = new String(payload, "US-ASCII");
+        wrapToken = initiator.wrap(payload, 0, payload.length, new MessageProp(0, confidentiality));
+        micToken = initiator.getMIC(payload, 0, payload.length, new MessageProp(0, false));
+
+        final ServerSocket server = GssSessions.serveLoopback(service);
+        socket = new Socket(server.getInetAddress(), server.getLocalPort());
+        loopback = GssSessions.as(client, () -> {
+            final JGSSSecureAssociation jgss = new JGSSSecureAssociation(GssSessions.newInitiator());
+            jgss.init(socket.getInputStream(), socket.getOutputStream(), true, confidentiality);
+            return jgss;
+        });
+        final GssSessions.Pipe pipe = GssSessions.servePiped(service);
+        piped = GssSessions.as(client, () -> {
+            final JGSSSecureAssociation jgss = new JGSSSecureAssociation(GssSessions.newInitiator());
+            jgss.init(pipe.in, pipe.out, true, confidentiality);
+            return jgss;
+        });
+        pipelinedSocket = new Socket(server.getInetAddress(), server.getLocalPort());
+        pipelinedAssociation = GssSessions.as(client, () -> {
+            final JGSSSecureAssociation jgss = new JGSSSecureAssociation(GssSessions.newInitiator());
+            jgss.init(pipelinedSocket.getInputStream(), pipelinedSocket.getOutputStream(),
+                    true, confidentiality);
+            return jgss;
+        });
+        pipelined = pipelinedAssociation.pipelined(BATCH);
+
+        final StringBuilder text = new StringBuilder(payloadSize + 100);
+        for (int i = 0; text.length() < payloadSize; i++) {
+            text.append("Expediente ").append(1000 + i * 7919 % 9000)
+                    .append(": titular ").append(i % 3 == 0 ? "Garcia Lopez" : "Etxeberria Goni")
+                    .append(", estado ").append(i % 5 == 0 ? "RESUELTO" : "PENDIENTE")
+                    .append(", registrado el ").append(1 + i % 28).append("/03/2024\n");
+        }
+        dossier = text.substring(0, payloadSize);
+        deflatedSocket = new Socket(server.getInetAddress(), server.getLocalPort());
+        deflated = GssSessions.as(client, () -> {
+            final JGSSSecureAssociation jgss = new JGSSSecureAssociation(GssSessions.newInitiator());
+            jgss.init(deflatedSocket.getInputStream(), deflatedSocket.getOutputStream(),
+                    true, confidentiality);
+            if (!jgss.requestCompression(COMPRESSION_THRESHOLD)) {
+                throw new IllegalStateException("Compression refused");
+            }
+            return jgss;
+        });
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        loopback.close();
+        piped.close();
+        pipelined.close();
+        pipelinedAssociation.close();
+        deflated.close();
+        socket.close();
+        pipelinedSocket.close();
+        deflatedSocket.close();
+        initiator.dispose();
+        acceptor.dispose();
+        kdc.close();
+    }
+
+    @Benchmark
+    public byte[] wrap() throws Exception {
+        return initiator.wrap(payload, 0, payload.length, new MessageProp(0, confidentiality));
+    }
+
+    @Benchmark
+    public byte[] unwrap() throws Exception {
+        return acceptor.unwrap(wrapToken, 0, wrapToken.length, new MessageProp(0, false));
+    }
+
+    @Benchmark
+    public byte[] getMIC() throws Exception {
+        return initiator.getMIC(payload, 0, payload.length, new MessageProp(0, false));
+    }
+
+    @Benchmark
+    public void verifyMIC() throws Exception {
+        acceptor.verifyMIC(micToken, 0, micToken.length,
+                payload, 0, payload.length, new MessageProp(0, false));
+    }
+
+    @Benchmark
+    public boolean sendLoopback() {
+        return loopback.send(message, confidentiality);
+    }
+
+    @Benchmark
+    public boolean sendWithMICLoopback() {
+        return loopback.sendWithMIC(message);
+    }
+
+    @Benchmark
+    public boolean sendDeflatedLoopback() {
+        return deflated.send(dossier, confidentiality);
+    }
+
+    @Benchmark
+    public boolean sendPiped() {
+        return piped.send(message, confidentiality);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void pipelinedLoopback() {
+        sendBatch(false);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void windowedLoopback() {
+        sendBatch(true);
+    }
+
+    private void sendBatch(final boolean windowed) {
+        final CompletableFuture<?>[] acks = new CompletableFuture<?>[BATCH];
+        for (int i = 0; i < BATCH; i++) {
+            acks[i] = windowed
+                    ? pipelined.sendWindowed(message, confidentiality)
+                    : pipelined.send(message, confidentiality);
+        }
+        CompletableFuture.allOf(acks).join();
+    }
+}
@@ -0,0 +1,182 @@
+package bench;
+
+import JGSSSecureAssociation.JGSSSecureAssociation;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Locale;
+import javax.security.auth.Subject;
+import service.ServiceLifecycle;
+import service.ServiceLogin;
+
+/**
+ * Round trips of JGSSSecureAssociation.sendStream() through the real
+ * dossierbox service (the front end chosen by the threads argument and
+ * the dossierbox.* properties, as in LoadHarness): streams of several
+ * sizes between the messages of one session, and streams with a chunk
+ * replayed or dropped on the way, which the service must answer by
+ * closing the session. Prints a line per case and exits with status 1 if
+ * any failed. Run it with "ant streamcheck".
+ */
+public final class StreamRoundTrip {
+
+    // First byte of the frames of the chunks of a stream
+    private static final byte STREAM_CHUNK = (byte) 0xFD;
+
+    private enum Tamper { NONE, REPLAY, DROP }
+
+    private StreamRoundTrip() {
+    }
+
+    public static void main(final String[] args) throws Exception {
+        final String threads = args.length > 0 ? args[0] : "10";
+        final int chunk = JGSSSecureAssociation.STREAM_CHUNK_SIZE;
+
+        final PrintStream out = System.out;
+        int failures = 0;
+        try (EmbeddedKdc kdc = EmbeddedKdc.start()) {
+            final Subject service = kdc.login("DossierBox");
+            final Subject client = kdc.login("Client");
+            final int port = EmbeddedKdc.freePort();
+            final ServiceLifecycle box = ServiceLogin.newService(port, threads, service);
+            LoadHarness.startService(service, box, port);
+
+            // The service and the association trace every token
+            GssSessions.silenceConsole();
+
+            out.printf(Locale.ROOT, "threads=%s engine=%s%n",
+                    threads, System.getProperty("dossierbox.engine", "blocking"));
+            for (final int size : new int[] {0, 1, chunk - 1, chunk, 3 * chunk + 17}) {
+                failures += check(out, client, port, size, Tamper.NONE);
+            }
+            failures += check(out, client, port, 3 * chunk, Tamper.REPLAY);
+            failures += check(out, client, port, 3 * chunk, Tamper.DROP);
+            box.shutdown();
+        }
+        out.printf(Locale.ROOT, "%d failures%n", failures);
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    /**
+     * Sends a message, a stream of size bytes and another message over one
+     * session, through a Relay if the stream is to be tampered with.
+     *
+     * @return 1 if the service did not behave as expected, 0 otherwise
+     */
+    private static int check(final PrintStream out, final Subject client, final int port,
+            final int size, final Tamper tamper) throws Exception {
+        final boolean passed = GssSessions.as(client, () -> {
+            try (Relay relay = tamper == Tamper.NONE ? null : new Relay(port, tamper);
+                    Socket socket = new Socket(InetAddress.getLoopbackAddress(),
+                            relay == null ? port : relay.port())) {
+                final JGSSSecureAssociation jgss = new JGSSSecureAssociation(
+                        GssSessions.newInitiator());
+                jgss.init(socket.getInputStream(), socket.getOutputStream(), true, true);
+                if (!jgss.isEstablished()) {
+                    return false;
+                }
+                final boolean before = jgss.send("before", true);
+                final long sent = jgss.sendStream(new ByteArrayInputStream(payload(size)), true);
+                if (tamper != Tamper.NONE) {
+                    // The service closes the session instead of acknowledging
+                    return before && sent < 0 && !jgss.isOpen();
+                }
+                final boolean after = jgss.send("after", true);
+                jgss.close();
+                return before && sent == size && after;
+            }
+        });
+        out.printf(Locale.ROOT, "%-6s %8d bytes: %s%n", tamper, size, passed ? "ok" : "FAILED");
+        return passed ? 0 : 1;
+    }
+
+    /**
+     * @return size bytes starting with four zeros, the request id of the
+     *         control requests, which a service taking chunks for messages
+     *         would obey
+     */
+    private static byte[] payload(final int size) {
+        final byte[] payload = new byte[size];
+        for (int i = 4; i < size; i++) {
+            payload[i] = (byte) (i * 31);
+        }
+        return payload;
+    }
+
+    /**
+     * Forwards one session to the service, replaying or dropping the first
+     * chunk of a stream that the client sends.
+     */
+    private static final class Relay implements AutoCloseable {
+
+        private final ServerSocket server;
+        private final int servicePort;
+        private final Tamper tamper;
+
+        Relay(final int servicePort, final Tamper tamper) throws IOException {
+            this.server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+            this.servicePort = servicePort;
+            this.tamper = tamper;
+            final Thread thread = new Thread(this::relay, "relay");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        int port() {
+            return server.getLocalPort();
+        }
+
+        private void relay() {
+            try (Socket client = server.accept();
+                    Socket service = new Socket(InetAddress.getLoopbackAddress(), servicePort)) {
+                final Thread back = new Thread(() -> copy(service, client), "relay-back");
+                back.setDaemon(true);
+                back.start();
+                final DataInputStream in = new DataInputStream(client.getInputStream());
+                final DataOutputStream to = new DataOutputStream(service.getOutputStream());
+                boolean tampered = false;
+                while (true) {
+                    final int length = in.readInt();
+                    final byte[] token = new byte[Math.max(length, 0)];
+                    in.readFully(token);
+                    final boolean first = !tampered && length > 0 && token[0] == STREAM_CHUNK;
+                    tampered |= first;
+                    final int copies = !first ? 1 : tamper == Tamper.REPLAY ? 2 : 0;
+                    for (int i = 0; i < copies; i++) {
+                        to.writeInt(length);
+                        to.write(token);
+                    }
+                    to.flush();
+                }
+            } catch (final IOException ex) {
+                // Either end closed the session
+            }
+        }
+
+        private static void copy(final Socket from, final Socket to) {
+            final byte[] buffer = new byte[8192];
+            try (InputStream in = from.getInputStream()) {
+                final OutputStream out = to.getOutputStream();
+                int n;
+                while ((n = in.read(buffer)) >= 0) {
+                    out.write(buffer, 0, n);
+                    out.flush();
+                }
+            } catch (final IOException ex) {
+                // Either end closed the session
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            server.close();
+        }
+    }
+}
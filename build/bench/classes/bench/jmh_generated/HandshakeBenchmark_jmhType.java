@@ -0,0 +1,4 @@
+package bench.jmh_generated;
+public class HandshakeBenchmark_jmhType extends HandshakeBenchmark_jmhType_B3 {
+}
+
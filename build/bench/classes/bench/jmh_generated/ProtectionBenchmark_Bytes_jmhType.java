@@ -0,0 +1,4 @@
+package bench.jmh_generated;
+public class ProtectionBenchmark_Bytes_jmhType extends ProtectionBenchmark_Bytes_jmhType_B3 {
+}
+
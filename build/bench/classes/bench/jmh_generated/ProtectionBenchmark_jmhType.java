@@ -0,0 +1,4 @@
+package bench.jmh_generated;
+public class ProtectionBenchmark_jmhType extends ProtectionBenchmark_jmhType_B3 {
+}
+
@@ -0,0 +1,134 @@
+package JGSSSecureAssociation;
+
+import org.ietf.jgss.GSSException;
+
+/**
+ * Finds the ciphertext of the authenticator in the Kerberos AP-REQ of a
+ * first context establishment token, which is what a ReplayCache keys on.
+ *
+ * The rest of the token can change without the mechanism noticing: the
+ * GSS framing, the ap-options, the etype and kvno fields and the DER
+ * encoding of every length are outside the encryption of the
+ * authenticator, so the same authenticator can come in many different
+ * tokens. Its ciphertext can not change, since Kerberos checks it before
+ * decrypting it; the replay caches of the JDK and of MIT key on it too.
+ *
+ *   InitialContextToken ::= [APPLICATION 0] { thisMech OID, TOK_ID, AP-REQ }
+ *   AP-REQ ::= [APPLICATION 14] SEQUENCE { ..., authenticator [4] EncryptedData }
+ *   EncryptedData ::= SEQUENCE { etype [0], kvno [1] OPTIONAL, cipher [2] OCTET STRING }
+ */
+final class ApRequest {
+
+    private static final int INITIAL_CONTEXT_TOKEN = 0x60;
+    private static final int OBJECT_IDENTIFIER = 0x06;
+    private static final int AP_REQ = 0x6E;
+    private static final int SEQUENCE = 0x30;
+    private static final int OCTET_STRING = 0x04;
+    // Context tags of the authenticator in the AP-REQ and of the cipher in
+    // the EncryptedData
+    private static final int AUTHENTICATOR = 0xA4;
+    private static final int CIPHER = 0xA2;
+    // Contents of the OID 1.2.840.113554.1.2.2
+    private static final byte[] KRB5 = {
+        0x2A, (byte) 0x86, 0x48, (byte) 0x86, (byte) 0xF7, 0x12, 0x01, 0x02, 0x02};
+    private static final byte[] TOK_ID_AP_REQ = {0x01, 0x00};
+
+    private final byte[] token;
+    private int position;
+
+    private ApRequest(final byte[] token, final int offset) {
+        this.token = token;
+        this.position = offset;
+    }
+
+    /**
+     * @return the offset and the length of the ciphertext of the
+     *         authenticator, or null if the token is not a Kerberos one
+     * @throws GSSException DEFECTIVE_TOKEN if it is a Kerberos token but
+     *                      not a well formed AP-REQ
+     */
+    static int[] authenticator(final byte[] token, final int offset, final int length)
+            throws GSSException {
+        final ApRequest der = new ApRequest(token, offset);
+        final int end = offset + length;
+        final int framingEnd = der.enter(INITIAL_CONTEXT_TOKEN, end);
+        final int oidEnd = der.enter(OBJECT_IDENTIFIER, framingEnd);
+        if (oidEnd - der.position != KRB5.length || !der.matches(KRB5, oidEnd)) {
+            return null;
+        }
+        der.position = oidEnd;
+        if (!der.matches(TOK_ID_AP_REQ, framingEnd)) {
+            throw new GSSException(GSSException.DEFECTIVE_TOKEN);
+        }
+        der.position += TOK_ID_AP_REQ.length;
+        final int apReqEnd = der.enter(AP_REQ, framingEnd);
+        final int fieldsEnd = der.enter(SEQUENCE, apReqEnd);
+        final int authenticatorEnd = der.find(AUTHENTICATOR, fieldsEnd);
+        final int encryptedEnd = der.enter(SEQUENCE, authenticatorEnd);
+        final int cipherEnd = der.find(CIPHER, encryptedEnd);
+        final int octetsEnd = der.enter(OCTET_STRING, cipherEnd);
+        return new int[] {der.position, octetsEnd - der.position};
+    }
+
+    /**
+     * Enters the element at the position, which must have the tag and end
+     * by limit.
+     *
+     * @return the end of its contents, at whose start the position is left
+     */
+    private int enter(final int tag, final int limit) throws GSSException {
+        if (position >= limit || (token[position] & 0xFF) != tag) {
+            throw new GSSException(GSSException.DEFECTIVE_TOKEN);
+        }
+        position++;
+        final int length = length(limit);
+        if (length > limit - position) {
+            throw new GSSException(GSSException.DEFECTIVE_TOKEN);
+        }
+        return position + length;
+    }
+
+    /**
+     * Skips the elements before the one with the tag, and enters it.
+     */
+    private int find(final int tag, final int limit) throws GSSException {
+        while (position < limit && (token[position] & 0xFF) != tag) {
+            position++;
+            final int length = length(limit);
+            position += length;
+        }
+        return enter(tag, limit);
+    }
+
+    private int length(final int limit) throws GSSException {
+        if (position >= limit) {
+            throw new GSSException(GSSException.DEFECTIVE_TOKEN);
+        }
+        final int first = token[position++] & 0xFF;
+        if (first < 0x80) {
+            return first;
+        }
+        // Long form: tokens stay far below 2^24 bytes
+        final int bytes = first & 0x7F;
+        if (bytes == 0 || bytes > 3 || bytes > limit - position) {
+            throw new GSSException(GSSException.DEFECTIVE_TOKEN);
+        }
+        int length = 0;
+        for (int i = 0; i < bytes; i++) {
+            length = (length << 8) | (token[position++] & 0xFF);
+        }
+        return length;
+    }
+
+    private boolean matches(final byte[] expected, final int limit) {
+        if (limit - position < expected.length) {
+            return false;
+        }
+        for (int i = 0; i < expected.length; i++) {
+            if (token[position + i] != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
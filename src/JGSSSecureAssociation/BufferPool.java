@@ -0,0 +1,56 @@
+package JGSSSecureAssociation;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Buffers of BUFFER_SIZE bytes shared by the frame codecs of every session,
+ * so reading and writing frames does not allocate once the pool is warm.
+ *
+ * A codec takes a buffer only while a frame is being written or while
+ * bytes of the input are pending, so idle sessions hold none. At most
+ * maxRetained buffers are kept; the rest are left to the garbage collector.
+ */
+final class BufferPool {
+
+    /**
+     * Size of every pooled buffer: a stream chunk token plus its header.
+     */
+    static final int BUFFER_SIZE = JGSSSecureAssociation.STREAM_CHUNK_SIZE + 2048;
+
+    static final BufferPool DIRECT = new BufferPool(true, 256);
+    static final BufferPool HEAP = new BufferPool(false, 256);
+
+    private final boolean direct;
+    private final int maxRetained;
+    private final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger retained = new AtomicInteger();
+
+    private BufferPool(final boolean direct, final int maxRetained) {
+        this.direct = direct;
+        this.maxRetained = maxRetained;
+    }
+
+    /**
+     * @return a cleared buffer of BUFFER_SIZE bytes
+     */
+    ByteBuffer acquire() {
+        final ByteBuffer buffer = buffers.poll();
+        if (buffer == null) {
+            return direct ? ByteBuffer.allocateDirect(BUFFER_SIZE) : ByteBuffer.allocate(BUFFER_SIZE);
+        }
+        retained.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    void release(final ByteBuffer buffer) {
+        if (retained.incrementAndGet() <= maxRetained) {
+            buffers.offer(buffer);
+        } else {
+            retained.decrementAndGet();
+        }
+    }
+}
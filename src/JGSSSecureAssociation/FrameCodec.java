@@ -0,0 +1,379 @@
+package JGSSSecureAssociation;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SelectableChannel;
+
+/**
+ * Reads and writes the 4-byte length-prefixed frames of a session.
+ *
+ * Input is read ahead into a pooled buffer, so a header and its token
+ * usually come in with one read, and tokens are copied from there into an
+ * array reused from frame to frame. Every frame is written with a single
+ * write: a gathering write of the header and the token over a channel, or
+ * one write of a pooled buffer holding both over a stream. Writing the
+ * header and the token separately, as DataOutputStream did, let Nagle's
+ * algorithm hold the token back until the peer acknowledged the header.
+ */
+abstract class FrameCodec {
+
+    private static final byte[] EMPTY = new byte[0];
+
+    // Header plus the longest prefix given to writeFrame()
+    private static final int HEADER_SIZE = 4 + JGSSSecureAssociation.REQUEST_ID_SIZE;
+
+    final BufferPool pool;
+    // Bytes read ahead from the input, in read mode; null when there are none
+    private ByteBuffer input;
+    // Array reused for frames of up to BUFFER_SIZE bytes
+    private byte[] retained = EMPTY;
+    private byte[] frame = EMPTY;
+    // System.nanoTime() of the first bytes of the frame being read (0
+    // between frames) and of the end of the last frame read, for the
+    // read and idle deadlines of the acceptor
+    private volatile long frameStarted;
+    private volatile long lastFrame = System.nanoTime();
+
+    private FrameCodec(final BufferPool pool) {
+        this.pool = pool;
+    }
+
+    static FrameCodec forStreams(final InputStream in, final OutputStream out) {
+        return new StreamCodec(in, out);
+    }
+
+    /**
+     * @param channel a channel in blocking mode
+     */
+    static FrameCodec forChannel(final ByteChannel channel) {
+        return new ChannelCodec(channel);
+    }
+
+    /**
+     * Reads the next frame. Headers above maxFrameSize are refused before
+     * anything is allocated or read for the token.
+     *
+     * @return the length of the token, which is at the start of frame()
+     *         until the next call, or -1 if the peer sent the close frame
+     * @throws FrameTooLargeException if the header is over maxFrameSize
+     * @throws ServiceBusyException if the peer sent the busy frame
+     */
+    final int readFrame(final int maxFrameSize) throws IOException {
+        require(4);
+        final int length = input.getInt();
+        Metrics.FRAMES_IN.increment();
+        if (length == JGSSSecureAssociation.CLOSE_FRAME) {
+            Metrics.BYTES_IN.add(4);
+            releaseDrainedInput();
+            frameDone();
+            return -1;
+        }
+        if (length == JGSSSecureAssociation.BUSY_FRAME) {
+            require(4);
+            final int retryAfter = input.getInt();
+            Metrics.BYTES_IN.add(8);
+            releaseDrainedInput();
+            throw new ServiceBusyException(retryAfter);
+        }
+        if (length < 0) {
+            throw new IOException("Invalid frame size " + length);
+        }
+        if (length > maxFrameSize) {
+            throw new FrameTooLargeException(length, maxFrameSize);
+        }
+        if (length <= retained.length) {
+            frame = retained;
+        } else if (length <= BufferPool.BUFFER_SIZE) {
+            retained = new byte[Math.min(Math.max(length, retained.length * 2),
+                    BufferPool.BUFFER_SIZE)];
+            frame = retained;
+        } else {
+            frame = new byte[length];
+        }
+        int copied = 0;
+        while (copied < length) {
+            if (!input.hasRemaining()) {
+                readMore();
+            }
+            final int n = Math.min(input.remaining(), length - copied);
+            input.get(frame, copied, n);
+            copied += n;
+        }
+        Metrics.BYTES_IN.add(4 + length);
+        releaseDrainedInput();
+        frameDone();
+        return length;
+    }
+
+    /**
+     * @return the System.nanoTime() at which the first bytes of the frame
+     *         being read arrived, or 0 if no frame is partly read
+     */
+    final long frameStartedAt() {
+        return frameStarted;
+    }
+
+    /**
+     * @return the System.nanoTime() at which the last frame was read, or
+     *         the codec created if none was
+     */
+    final long lastFrameAt() {
+        return lastFrame;
+    }
+
+    private void frameDone() {
+        final long now = System.nanoTime();
+        lastFrame = now;
+        // Bytes read ahead already belong to the next frame
+        frameStarted = input != null ? now : 0;
+    }
+
+    /**
+     * @return true if bytes read ahead are waiting in the input buffer, so
+     *         the next readFrame() may not need to wait for the peer
+     */
+    final boolean hasBufferedInput() {
+        return input != null;
+    }
+
+    /**
+     * Reads, without blocking, whatever the peer sent since the last frame.
+     * Between messages the only frame the peer may send is the close frame.
+     *
+     * @return true if the peer sent the close frame or closed the
+     *         connection (over streams, only the close frame is seen)
+     */
+    final boolean peerClosed() throws IOException {
+        if (input == null) {
+            input = pool.acquire();
+            input.flip();
+        }
+        input.compact();
+        final int n;
+        try {
+            n = readAvailable(input);
+        } finally {
+            input.flip();
+        }
+        final boolean closed = n < 0 || input.remaining() >= 4
+                && input.getInt(input.position()) == JGSSSecureAssociation.CLOSE_FRAME;
+        releaseDrainedInput();
+        return closed;
+    }
+
+    /**
+     * @return the array holding the token of the last frame read
+     */
+    final byte[] frame() {
+        return frame;
+    }
+
+    final void writeFrame(final byte[] token) throws IOException {
+        writeFrame(EMPTY, 0, token, 0, token.length);
+    }
+
+    final void writeClose() throws IOException {
+        writeFrame(EMPTY, 0, EMPTY, 0, 0);
+    }
+
+    /**
+     * Writes one frame whose token is the first prefixLength bytes of
+     * prefix (at most REQUEST_ID_SIZE) followed by length bytes of token,
+     * without concatenating them first.
+     */
+    final void writeFrame(final byte[] prefix, final int prefixLength,
+            final byte[] token, final int offset, final int length) throws IOException {
+        write(prefix, prefixLength, token, offset, length);
+        Metrics.FRAMES_OUT.increment();
+        Metrics.BYTES_OUT.add(4 + prefixLength + length);
+    }
+
+    abstract void write(byte[] prefix, int prefixLength,
+            byte[] token, int offset, int length) throws IOException;
+
+    /**
+     * Reads at least one byte into the buffer, blocking if needed.
+     *
+     * @return the number of bytes read, or -1 at the end of the input
+     */
+    abstract int read(ByteBuffer buffer) throws IOException;
+
+    /**
+     * Reads into the buffer the bytes that arrived, without blocking.
+     *
+     * @return the number of bytes read, or -1 at the end of the input
+     */
+    abstract int readAvailable(ByteBuffer buffer) throws IOException;
+
+    private void require(final int n) throws IOException {
+        if (input == null) {
+            input = pool.acquire();
+            input.flip();
+        }
+        while (input.remaining() < n) {
+            readMore();
+        }
+    }
+
+    private void readMore() throws IOException {
+        input.compact();
+        final int n = read(input);
+        input.flip();
+        if (n < 0) {
+            throw new EOFException("Connection closed by the peer");
+        }
+        if (frameStarted == 0) {
+            frameStarted = System.nanoTime();
+        }
+    }
+
+    // Idle sessions keep no input buffer
+    private void releaseDrainedInput() {
+        if (!input.hasRemaining()) {
+            pool.release(input);
+            input = null;
+        }
+    }
+
+    /**
+     * Frames over a pair of streams, through pooled heap buffers.
+     */
+    private static final class StreamCodec extends FrameCodec {
+
+        private final InputStream in;
+        private final OutputStream out;
+
+        StreamCodec(final InputStream in, final OutputStream out) {
+            super(BufferPool.HEAP);
+            this.in = in;
+            this.out = out;
+        }
+
+        @Override
+        int read(final ByteBuffer buffer) throws IOException {
+            final int n = in.read(buffer.array(), buffer.arrayOffset() + buffer.position(),
+                    buffer.remaining());
+            if (n > 0) {
+                buffer.position(buffer.position() + n);
+            }
+            return n;
+        }
+
+        @Override
+        int readAvailable(final ByteBuffer buffer) throws IOException {
+            final int available = Math.min(in.available(), buffer.remaining());
+            if (available <= 0) {
+                return 0;
+            }
+            final int n = in.read(buffer.array(), buffer.arrayOffset() + buffer.position(),
+                    available);
+            if (n > 0) {
+                buffer.position(buffer.position() + n);
+            }
+            return n;
+        }
+
+        @Override
+        void write(final byte[] prefix, final int prefixLength,
+                final byte[] token, final int offset, final int length) throws IOException {
+            final ByteBuffer buffer = pool.acquire();
+            try {
+                buffer.putInt(prefixLength + length);
+                buffer.put(prefix, 0, prefixLength);
+                int copied = 0;
+                while (true) {
+                    final int n = Math.min(buffer.remaining(), length - copied);
+                    buffer.put(token, offset + copied, n);
+                    copied += n;
+                    out.write(buffer.array(), buffer.arrayOffset(), buffer.position());
+                    if (copied == length) {
+                        break;
+                    }
+                    buffer.clear();
+                }
+                out.flush();
+            } finally {
+                pool.release(buffer);
+            }
+        }
+    }
+
+    /**
+     * Frames over a blocking channel, through pooled direct buffers that
+     * the channel reads and writes without an intermediate copy.
+     */
+    private static final class ChannelCodec extends FrameCodec {
+
+        private final ByteChannel channel;
+        // Null if the channel can not write several buffers at once
+        private final GatheringByteChannel gathering;
+        private final ByteBuffer header = ByteBuffer.allocateDirect(HEADER_SIZE);
+        private final ByteBuffer[] headerAndToken = new ByteBuffer[2];
+
+        ChannelCodec(final ByteChannel channel) {
+            super(BufferPool.DIRECT);
+            this.channel = channel;
+            this.gathering = channel instanceof GatheringByteChannel
+                    ? (GatheringByteChannel) channel : null;
+            this.headerAndToken[0] = header;
+        }
+
+        @Override
+        int read(final ByteBuffer buffer) throws IOException {
+            return channel.read(buffer);
+        }
+
+        @Override
+        int readAvailable(final ByteBuffer buffer) throws IOException {
+            if (!(channel instanceof SelectableChannel)) {
+                return 0;
+            }
+            final SelectableChannel selectable = (SelectableChannel) channel;
+            synchronized (selectable.blockingLock()) {
+                selectable.configureBlocking(false);
+                try {
+                    return channel.read(buffer);
+                } finally {
+                    selectable.configureBlocking(true);
+                }
+            }
+        }
+
+        @Override
+        void write(final byte[] prefix, final int prefixLength,
+                final byte[] token, final int offset, final int length) throws IOException {
+            header.clear();
+            header.putInt(prefixLength + length);
+            header.put(prefix, 0, prefixLength);
+            header.flip();
+            final ByteBuffer payload = pool.acquire();
+            headerAndToken[1] = payload;
+            try {
+                int copied = 0;
+                do {
+                    final int n = Math.min(payload.capacity(), length - copied);
+                    payload.clear();
+                    payload.put(token, offset + copied, n);
+                    payload.flip();
+                    copied += n;
+                    // The header goes out with the first part of the token
+                    while (header.hasRemaining() || payload.hasRemaining()) {
+                        if (gathering != null) {
+                            gathering.write(headerAndToken);
+                        } else {
+                            channel.write(header.hasRemaining() ? header : payload);
+                        }
+                    }
+                } while (copied < length);
+            } finally {
+                headerAndToken[1] = null;
+                pool.release(payload);
+            }
+        }
+    }
+}
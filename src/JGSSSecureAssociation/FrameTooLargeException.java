@@ -0,0 +1,30 @@
+package JGSSSecureAssociation;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the peer announces a frame longer than the limit of the
+ * current phase of the session. The token is never read, so the stream is
+ * left out of sync and the session can not go on.
+ */
+public class FrameTooLargeException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int length;
+    private final int limit;
+
+    public FrameTooLargeException(final int length, final int limit) {
+        super("Frame of " + length + " bytes over the limit of " + limit);
+        this.length = length;
+        this.limit = limit;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+}
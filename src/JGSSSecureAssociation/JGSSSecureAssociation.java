@@ -1,184 +1,1615 @@
-package JGSSSecureAssociation;
-
-import client.*;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.util.logging.Level;
-import java.util.logging.Logger;
-import org.ietf.jgss.GSSContext;
-import org.ietf.jgss.GSSException;
-import org.ietf.jgss.GSSManager;
-import org.ietf.jgss.MessageProp;
-
-/*
- * To change this license header, choose License Headers in Project Properties.
- * To change this template file, choose Tools | Templates
- * and open the template in the editor.
- */
-
-/**
- *
- * @author Kryword
- */
-public class JGSSSecureAssociation {
-
-    final GSSContext context;
-    DataOutputStream dos;
-    DataInputStream dis;
-    
-    public JGSSSecureAssociation(GSSContext context) {
-        this.context = context;
-    }
-    
-    
-    public GSSContext init(final InputStream is,
-                final OutputStream os,
-                final boolean mutualAuthentication,
-                final boolean confienciality) throws GSSException{
-        context.requestMutualAuth(mutualAuthentication);
-        context.requestConf(confienciality);
-        context.requestInteg(true);
-        dos = new DataOutputStream(os);
-        dis = new DataInputStream(is);
-        try{
-            // Do the context eastablishment loop
-            for (byte[] inToken = new byte[0]; !context.isEstablished();) {
-
-              // inToken is ignored on the first call
-              final byte[] outToken = context.initSecContext(inToken, 0, inToken.length);
-
-              // Send a token to the server if one was generated by initSecContext
-              if (outToken != null) {
-                System.out.println("  * Will send token of size "
-                        + outToken.length
-                        + " from initSecContext.");
-                dos.writeInt(outToken.length);
-                dos.write(outToken);
-                dos.flush();
-              }
-
-              // If the client is done with context establishment
-              // then there will be no more tokens to read in this loop
-              if (!context.isEstablished()) {
-                inToken = new byte[dis.readInt()];
-                System.out.println("  * Will read input token of size "
-                        + inToken.length
-                        + " for processing by initSecContext");
-                dis.readFully(inToken);
-              }
-            }
-        }catch(GSSException|IOException e){
-            
-        }
-        return context;
-    }
-    public GSSContext accept(final InputStream is,
-            final OutputStream os){
-        this.dos = new DataOutputStream(os);
-        this.dis = new DataInputStream(is);
-        // Do the context establishment loop
-        try{
-            while (!context.isEstablished()) {
-              final byte[] inToken = new byte[dis.readInt()];
-              System.out.println("  * Will read input token of size "
-                      + inToken.length
-                      + " for processing by acceptSecContext");
-
-              dis.readFully(inToken);
-              final byte[] outToken = context.acceptSecContext(inToken, 0, inToken.length);
-
-              // Send a token to the peer if one was generated by acceptSecContext
-              if (outToken != null) {
-
-                System.out.println("  * Will send token of size "
-                        + outToken.length
-                        + " from acceptSecContext.");
-                dos.writeInt(outToken.length);
-                dos.write(outToken);
-                dos.flush();
-              }
-            }
-        }catch(GSSException|IOException e){
-            
-        }
-        return context;
-    }
-    
-    public boolean send(final String message, final boolean confidenciality){
-        try {
-            context.requestConf(confidenciality);
-            final byte[] messageBytes = message.getBytes();
-            final MessageProp prop = new MessageProp(0, true);
-            byte[] token;
-            token = context.wrap(messageBytes, 0, messageBytes.length, prop);
-            System.out.println("  * Will send wrap token of size " + token.length);
-            dos.writeInt(token.length);
-            dos.write(token);
-            dos.flush();
-            
-            token = new byte[dis.readInt()];
-            System.out.println("  * Will read token of size " + token.length);
-            dis.readFully(token);
-            context.verifyMIC(token, 0, token.length,
-                messageBytes, 0, messageBytes.length,
-                prop);
-            dis.close();
-            dos.close();
-            return true;
-        } catch (GSSException ex) {
-            Logger.getLogger(JGSSSecureAssociation.class.getName()).log(Level.SEVERE, null, ex);
-            return false;
-        } catch (IOException ex) {
-            Logger.getLogger(JGSSSecureAssociation.class.getName()).log(Level.SEVERE, null, ex);
-            return false;
-        } finally {
-            try {
-                dis.close();
-                dos.close();
-            } catch (IOException ex) {
-                Logger.getLogger(JGSSSecureAssociation.class.getName()).log(Level.SEVERE, null, ex);
-            }
-        }
-    }
-    
-    public String receive(){
-        final String str;
-        try {
-            final MessageProp prop = new MessageProp(0, false);
-            /* 
-            * Read the token.
-            */
-           byte[] token = new byte[dis.readInt()];
-           System.out.println("  * Will read token of size " + token.length);
-           dis.readFully(token);
-           /* 
-            * Unwrap transmited data.
-            */
-            final byte[] bytes = context.unwrap(token, 0, token.length, prop);
-            str = new String(bytes);
-            prop.setQOP(0);
-
-            token = context.getMIC(bytes, 0, bytes.length, prop);
-
-            System.out.println("  * Will send MIC token of size "
-                    + token.length);
-            dos.writeInt(token.length);
-            dos.write(token);
-            dos.flush();
-            context.dispose();
-        } catch (GSSException|IOException e) {
-            return null;
-        } finally {
-            try {
-                dis.close();
-                dos.close();
-            } catch (IOException ex) {
-                Logger.getLogger(JGSSSecureAssociation.class.getName()).log(Level.SEVERE, null, ex);
-            }
-        }
-        return str;
-    }
-}
+package JGSSSecureAssociation;
+
+import client.*;
+import com.sun.security.jgss.ExtendedGSSContext;
+import com.sun.security.jgss.InquireType;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.security.auth.DestroyFailedException;
+import javax.security.auth.Destroyable;
+import org.ietf.jgss.GSSContext;
+import org.ietf.jgss.GSSException;
+import org.ietf.jgss.GSSManager;
+import org.ietf.jgss.MessageProp;
+
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+/**
+ *
+ * Once the context is established, send() and receive() may be called any
+ * number of times over the same context and streams; close() ends the
+ * session with a close frame (a zero length header).
+ *
+ * Every wrapped message starts with a 4-byte request id chosen by the
+ * sender, and the MIC reply is the same id in clear followed by the MIC
+ * token. Replies can then be matched to requests even when several are in
+ * flight (see PipelinedSender).
+ *
+ * Messages that need integrity but not confidentiality can instead go in
+ * clear after their MIC (sendWithMIC()), in a frame that starts with
+ * MIC_MESSAGE. The acceptor verifies them in place and acknowledges them
+ * in ranges: a reply with request id RANGE_ACK_ID, the id of the first
+ * message of the range and the number of messages, and one MIC over those
+ * two and the SHA-256 digest of the tokens of the range. One getMIC then
+ * covers every message received since the last acknowledgement. Wrapped
+ * messages can be acknowledged the same way (PipelinedSender.sendWindowed()),
+ * in a frame that starts with WINDOWED_MESSAGE; the digest then covers
+ * their wrap tokens instead of their MICs. The chunks of sendStream() go
+ * in frames that start with STREAM_CHUNK, so receive() hands them to the
+ * stream sink (setStreamSink()) instead of taking them for messages.
+ *
+ * Request id 0 is kept for control requests, which the acceptor answers
+ * with a wrap token instead of a MIC: with an empty body it asks for a
+ * resumption ticket (requestResumption()), with a flag it offers Deflate
+ * (requestCompression()). Once both sides agree on Deflate, the plaintext
+ * of every wrapped message has a flag after its request id that tells
+ * whether the rest is deflated (see MessageCompression).
+ *
+ * Frames are read and written through a FrameCodec, over the streams
+ * given to init()/accept()/attach() or, with less copying, directly over a
+ * blocking socket channel.
+ *
+ * @author Kryword
+ */
+public class JGSSSecureAssociation {
+
+    /**
+     * Header value that ends a session. Tokens are never empty, so a zero
+     * length can not be mistaken for a token.
+     */
+    public static final int CLOSE_FRAME = 0;
+
+    /**
+     * Header value with which an overloaded acceptor refuses a session
+     * before the handshake, followed by a 4-byte delay in milliseconds
+     * after which the client may try again (see sendBusy()).
+     */
+    public static final int BUSY_FRAME = -1;
+
+    /**
+     * Maximum plaintext carried by each wrap token of sendStream().
+     */
+    public static final int STREAM_CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * Largest frame accepted from the peer once the context is established,
+     * unless setMaxFrameSize() says otherwise.
+     */
+    public static final int DEFAULT_MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * Largest context establishment token accepted from the peer, unless
+     * setMaxHandshakeFrameSize() says otherwise. Kerberos AP-REQ tokens
+     * with a large PAC stay well below it.
+     */
+    public static final int DEFAULT_MAX_HANDSHAKE_FRAME_SIZE = 64 * 1024;
+
+    // Room for the marker, and the wrap token header, checksum and padding
+    // of a chunk
+    private static final int MAX_STREAM_TOKEN = STREAM_CHUNK_SIZE + 1024;
+
+    // Bytes of the request id that starts every wrapped message
+    static final int REQUEST_ID_SIZE = 4;
+
+    // Request id of the requests sent by requestResumption() and
+    // requestCompression()
+    private static final int CONTROL_REQUEST_ID = 0;
+
+    // First byte of the frames of sendWithMIC(); no wrap token starts with
+    // it (those of Kerberos start with 0x05 or 0x60, and those of a
+    // ResumedContext with a sequence number)
+    static final byte MIC_MESSAGE = (byte) 0xFF;
+    // The marker and the 2-byte length of the MIC that follows it
+    private static final int MIC_MESSAGE_HEADER = 3;
+    // First byte of the frames of PipelinedSender.sendWindowed(), followed
+    // by the wrap token, for the same reason
+    private static final byte[] WINDOWED_MESSAGE = {(byte) 0xFE};
+    // First byte of the frames of sendStream(), followed by the wrap token
+    // of a chunk, for the same reason
+    private static final byte[] STREAM_CHUNK = {(byte) 0xFD};
+    // Request id of the acknowledgements of ranges of messages
+    static final int RANGE_ACK_ID = -1;
+    private static final byte[] RANGE_ACK_PREFIX = {-1, -1, -1, -1};
+    // First request id and number of messages, after RANGE_ACK_ID
+    static final int RANGE_ACK_HEADER = 8;
+
+    /**
+     * Messages covered at most by one range acknowledgement, unless
+     * setAckWindow() says otherwise.
+     */
+    public static final int DEFAULT_ACK_WINDOW = 64;
+
+    /**
+     * Milliseconds the first message of a range waits at most for its
+     * acknowledgement while more messages keep coming, unless
+     * setAckWindow() says otherwise.
+     */
+    public static final int DEFAULT_ACK_DELAY_MILLIS = 10;
+
+    private static final AtomicLong SESSIONS = new AtomicLong();
+
+    // InquireType.KRB5_GET_SESSION_KEY_EX and EncryptionKey.getKeyType(),
+    // from Java 9 on; null on older runtimes, where enctype() is null
+    private static final InquireType SESSION_KEY_EX = sessionKeyInquiry();
+    private static final Method KEY_TYPE = keyTypeMethod();
+
+    // Replaced by a ResumedContext when the client resumes a session
+    GSSContext context;
+    // Identifies the session in the trace
+    private final long id = SESSIONS.incrementAndGet();
+    FrameCodec codec;
+    private int maxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+    private int maxHandshakeFrameSize = DEFAULT_MAX_HANDSHAKE_FRAME_SIZE;
+    // Cleared once either side sends the close frame
+    volatile boolean open = true;
+    private int lastRequestId;
+    // Start of the context establishment and tokens received for it
+    private long handshakeStart = System.nanoTime();
+    private int handshakeTokens;
+    // Checked with the first token received by accept(), if set
+    private ReplayCache replayCache;
+    // Issues and accepts resumption tickets, if set
+    private SessionResumption resumption;
+    // Whether the acceptor agrees to deflated messages, if offered
+    private boolean compressionAllowed;
+    // Deflate stage of the wrapped messages, once both sides agreed to it
+    private MessageCompression compression;
+    // Plaintext of the message being sent, and text of the ones received
+    private final PayloadCodec payload = new PayloadCodec();
+    // Payload of the last message received: in the plaintext unwrapped, the
+    // frame read or the buffer it was inflated into
+    private byte[] received;
+    private int receivedOffset;
+    private int receivedLength;
+    // Where receive() writes the streams it meets, if anywhere, and the
+    // bytes of the stream being received so far
+    private OutputStream streamSink;
+    private long streamReceived;
+    // Set by attach(): receive() then handles one frame per call
+    private boolean attached;
+    // Set when the last send() failed before the peer served the message
+    private boolean unserved;
+    // Delay asked by the acceptor if it refused the session as busy
+    private int busyRetryAfter = -1;
+    // Messages received to be acknowledged in ranges and not acknowledged
+    // yet: the request id of the first, when it came, their number and the
+    // digest of their tokens
+    private int ackFirst;
+    private long ackSince;
+    private int ackCount;
+    private MessageDigest ackDigest;
+    private int ackWindow = DEFAULT_ACK_WINDOW;
+    private long ackDelayNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_ACK_DELAY_MILLIS);
+    
+    public JGSSSecureAssociation(GSSContext context) {
+        this.context = context;
+    }
+    
+    
+    /**
+     * @return the number of this session in the process, the conn= of its
+     *         trace events
+     */
+    public long id(){
+        return id;
+    }
+
+    /**
+     * Sets the largest frame accepted from the peer once the context is
+     * established; bigger headers fail the session before any buffer is
+     * allocated for them.
+     */
+    public void setMaxFrameSize(final int maxFrameSize){
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    /**
+     * Sets the cache that accept() checks the first token of the client
+     * against, refusing the session if the token was seen before. Without
+     * one, replays are left to the mechanism (for Kerberos, the replay
+     * cache of the JDK).
+     */
+    public void setReplayCache(final ReplayCache replayCache){
+        this.replayCache = replayCache;
+    }
+
+    /**
+     * Lets the clients of this acceptor send deflated messages, if they ask
+     * for it with requestCompression().
+     */
+    public void setCompressionAllowed(final boolean compressionAllowed){
+        this.compressionAllowed = compressionAllowed;
+    }
+
+    /**
+     * Sets how many messages one range acknowledgement covers at most, and
+     * for how long the first of them waits for it while more keep coming
+     * (0 acknowledges each one at once). Whatever the window, the
+     * acknowledgement goes out as soon as no more frames are waiting, so a
+     * client that stops sending never waits for the delay.
+     */
+    public void setAckWindow(final int messages, final long delayMillis){
+        if (messages < 1 || delayMillis < 0) {
+            throw new IllegalArgumentException("Ack window of " + messages
+                    + " messages and " + delayMillis + " ms");
+        }
+        this.ackWindow = messages;
+        this.ackDelayNanos = TimeUnit.MILLISECONDS.toNanos(delayMillis);
+    }
+
+    /**
+     * Lets the clients of this acceptor ask for resumption tickets, and
+     * resume their sessions with them instead of a first token.
+     */
+    public void setResumption(final SessionResumption resumption){
+        this.resumption = resumption;
+    }
+
+    /**
+     * Sets where receive() writes the content of the streams of
+     * sendStream() sent among the messages of the session. Without a sink
+     * their chunks are still unwrapped, and the stream acknowledged, but
+     * the content is dropped.
+     */
+    public void setStreamSink(final OutputStream streamSink){
+        this.streamSink = streamSink;
+    }
+
+    /**
+     * @return the context of the session: the one given to the constructor,
+     *         or the ResumedContext of a resumed session
+     */
+    public GSSContext getContext(){
+        return context;
+    }
+
+    /**
+     * @return the Kerberos encryption type of the session key (for
+     *         instance "aes256-cts-hmac-sha1-96"), which sets the cost and
+     *         strength of every wrap and MIC of the session; null if the
+     *         context is not established, is not Kerberos (a resumed
+     *         session), the caller lacks the InquireSecContextPermission
+     *         "KRB5_GET_SESSION_KEY_EX" or the runtime is older than Java 9
+     */
+    public String enctype(){
+        if (!(context instanceof ExtendedGSSContext) || !context.isEstablished()
+                || SESSION_KEY_EX == null || KEY_TYPE == null) {
+            return null;
+        }
+        try {
+            final Object key = ((ExtendedGSSContext) context).inquireSecContext(SESSION_KEY_EX);
+            final int type = (Integer) KEY_TYPE.invoke(key);
+            // A copy of the key; only its type is wanted
+            ((Destroyable) key).destroy();
+            return enctypeName(type);
+        } catch (final GSSException | SecurityException | DestroyFailedException
+                | ReflectiveOperationException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Looks up InquireType.KRB5_GET_SESSION_KEY_EX, available from Java 9
+     * on, when the session key also came as an EncryptionKey with its type.
+     */
+    private static InquireType sessionKeyInquiry(){
+        try {
+            return InquireType.valueOf("KRB5_GET_SESSION_KEY_EX");
+        } catch (final IllegalArgumentException ex) {
+            return null;
+        }
+    }
+
+    private static Method keyTypeMethod(){
+        try {
+            return Class.forName("javax.security.auth.kerberos.EncryptionKey")
+                    .getMethod("getKeyType");
+        } catch (final ReflectiveOperationException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the name of an encryption type number (RFC 3961, 4757 and
+     *         8009), as krb5.conf writes it
+     */
+    static String enctypeName(final int type){
+        switch (type) {
+            case 16: return "des3-cbc-sha1";
+            case 17: return "aes128-cts-hmac-sha1-96";
+            case 18: return "aes256-cts-hmac-sha1-96";
+            case 19: return "aes128-cts-hmac-sha256-128";
+            case 20: return "aes256-cts-hmac-sha384-192";
+            case 23: return "rc4-hmac";
+            case 25: return "camellia128-cts-cmac";
+            case 26: return "camellia256-cts-cmac";
+            default: return "enctype-" + type;
+        }
+    }
+
+    public boolean isEstablished(){
+        return context.isEstablished();
+    }
+
+    /**
+     * @return the System.nanoTime() at which the first bytes of the frame
+     *         being read arrived, or 0 if none is partly read; with
+     *         lastFrameAt(), lets another thread enforce read and idle
+     *         deadlines on a blocking session
+     */
+    public long frameStartedAt(){
+        final FrameCodec current = codec;
+        return current == null ? 0 : current.frameStartedAt();
+    }
+
+    /**
+     * @return the System.nanoTime() at which the last frame of the peer was
+     *         read, or the streams bound if none was yet
+     */
+    public long lastFrameAt(){
+        final FrameCodec current = codec;
+        return current == null ? System.nanoTime() : current.lastFrameAt();
+    }
+
+    /**
+     * Sets the largest context establishment token accepted from the peer.
+     * The peer is not authenticated yet, so this limit is usually much
+     * lower than the one of setMaxFrameSize().
+     */
+    public void setMaxHandshakeFrameSize(final int maxHandshakeFrameSize){
+        this.maxHandshakeFrameSize = maxHandshakeFrameSize;
+    }
+
+    /**
+     * @return the number of frames refused so far, in all sessions, for
+     *         being over the handshake limit
+     */
+    public static long rejectedHandshakeFrames(){
+        return Metrics.REJECTED_HANDSHAKE_FRAMES.get();
+    }
+
+    /**
+     * @return the number of frames refused so far, in all sessions, for
+     *         being over the limit of established sessions
+     */
+    public static long rejectedFrames(){
+        return Metrics.REJECTED_FRAMES.get();
+    }
+
+    public GSSContext init(final InputStream is,
+                final OutputStream os,
+                final boolean mutualAuthentication,
+                final boolean confienciality) throws GSSException{
+        codec = FrameCodec.forStreams(is, os);
+        return init(mutualAuthentication, confienciality);
+    }
+
+    /**
+     * Same as init() over streams, framing directly over a socket channel
+     * in blocking mode.
+     */
+    public GSSContext init(final ByteChannel channel,
+                final boolean mutualAuthentication,
+                final boolean confienciality) throws GSSException{
+        codec = FrameCodec.forChannel(channel);
+        return init(mutualAuthentication, confienciality);
+    }
+
+    private GSSContext init(final boolean mutualAuthentication,
+                final boolean confienciality) throws GSSException{
+        context.requestMutualAuth(mutualAuthentication);
+        context.requestConf(confienciality);
+        context.requestInteg(true);
+        handshakeStart = System.nanoTime();
+        try{
+            // Do the context eastablishment loop
+            for (byte[] inToken = new byte[0]; !context.isEstablished();) {
+
+              // inToken is ignored on the first call
+              final byte[] outToken = context.initSecContext(inToken, 0, inToken.length);
+
+              // Send a token to the server if one was generated by initSecContext
+              if (outToken != null) {
+                Trace.event(TraceEvent.TOKEN_OUT, id, outToken.length, "initSecContext");
+                writeToken(outToken);
+              }
+
+              // If the client is done with context establishment
+              // then there will be no more tokens to read in this loop
+              if (!context.isEstablished()) {
+                final int length = readFrame();
+                if (length < 0) {
+                  // The service refused to go on with the establishment
+                  break;
+                }
+                Trace.event(TraceEvent.TOKEN_IN, id, length, "initSecContext");
+                handshakeTokens++;
+                inToken = Arrays.copyOf(codec.frame(), length);
+              }
+            }
+            if (context.isEstablished()) {
+              Metrics.INIT_LATENCY.recordSince(handshakeStart);
+              traceEstablished();
+            }
+        }catch(ServiceBusyException e){
+            busyRetryAfter = e.getRetryAfterMillis();
+        }catch(GSSException|IOException e){
+            
+        }
+        return context;
+    }
+
+    /**
+     * Checks, without blocking, whether the peer ended the session while it
+     * was idle: sent the close frame, as an acceptor that drains does, or
+     * closed the connection, as one that reaps idle sessions does. To be
+     * called between messages only; over streams (see init()) only the
+     * close frame is seen.
+     *
+     * @return true if the session can no longer be used, and isOpen() is
+     *         then false
+     */
+    public boolean isClosedByPeer(){
+        if (!open) {
+            return true;
+        }
+        try {
+            if (codec.peerClosed()) {
+                open = false;
+            }
+        } catch (final IOException ex) {
+            Logger.getLogger(JGSSSecureAssociation.class.getName()).log(Level.FINE, null, ex);
+            open = false;
+        }
+        return !open;
+    }
+
+    /**
+     * @return the delay in milliseconds after which the acceptor asked to
+     *         try again, if it refused the session of init() as busy, or
+     *         -1 otherwise
+     */
+    public int busyRetryAfter(){
+        return busyRetryAfter;
+    }
+
+    /**
+     * Refuses a new session with the busy frame, instead of running the
+     * handshake, when the acceptor is overloaded. The caller closes the
+     * connection afterwards; the client gets a ServiceBusyException out of
+     * its first read, and busyRetryAfter() after init().
+     */
+    public static void sendBusy(final OutputStream os, final int retryAfterMillis)
+            throws IOException {
+        os.write(ByteBuffer.allocate(8).putInt(BUSY_FRAME).putInt(retryAfterMillis).array());
+        os.flush();
+    }
+
+    public GSSContext accept(final InputStream is,
+            final OutputStream os){
+        bind(FrameCodec.forStreams(is, os));
+        return accept();
+    }
+
+    /**
+     * Same as accept() over streams, framing directly over a socket channel
+     * in blocking mode.
+     */
+    public GSSContext accept(final ByteChannel channel){
+        bind(FrameCodec.forChannel(channel));
+        return accept();
+    }
+
+    private GSSContext accept(){
+        // Do the context establishment loop
+        try{
+            while (!context.isEstablished() && acceptToken()) {
+            }
+        }catch(GSSException|IOException e){
+            
+        }
+        return context;
+    }
+
+    /**
+     * Binds the streams of the session without running the establishment
+     * loop, for callers (such as a non-blocking front end) that feed
+     * the association one complete frame at a time through acceptToken()
+     * and receive().
+     */
+    public void attach(final InputStream is, final OutputStream os){
+        bind(FrameCodec.forStreams(is, os));
+        this.attached = true;
+    }
+
+    public void attach(final ByteChannel channel){
+        bind(FrameCodec.forChannel(channel));
+        this.attached = true;
+    }
+
+    private void bind(final FrameCodec codec){
+        this.codec = codec;
+        this.handshakeStart = System.nanoTime();
+    }
+
+    /**
+     * Reads one context establishment token from the client and sends back
+     * the token generated by acceptSecContext, if any.
+     *
+     * @return false if the client sent the close frame instead of a token
+     */
+    public boolean acceptToken() throws GSSException, IOException {
+        final int length = readFrame();
+        if (length < 0) {
+            // The client gave up before the context was established
+            return false;
+        }
+        Trace.event(TraceEvent.TOKEN_IN, id, length, "acceptSecContext");
+        handshakeTokens++;
+        if (handshakeTokens == 1 && resumption != null
+                && SessionResumption.hasMagic(codec.frame(), 0, length)) {
+            resume(length);
+            return true;
+        }
+
+        final byte[] outToken = context.acceptSecContext(codec.frame(), 0, length);
+        if (handshakeTokens == 1 && replayCache != null) {
+            checkFirstToken(length);
+        }
+        if (context.isEstablished()) {
+            Metrics.ACCEPT_LATENCY.recordSince(handshakeStart);
+            Metrics.ACCEPT_ROUND_TRIPS.record(handshakeTokens);
+            traceEstablished();
+        }
+
+        // Send a token to the peer if one was generated by acceptSecContext
+        if (outToken != null) {
+
+            Trace.event(TraceEvent.TOKEN_OUT, id, outToken.length, "acceptSecContext");
+            writeToken(outToken);
+        }
+        return true;
+    }
+    
+    /**
+     * Records the first token accepted in the replay cache: for Kerberos
+     * the ciphertext of the authenticator of its AP-REQ, the only part of
+     * it that can not be changed (see ApRequest), else the whole token.
+     * If it was already recorded, the cache has no room for it, or it is
+     * not the AP-REQ it claims to be, the context is dropped so it can
+     * not be used.
+     */
+    private void checkFirstToken(final int length) throws GSSException {
+        try {
+            final int[] authenticator = ApRequest.authenticator(codec.frame(), 0, length);
+            final boolean first = authenticator == null
+                    ? replayCache.firstSeen(codec.frame(), 0, length)
+                    : replayCache.firstSeen(codec.frame(), authenticator[0], authenticator[1]);
+            if (!first) {
+                throw new GSSException(GSSException.DUPLICATE_TOKEN);
+            }
+        } catch (final GSSException ex) {
+            context.dispose();
+            throw ex;
+        }
+    }
+
+    /**
+     * Replaces the context with the one resumed by the request just read.
+     */
+    private void resume(final int length) throws GSSException, IOException {
+        final ResumedContext resumed;
+        try {
+            resumed = resumption.accept(codec.frame(), 0, length);
+            if (replayCache != null && !replayCache.firstSeen(codec.frame(), 0, length)) {
+                throw new GSSException(GSSException.DUPLICATE_TOKEN);
+            }
+        } catch (final GSSException ex) {
+            Metrics.RESUMPTIONS_REFUSED.increment();
+            throw ex;
+        }
+        context.dispose();
+        context = resumed;
+        Metrics.RESUMED_SESSIONS.increment();
+        traceEstablished();
+        writeToken(resumed.outputToken());
+    }
+
+    private void traceEstablished() throws GSSException {
+        if (Trace.enabled(TraceEvent.ESTABLISHED)) {
+            Trace.event(TraceEvent.ESTABLISHED, id, handshakeTokens,
+                    "client=" + context.getSrcName()
+                    + " service=" + context.getTargName()
+                    + " mutual=" + context.getMutualAuthState()
+                    + " conf=" + context.getConfState()
+                    + (context instanceof ResumedContext ? " resumed" : " enctype=" + enctype()));
+        }
+    }
+
+    /**
+     * Wraps and sends a message, with confidentiality if the flag says so,
+     * and waits for its MIC. Text goes as UTF-8, encoded into a buffer of
+     * the session that is wrapped where it is.
+     */
+    public boolean send(final CharSequence message, final boolean confidenciality){
+        return send(message, new MessageProp(0, confidenciality));
+    }
+
+    /**
+     * Same as send(message, confidenciality), with the QOP and privacy of
+     * the wrap given per message. On return prop tells the protection
+     * applied: the privacy is false if the context does not offer
+     * confidentiality (see getContext().getConfState()), whatever was
+     * asked. The Kerberos mechanism of the JDK only has the default QOP,
+     * 0; the strength of the protection is that of the encryption type of
+     * the session (see enctype()).
+     */
+    public boolean send(final CharSequence message, final MessageProp prop){
+        if (!open) {
+            unserved = true;
+            return false;
+        }
+        final int requestId = nextRequestId();
+        payload.start(requestId, true).append(message).finish();
+        return sendPlaintext(requestId, prop);
+    }
+
+    /**
+     * Same as send(message, prop), for a payload of bytes.
+     */
+    public boolean send(final byte[] message, final int offset, final int length,
+            final MessageProp prop){
+        if (!open) {
+            unserved = true;
+            return false;
+        }
+        final int requestId = nextRequestId();
+        payload.start(requestId, true).append(message, offset, length).finish();
+        return sendPlaintext(requestId, prop);
+    }
+
+    /**
+     * Same as send(message, prop), for the remaining bytes of a buffer,
+     * whose position advances to its limit.
+     */
+    public boolean send(final ByteBuffer message, final MessageProp prop){
+        if (!open) {
+            unserved = true;
+            return false;
+        }
+        final int requestId = nextRequestId();
+        payload.start(requestId, true).append(message).finish();
+        return sendPlaintext(requestId, prop);
+    }
+
+    /**
+     * Wraps the plaintext in the payload buffer, sends it and waits for its
+     * MIC.
+     */
+    private boolean sendPlaintext(final int requestId, final MessageProp prop){
+        unserved = false;
+        try {
+            final byte[] messageBytes = payload.array();
+            final int messageLength = payload.length();
+            byte[] token;
+            token = wrap(messageBytes, 0, messageLength, prop);
+            Trace.event(TraceEvent.TOKEN_OUT, id, token.length,
+                    prop.getPrivacy() ? "wrap" : "wrap-integ");
+            try {
+                writeToken(token);
+            } catch (final IOException ex) {
+                // The peer had closed the connection
+                unserved = true;
+                throw ex;
+            }
+
+            final int length = readFrame();
+            if (length < 0) {
+                // The peer ended the session instead of serving the message
+                unserved = true;
+                return false;
+            }
+            token = codec.frame();
+            Trace.event(TraceEvent.TOKEN_IN, id, length, "mic");
+            if (length < REQUEST_ID_SIZE || requestId(token) != requestId) {
+                throw new IOException("Unexpected reply to request " + requestId);
+            }
+            verifyMIC(token, REQUEST_ID_SIZE, length - REQUEST_ID_SIZE,
+                messageBytes, 0, messageLength,
+                new MessageProp(0, false));
+            return true;
+        } catch (GSSException ex) {
+            Logger.getLogger(JGSSSecureAssociation.class.getName()).log(Level.SEVERE, null, ex);
+            return false;
+        } catch (IOException ex) {
+            Logger.getLogger(JGSSSecureAssociation.class.getName()).log(Level.SEVERE, null, ex);
+            // The frames of the connection can no longer be told apart
+            open = false;
+            return false;
+        }
+    }
+
+    /**
+     * @return true if the last send() failed before the peer served the
+     *         message: the session was already closed, writing the message
+     *         failed, or the peer answered it with the close frame (as an
+     *         acceptor that drains its sessions does). The message can then
+     *         be sent again over another session.
+     */
+    public boolean lastSendUnserved(){
+        return unserved;
+    }
+
+    /**
+     * Sends a message in clear with its MIC, for traffic that needs
+     * integrity but not confidentiality: one getMIC instead of a wrap, and
+     * the acceptor verifies it in place instead of unwrapping a copy. Waits
+     * for the acknowledgement, which PipelinedSender.sendWithMIC() shares
+     * among all the messages in flight.
+     */
+    public boolean sendWithMIC(final CharSequence message){
+        if (!open) {
+            return false;
+        }
+        try {
+            final int requestId = nextRequestId();
+            payload.start(requestId, false).append(message);
+            final byte[] mic = getMIC(payload.array(), 0, payload.length(),
+                    new MessageProp(0, false));
+            final byte[] frame = micMessage(payload.array(), payload.length(), mic);
+            Trace.event(TraceEvent.TOKEN_OUT, id, frame.length, "mic-message");
+            writeToken(frame);
+
+            final int length = readFrame();
+            if (length < 0) {
+                return false;
+            }
+            final byte[] token = codec.frame();
+            Trace.event(TraceEvent.TOKEN_IN, id, length, "ack");
+            if (length < REQUEST_ID_SIZE + RANGE_ACK_HEADER || requestId(token) != RANGE_ACK_ID
+                    || ackFirst(token) != requestId || ackCount(token) != 1) {
+                throw new IOException("Unexpected reply to request " + requestId);
+            }
+            verifyRangeAck(token, length, Collections.singletonList(mic));
+            return true;
+        } catch (GSSException|IOException ex) {
+            Logger.getLogger(JGSSSecureAssociation.class.getName()).log(Level.SEVERE, null, ex);
+            return false;
+        }
+    }
+
+    /**
+     * Returns a sender that keeps up to maxInFlight messages of this session
+     * waiting for their MIC at the same time, instead of one as send() does.
+     * The association must not be used directly while the sender is open.
+     */
+    public PipelinedSender pipelined(final int maxInFlight){
+        return new PipelinedSender(this, maxInFlight);
+    }
+    
+    /**
+     * Reads the next wrap token of the session, unwraps it and sends back a
+     * MIC for the received message, tagged with the request id the message
+     * carried. Messages of sendWithMIC() are verified instead, and those
+     * and the ones of PipelinedSender.sendWindowed() are acknowledged
+     * together once no more frames are waiting, the ack window is full or
+     * its delay has passed (see acknowledge() and setAckWindow()).
+     *
+     * Control requests (see requestResumption() and requestCompression())
+     * are answered here and not returned; when the association is
+     * attached, receive() then returns null with isOpen() still true, as
+     * the frame fed to it held no message.
+     *
+     * @return the received message, decoded from UTF-8, or null once the
+     *         peer has closed the session (or the session failed)
+     */
+    public String receive(){
+        return receivePayload()
+                ? new String(received, receivedOffset, receivedLength, StandardCharsets.UTF_8)
+                : null;
+    }
+
+    /**
+     * Same as receive(), appending the message to a builder the caller
+     * reuses instead of returning a new String.
+     *
+     * @return false where receive() returns null
+     */
+    public boolean receive(final StringBuilder into){
+        if (!receivePayload()) {
+            return false;
+        }
+        payload.decode(received, receivedOffset, receivedLength, into);
+        return true;
+    }
+
+    /**
+     * Same as receive(), returning the bytes of the message without
+     * decoding them, in a buffer of the session that stays valid until the
+     * next call.
+     */
+    public ByteBuffer receiveBytes(){
+        return receivePayload()
+                ? ByteBuffer.wrap(received, receivedOffset, receivedLength)
+                : null;
+    }
+
+    /**
+     * Does the work of receive(), leaving the payload of the message in
+     * received.
+     *
+     * @return false once there is no message to return
+     */
+    private boolean receivePayload(){
+        if (!open) {
+            return false;
+        }
+        try {
+            while (true) {
+                // Before waiting for the client, which may be waiting for it
+                if (ackCount > 0 && !attached && !codec.hasBufferedInput()) {
+                    acknowledge();
+                }
+                final MessageProp prop = new MessageProp(0, false);
+                /* 
+                 * Read the token.
+                 */
+                final int length = readFrame();
+                if (length < 0) {
+                    return false;
+                }
+                if (length > 0 && codec.frame()[0] == MIC_MESSAGE) {
+                    receiveWithMIC(codec.frame(), length);
+                    return true;
+                }
+                if (length > 0 && codec.frame()[0] == WINDOWED_MESSAGE[0]) {
+                    receiveWindowed(codec.frame(), length);
+                    return true;
+                }
+                if (length > 0 && codec.frame()[0] == STREAM_CHUNK[0]) {
+                    // Not a message for the application: it goes to the sink
+                    receiveChunk(codec.frame(), length, streamSink);
+                    if (attached) {
+                        return false;
+                    }
+                    continue;
+                }
+                Trace.event(TraceEvent.TOKEN_IN, id, length, "wrap");
+                /* 
+                 * Unwrap transmited data.
+                 */
+                final byte[] bytes = unwrap(codec.frame(), 0, length, prop);
+                // A replayed message would be served and MICed again
+                checkSequence(prop);
+                if (bytes.length < REQUEST_ID_SIZE) {
+                    throw new IOException("Message without request id");
+                }
+                if (requestId(bytes) == CONTROL_REQUEST_ID) {
+                    // Sent by requestResumption() or requestCompression(),
+                    // not for the application
+                    if (bytes.length == REQUEST_ID_SIZE) {
+                        sendResumptionGrant();
+                    } else {
+                        answerCompression(bytes[REQUEST_ID_SIZE]);
+                    }
+                    if (attached) {
+                        return false;
+                    }
+                    continue;
+                }
+                payloadOf(bytes);
+
+                /*
+                 * The MIC covers the request id too, and the reply repeats it
+                 * in clear so the client can match replies sent in any order.
+                 * It is computed with the QOP the message was wrapped with.
+                 */
+                final byte[] mic = getMIC(bytes, 0, bytes.length, prop);
+
+                Trace.event(TraceEvent.TOKEN_OUT, id, REQUEST_ID_SIZE + mic.length, "mic");
+                codec.writeFrame(bytes, REQUEST_ID_SIZE, mic, 0, mic.length);
+                return true;
+            }
+        } catch (GSSException|IOException e) {
+            Logger.getLogger(JGSSSecureAssociation.class.getName()).log(Level.FINE, null, e);
+            abort();
+            return false;
+        }
+    }
+
+    /**
+     * Ends the session after a failure while serving it: the peer gets the
+     * close frame if it can still be written, and isOpen() turns false so
+     * an attached caller closes the connection instead of waiting for more
+     * frames. The context is still disposed of by close().
+     */
+    private void abort(){
+        if (open) {
+            open = false;
+            try {
+                codec.writeClose();
+            } catch (IOException ex) {
+                Logger.getLogger(JGSSSecureAssociation.class.getName()).log(Level.FINE, null, ex);
+            }
+        }
+    }
+
+    /**
+     * Verifies a message of sendWithMIC() where it was read, and counts it
+     * for the next acknowledgement.
+     */
+    private void receiveWithMIC(final byte[] frame, final int length)
+            throws GSSException, IOException {
+        if (length < MIC_MESSAGE_HEADER) {
+            throw new IOException("Truncated message");
+        }
+        final int micLength = ((frame[1] & 0xFF) << 8) | (frame[2] & 0xFF);
+        final int offset = MIC_MESSAGE_HEADER + micLength;
+        if (length < offset + REQUEST_ID_SIZE) {
+            throw new IOException("Message without request id");
+        }
+        Trace.event(TraceEvent.TOKEN_IN, id, length, "mic-message");
+        final MessageProp prop = new MessageProp(0, false);
+        verifyMIC(frame, MIC_MESSAGE_HEADER, micLength, frame, offset, length - offset, prop);
+        // Sent in clear, so a replay must not pass for a new message
+        checkSequence(prop);
+        countForAck(ByteBuffer.wrap(frame, offset, REQUEST_ID_SIZE).getInt(),
+                frame, MIC_MESSAGE_HEADER, micLength);
+        // Writing the acknowledgement leaves the frame read as it was
+        received = frame;
+        receivedOffset = offset + REQUEST_ID_SIZE;
+        receivedLength = length - receivedOffset;
+    }
+
+    /**
+     * Unwraps a message of PipelinedSender.sendWindowed(), and counts it
+     * for the next acknowledgement instead of answering it with a MIC.
+     */
+    private void receiveWindowed(final byte[] frame, final int length)
+            throws GSSException, IOException {
+        Trace.event(TraceEvent.TOKEN_IN, id, length, "wrap-windowed");
+        final MessageProp prop = new MessageProp(0, false);
+        final byte[] bytes = unwrap(frame, 1, length - 1, prop);
+        // A range must not count the same message twice
+        checkSequence(prop);
+        if (bytes.length < REQUEST_ID_SIZE) {
+            throw new IOException("Message without request id");
+        }
+        countForAck(requestId(bytes), frame, 1, length - 1);
+        payloadOf(bytes);
+    }
+
+    /**
+     * Refuses a token that unwrap or verifyMIC accepted but reported as
+     * replayed, older than the last ones or out of sequence. Messages of a
+     * session are sent in order over one connection, so any of these means
+     * a token was replayed or dropped; the caller closes the session.
+     */
+    private static void checkSequence(final MessageProp prop) throws GSSException {
+        if (prop.isDuplicateToken()) {
+            throw new GSSException(GSSException.DUPLICATE_TOKEN);
+        }
+        if (prop.isOldToken()) {
+            throw new GSSException(GSSException.OLD_TOKEN);
+        }
+        if (prop.isUnseqToken()) {
+            throw new GSSException(GSSException.UNSEQ_TOKEN);
+        }
+        if (prop.isGapToken()) {
+            throw new GSSException(GSSException.GAP_TOKEN);
+        }
+    }
+
+    /**
+     * Points received at the payload of the plaintext of a wrapped
+     * message, inflating it if it was deflated.
+     */
+    private void payloadOf(final byte[] bytes) throws IOException {
+        if (compression == null) {
+            received = bytes;
+            receivedOffset = REQUEST_ID_SIZE;
+        } else if (bytes.length < MessageCompression.HEADER_SIZE) {
+            throw new IOException("Message without compression flag");
+        } else if (MessageCompression.isDeflated(bytes)) {
+            receivedLength = compression.inflate(bytes);
+            received = compression.inflated();
+            receivedOffset = 0;
+            return;
+        } else {
+            received = bytes;
+            receivedOffset = MessageCompression.HEADER_SIZE;
+        }
+        receivedLength = bytes.length - receivedOffset;
+    }
+
+    /**
+     * Starts the plaintext of a message in the payload buffer of the
+     * session, for PipelinedSender.
+     */
+    PayloadCodec plaintext(final int requestId, final boolean wrapped){
+        return payload.start(requestId, wrapped);
+    }
+
+    /**
+     * Adds a message to the range of the next acknowledgement, with the
+     * token that protected it, and sends the acknowledgement if the window
+     * is full or the first message of the range has waited for the delay.
+     */
+    private void countForAck(final int requestId, final byte[] token, final int offset,
+            final int length) throws GSSException, IOException {
+        if (ackCount == 0) {
+            ackFirst = requestId;
+            ackSince = System.nanoTime();
+            if (ackDigest == null) {
+                ackDigest = sha256();
+            }
+        }
+        ackDigest.update(token, offset, length);
+        ackCount++;
+        if (ackCount >= ackWindow || System.nanoTime() - ackSince >= ackDelayNanos) {
+            acknowledge();
+        }
+    }
+
+    /**
+     * Sends the acknowledgement of the messages received to be acknowledged
+     * in ranges and not acknowledged yet, if any. receive() sends it before it waits
+     * for more frames; when attached, the caller must send it once it has
+     * fed receive() the frames it had.
+     */
+    public void acknowledge() throws GSSException, IOException {
+        if (ackCount == 0) {
+            return;
+        }
+        final byte[] body = rangeAckBody(ackFirst, ackCount, ackDigest.digest());
+        final byte[] mic = getMIC(body, 0, body.length, new MessageProp(0, false));
+        final byte[] token = ByteBuffer.allocate(RANGE_ACK_HEADER + mic.length)
+                .putInt(ackFirst).putInt(ackCount).put(mic).array();
+        ackCount = 0;
+        Trace.event(TraceEvent.TOKEN_OUT, id, REQUEST_ID_SIZE + token.length, "ack");
+        codec.writeFrame(RANGE_ACK_PREFIX, REQUEST_ID_SIZE, token, 0, token.length);
+    }
+
+    /**
+     * Writes the frame of PipelinedSender.sendWindowed() for a wrap token.
+     */
+    void writeWindowed(final byte[] token) throws IOException {
+        codec.writeFrame(WINDOWED_MESSAGE, 1, token, 0, token.length);
+    }
+
+    /**
+     * @return the frame of sendWithMIC() for the message with its request
+     *         id, and its MIC
+     */
+    static byte[] micMessage(final byte[] message, final int length, final byte[] mic){
+        return ByteBuffer.allocate(MIC_MESSAGE_HEADER + mic.length + length)
+                .put(MIC_MESSAGE).putShort((short) mic.length).put(mic).put(message, 0, length)
+                .array();
+    }
+
+    static int ackFirst(final byte[] token){
+        return ByteBuffer.wrap(token, REQUEST_ID_SIZE, 4).getInt();
+    }
+
+    static int ackCount(final byte[] token){
+        return ByteBuffer.wrap(token, REQUEST_ID_SIZE + 4, 4).getInt();
+    }
+
+    /**
+     * Checks a range acknowledgement against the tokens of the messages it
+     * covers (the MIC of those of sendWithMIC(), the wrap token of the
+     * windowed ones), in the order they were sent.
+     */
+    void verifyRangeAck(final byte[] token, final int length, final List<byte[]> tokens)
+            throws GSSException {
+        final MessageDigest digest = sha256();
+        for (final byte[] sent : tokens) {
+            digest.update(sent);
+        }
+        final byte[] body = rangeAckBody(ackFirst(token), ackCount(token), digest.digest());
+        final int offset = REQUEST_ID_SIZE + RANGE_ACK_HEADER;
+        verifyMIC(token, offset, length - offset, body, 0, body.length, new MessageProp(0, false));
+    }
+
+    private static byte[] rangeAckBody(final int first, final int count, final byte[] digest){
+        return ByteBuffer.allocate(RANGE_ACK_HEADER + digest.length)
+                .putInt(first).putInt(count).put(digest).array();
+    }
+
+    private static MessageDigest sha256() throws GSSException {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (final NoSuchAlgorithmException ex) {
+            throw ResumedContext.failure(ex);
+        }
+    }
+
+    /**
+     * Asks the acceptor for a ticket to resume this session later with
+     * resume(), over a new connection and without a new handshake. Must be
+     * called between messages, not while a PipelinedSender is open.
+     *
+     * @return the ticket, or null if the acceptor does not issue them (see
+     *         setResumption()), the session has no confidentiality to
+     *         carry the secret of the ticket, or the session failed
+     */
+    public ResumptionTicket requestResumption(){
+        if (!open || !context.getConfState()) {
+            return null;
+        }
+        try {
+            final byte[] request = withRequestId(CONTROL_REQUEST_ID, new byte[0]);
+            writeToken(wrap(request, 0, request.length, new MessageProp(0, true)));
+            final int length = readFrame();
+            if (length < 0) {
+                return null;
+            }
+            final MessageProp prop = new MessageProp(0, false);
+            final byte[] grant = unwrap(codec.frame(), 0, length, prop);
+            if (grant.length == 0) {
+                return null;
+            }
+            // A secret that went in clear may have been seen by anyone
+            if (!prop.getPrivacy()) {
+                Logger.getLogger(JGSSSecureAssociation.class.getName()).log(Level.WARNING,
+                        "Resumption grant not encrypted, ticket discarded");
+                return null;
+            }
+            return ResumptionTicket.fromGrant(grant, context);
+        } catch (GSSException|IOException ex) {
+            Logger.getLogger(JGSSSecureAssociation.class.getName()).log(Level.SEVERE, null, ex);
+            return null;
+        }
+    }
+
+    /**
+     * Offers the acceptor to deflate the messages of this session that
+     * have at least threshold bytes, before they are wrapped; text
+     * payloads of a few KB shrink several times, and wrap and the network
+     * handle that much less. Messages sent with sendWithMIC() are never
+     * deflated. Must be called between messages, not while a
+     * PipelinedSender is open; without it (or if the acceptor refuses)
+     * messages go as they are.
+     *
+     * @return true if the acceptor agreed (see setCompressionAllowed())
+     */
+    public boolean requestCompression(final int threshold){
+        if (!open) {
+            return false;
+        }
+        try {
+            final byte[] request = withRequestId(CONTROL_REQUEST_ID,
+                    new byte[] {MessageCompression.DEFLATED});
+            writeToken(wrap(request, 0, request.length, new MessageProp(0, true)));
+            final int length = readFrame();
+            if (length < 0) {
+                return false;
+            }
+            final byte[] answer = unwrap(codec.frame(), 0, length, new MessageProp(0, false));
+            if (answer.length == 1 && answer[0] == MessageCompression.DEFLATED) {
+                compression = new MessageCompression(threshold, maxFrameSize);
+                payload.setCompression(compression);
+            }
+            return compression != null;
+        } catch (GSSException|IOException ex) {
+            Logger.getLogger(JGSSSecureAssociation.class.getName()).log(Level.SEVERE, null, ex);
+            return false;
+        }
+    }
+
+    /**
+     * Resumes the session of the ticket over a new connection, given as
+     * streams, in one round trip with the acceptor.
+     *
+     * @return the established association, or null if the acceptor refused
+     *         the ticket (for instance, because it expired or the service
+     *         was restarted); a full init() is then needed, on a new
+     *         connection
+     */
+    public static JGSSSecureAssociation resume(final InputStream is, final OutputStream os,
+            final ResumptionTicket ticket){
+        return resume(FrameCodec.forStreams(is, os), ticket);
+    }
+
+    /**
+     * Same as resume() over streams, framing directly over a socket channel
+     * in blocking mode.
+     */
+    public static JGSSSecureAssociation resume(final ByteChannel channel,
+            final ResumptionTicket ticket){
+        return resume(FrameCodec.forChannel(channel), ticket);
+    }
+
+    private static JGSSSecureAssociation resume(final FrameCodec codec,
+            final ResumptionTicket ticket){
+        if (ticket.isExpired()) {
+            return null;
+        }
+        try {
+            final byte[] clientNonce = ResumedContext.random(ResumedContext.NONCE_SIZE);
+            codec.writeFrame(ticket.request(clientNonce));
+            final int length = codec.readFrame(DEFAULT_MAX_HANDSHAKE_FRAME_SIZE);
+            if (length < 0) {
+                return null;
+            }
+            final JGSSSecureAssociation association = new JGSSSecureAssociation(
+                    ticket.resumed(clientNonce, codec.frame(), 0, length));
+            association.codec = codec;
+            return association;
+        } catch (GSSException|IOException ex) {
+            Logger.getLogger(JGSSSecureAssociation.class.getName()).log(Level.FINE, null, ex);
+            return null;
+        }
+    }
+
+    /**
+     * Answers requestResumption() with a ticket, or with an empty grant if
+     * resumption is off. The grant carries the secret of the ticket, so it
+     * only goes encrypted: wrap quietly drops privacy when the context has
+     * no confidentiality, and no ticket is issued then.
+     */
+    private void sendResumptionGrant() throws GSSException, IOException {
+        if (resumption != null && context.getConfState()) {
+            final byte[] grant = resumption.grant(context);
+            final MessageProp prop = new MessageProp(0, true);
+            final byte[] token = wrap(grant, 0, grant.length, prop);
+            if (prop.getPrivacy()) {
+                writeToken(token);
+                return;
+            }
+            Logger.getLogger(JGSSSecureAssociation.class.getName()).log(Level.WARNING,
+                    "Resumption grant not encrypted, no ticket issued");
+        }
+        writeToken(wrap(new byte[0], 0, 0, new MessageProp(0, true)));
+    }
+
+    private void answerCompression(final byte offered) throws GSSException, IOException {
+        final boolean agreed = compressionAllowed && offered == MessageCompression.DEFLATED;
+        if (agreed && compression == null) {
+            // Only inflates: threshold is for what this side would send
+            compression = new MessageCompression(Integer.MAX_VALUE, maxFrameSize);
+            payload.setCompression(compression);
+        }
+        final byte[] answer = {agreed ? MessageCompression.DEFLATED : MessageCompression.STORED};
+        writeToken(wrap(answer, 0, answer.length, new MessageProp(0, true)));
+    }
+
+    /**
+     * Sends the whole content of in as a stream of wrap tokens carrying at
+     * most STREAM_CHUNK_SIZE bytes each, ended by the wrap token of an empty
+     * chunk, and waits for the peer (which reads it with receiveStream(), or
+     * with receive() into its stream sink) to acknowledge with a MIC over
+     * the total number of bytes. Must be called between messages, not
+     * while a PipelinedSender is open.
+     *
+     * Memory use does not depend on the size of the payload, and every chunk
+     * is written as soon as it is wrapped, so the next chunk is wrapped while
+     * the previous one is on its way.
+     *
+     * @return the number of bytes sent, or -1 if the transfer failed
+     */
+    public long sendStream(final InputStream in, final boolean confidenciality){
+        if (!open) {
+            return -1;
+        }
+        try {
+            final MessageProp prop = new MessageProp(0, confidenciality);
+            final byte[] chunk = new byte[STREAM_CHUNK_SIZE];
+            long total = 0;
+            int length;
+            do {
+                length = fill(in, chunk);
+                final byte[] token = wrap(chunk, 0, length, prop);
+                codec.writeFrame(STREAM_CHUNK, 1, token, 0, token.length);
+                total += length;
+            } while (length > 0);
+
+            final int micLength = readFrame();
+            if (micLength < 0) {
+                return -1;
+            }
+            final byte[] totalBytes = longToBytes(total);
+            final MessageProp micProp = new MessageProp(0, false);
+            verifyMIC(codec.frame(), 0, micLength,
+                totalBytes, 0, totalBytes.length,
+                micProp);
+            checkSequence(micProp);
+            Trace.event(TraceEvent.STREAM_SENT, id, total);
+            return total;
+        } catch (GSSException|IOException ex) {
+            Logger.getLogger(JGSSSecureAssociation.class.getName()).log(Level.SEVERE, null, ex);
+            return -1;
+        }
+    }
+
+    /**
+     * Reads a stream sent with sendStream(), writing every unwrapped chunk to
+     * out as it arrives, and acknowledges it with a MIC over the total
+     * number of bytes. Tokens larger than a chunk are refused before any
+     * buffer is allocated for them; frames that are not chunks, and chunks
+     * replayed or out of sequence, fail the transfer and end the session.
+     *
+     * @return the number of bytes received, or -1 if the peer closed the
+     *         session or the transfer failed
+     */
+    public long receiveStream(final OutputStream out){
+        if (!open) {
+            return -1;
+        }
+        try {
+            while (true) {
+                // Chunks are read into the reused frame array; larger
+                // tokens are refused
+                final int length = readFrame(Math.min(maxFrameSize, MAX_STREAM_TOKEN));
+                if (length < 0) {
+                    return -1;
+                }
+                if (length == 0 || codec.frame()[0] != STREAM_CHUNK[0]) {
+                    throw new IOException("Frame is not a chunk of a stream");
+                }
+                final long total = receiveChunk(codec.frame(), length, out);
+                if (total >= 0) {
+                    return total;
+                }
+            }
+        } catch (GSSException|IOException ex) {
+            Logger.getLogger(JGSSSecureAssociation.class.getName()).log(Level.SEVERE, null, ex);
+            abort();
+            return -1;
+        }
+    }
+
+    /**
+     * Unwraps a chunk of sendStream() and writes it to out, if any; the
+     * empty chunk that ends the stream is acknowledged with a MIC over the
+     * length of the stream.
+     *
+     * @return the length of the stream once it ended, or -1 before
+     */
+    private long receiveChunk(final byte[] frame, final int length, final OutputStream out)
+            throws GSSException, IOException {
+        if (length > MAX_STREAM_TOKEN) {
+            throw new IOException("Stream chunk of more than " + STREAM_CHUNK_SIZE + " bytes");
+        }
+        Trace.event(TraceEvent.TOKEN_IN, id, length, "wrap-stream");
+        final MessageProp prop = new MessageProp(0, false);
+        final byte[] chunk = unwrap(frame, 1, length - 1, prop);
+        // A chunk replayed or dropped would corrupt the stream
+        checkSequence(prop);
+        if (chunk.length > 0) {
+            if (out != null) {
+                out.write(chunk);
+            }
+            streamReceived += chunk.length;
+            return -1;
+        }
+        if (out != null) {
+            out.flush();
+        }
+        final long total = streamReceived;
+        streamReceived = 0;
+        final byte[] totalBytes = longToBytes(total);
+        writeToken(getMIC(totalBytes, 0, totalBytes.length,
+                new MessageProp(0, false)));
+        Trace.event(TraceEvent.STREAM_RECEIVED, id, total);
+        return total;
+    }
+
+    /**
+     * Ends the session: sends the close frame (unless the peer already sent
+     * one) and disposes the context. The underlying socket is left to the
+     * caller.
+     */
+    public void close(){
+        try {
+            if (open && codec != null) {
+                open = false;
+                codec.writeClose();
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(JGSSSecureAssociation.class.getName()).log(Level.FINE, null, ex);
+        } finally {
+            try {
+                dispose();
+            } catch (GSSException ex) {
+                Logger.getLogger(JGSSSecureAssociation.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+    /**
+     * Disposes of the context and frees the compression state of the
+     * session without sending the close frame, for callers that close the
+     * connection on their own.
+     */
+    public void dispose() throws GSSException {
+        open = false;
+        if (compression != null) {
+            compression.end();
+        }
+        context.dispose();
+    }
+
+    /**
+     * @return true while neither side has closed the session
+     */
+    public boolean isOpen(){
+        return open;
+    }
+
+    /**
+     * Looks for a complete frame (header plus token) at the position of
+     * the buffer, without consuming it.
+     *
+     * @return the size in bytes of the frame, or -1 if more bytes are needed
+     * @throws IOException if the header is not a valid one
+     */
+    public static int completeFrameLength(final ByteBuffer buffer) throws IOException {
+        return completeFrameLength(buffer, DEFAULT_MAX_FRAME_SIZE);
+    }
+
+    /**
+     * Same as completeFrameLength(buffer), refusing headers of more than
+     * maxFrameSize bytes as soon as the header is in.
+     */
+    public static int completeFrameLength(final ByteBuffer buffer, final int maxFrameSize)
+            throws IOException {
+        if (buffer.remaining() < 4) {
+            return -1;
+        }
+        final int length = buffer.getInt(buffer.position());
+        if (length < 0) {
+            throw new IOException("Invalid frame header " + length);
+        }
+        if (length > maxFrameSize) {
+            throw new FrameTooLargeException(length, maxFrameSize);
+        }
+        return buffer.remaining() - 4 >= length ? 4 + length : -1;
+    }
+
+    /**
+     * Same as completeFrameLength(buffer), with the frame size limit of the
+     * current phase of this session (see setMaxHandshakeFrameSize() and
+     * setMaxFrameSize()). Refused frames are counted like the ones refused
+     * by the association itself, for callers that split the frames of the
+     * session on their own.
+     */
+    public int completeFrameLengthFor(final ByteBuffer buffer) throws IOException {
+        try {
+            return completeFrameLength(buffer, frameLimit());
+        } catch (final FrameTooLargeException ex) {
+            countRejected();
+            throw ex;
+        }
+    }
+
+    /**
+     * Reads from in until buffer is full or the input ends.
+     *
+     * @return the number of bytes read, 0 at the end of the input
+     */
+    private static int fill(final InputStream in, final byte[] buffer) throws IOException {
+        int length = 0;
+        int n;
+        while (length < buffer.length
+                && (n = in.read(buffer, length, buffer.length - length)) >= 0) {
+            length += n;
+        }
+        return length;
+    }
+
+    private static byte[] longToBytes(final long value) {
+        return ByteBuffer.allocate(8).putLong(value).array();
+    }
+
+    int nextRequestId(){
+        do {
+            ++lastRequestId;
+        } while (lastRequestId == CONTROL_REQUEST_ID || lastRequestId == RANGE_ACK_ID);
+        return lastRequestId;
+    }
+
+    /**
+     * @return the message prefixed with its big-endian request id
+     */
+    static byte[] withRequestId(final int requestId, final byte[] message){
+        final byte[] bytes = new byte[REQUEST_ID_SIZE + message.length];
+        ByteBuffer.wrap(bytes).putInt(requestId).put(message);
+        return bytes;
+    }
+
+    static int requestId(final byte[] bytes){
+        return ByteBuffer.wrap(bytes).getInt();
+    }
+
+    /*
+     * The GSS calls of the association, timed into Metrics.
+     */
+
+    byte[] wrap(final byte[] input, final int offset, final int length,
+            final MessageProp prop) throws GSSException {
+        final long start = System.nanoTime();
+        final byte[] token = context.wrap(input, offset, length, prop);
+        Metrics.WRAP_LATENCY.recordSince(start);
+        return token;
+    }
+
+    byte[] unwrap(final byte[] token, final int offset, final int length,
+            final MessageProp prop) throws GSSException {
+        final long start = System.nanoTime();
+        final byte[] message = context.unwrap(token, offset, length, prop);
+        Metrics.UNWRAP_LATENCY.recordSince(start);
+        return message;
+    }
+
+    byte[] getMIC(final byte[] message, final int offset, final int length,
+            final MessageProp prop) throws GSSException {
+        final long start = System.nanoTime();
+        final byte[] mic = context.getMIC(message, offset, length, prop);
+        Metrics.GET_MIC_LATENCY.recordSince(start);
+        return mic;
+    }
+
+    void verifyMIC(final byte[] mic, final int micOffset, final int micLength,
+            final byte[] message, final int offset, final int length,
+            final MessageProp prop) throws GSSException {
+        final long start = System.nanoTime();
+        context.verifyMIC(mic, micOffset, micLength, message, offset, length, prop);
+        Metrics.VERIFY_MIC_LATENCY.recordSince(start);
+    }
+
+    void writeToken(final byte[] token) throws IOException {
+        codec.writeFrame(token);
+    }
+
+    /**
+     * Reads the next frame into codec.frame().
+     *
+     * @return the length of the token, or -1 if the peer sent the close frame
+     */
+    int readFrame() throws IOException {
+        return readFrame(frameLimit());
+    }
+
+    private int readFrame(final int limit) throws IOException {
+        try {
+            final int length = codec.readFrame(limit);
+            if (length < 0) {
+                open = false;
+            }
+            return length;
+        } catch (final FrameTooLargeException ex) {
+            // The token was not read, so nothing else can be
+            open = false;
+            countRejected();
+            throw ex;
+        }
+    }
+
+    private int frameLimit(){
+        return context.isEstablished() ? maxFrameSize : maxHandshakeFrameSize;
+    }
+
+    private void countRejected(){
+        (context.isEstablished() ? Metrics.REJECTED_FRAMES
+                : Metrics.REJECTED_HANDSHAKE_FRAMES).increment();
+    }
+}
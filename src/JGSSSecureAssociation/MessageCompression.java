@@ -0,0 +1,138 @@
+package JGSSSecureAssociation;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate stage of the wrapped messages of a session, once negotiated (see
+ * JGSSSecureAssociation.requestCompression()). The plaintext of every
+ * wrapped message then carries a flag after its request id, and its body
+ * is deflated when it has at least threshold bytes and deflating makes it
+ * smaller, so wrap and the network handle fewer bytes.
+ *
+ * The Deflater, the Inflater and the buffer it inflates into last for the
+ * whole session and are reset for each message, instead of being
+ * allocated for each one (PayloadCodec keeps the buffer to deflate into);
+ * the buffer grows to the largest message of the session.
+ * Deflaters hold native memory until end(), which the association calls
+ * when it is disposed of. Not thread safe: the association serializes its
+ * calls.
+ */
+final class MessageCompression {
+
+    // Flag after the request id
+    static final byte STORED = 0;
+    static final byte DEFLATED = 1;
+    // Bytes of the request id and the flag
+    static final int HEADER_SIZE = JGSSSecureAssociation.REQUEST_ID_SIZE + 1;
+
+    private final int threshold;
+    // Largest message accepted once inflated, so that a small frame can
+    // not make the acceptor allocate more than a large one would
+    private final int maxMessageSize;
+    private Deflater deflater;
+    private Inflater inflater;
+    private byte[] inflated = new byte[0];
+
+    MessageCompression(final int threshold, final int maxMessageSize) {
+        this.threshold = threshold;
+        this.maxMessageSize = maxMessageSize;
+    }
+
+    /**
+     * Deflates the body of a plaintext into out, after the same request id
+     * and the DEFLATED flag, if it has at least threshold bytes and
+     * deflating makes it smaller. out must have room for length bytes.
+     *
+     * @return the length of the deflated plaintext, or -1 if the plaintext
+     *         is to go as it is
+     */
+    int deflate(final byte[] plaintext, final int length, final byte[] out) {
+        if (length - HEADER_SIZE < threshold) {
+            return -1;
+        }
+        if (deflater == null) {
+            // Text compresses well even at the fastest level, and the
+            // point is to spend less CPU in wrap, not more
+            deflater = new Deflater(Deflater.BEST_SPEED, true);
+        }
+        deflater.setInput(plaintext, HEADER_SIZE, length - HEADER_SIZE);
+        deflater.finish();
+        int deflated = HEADER_SIZE;
+        while (!deflater.finished() && deflated < length) {
+            deflated += deflater.deflate(out, deflated, length - deflated);
+        }
+        final boolean smaller = deflater.finished() && deflated < length;
+        deflater.reset();
+        if (!smaller) {
+            return -1;
+        }
+        System.arraycopy(plaintext, 0, out, 0, JGSSSecureAssociation.REQUEST_ID_SIZE);
+        out[JGSSSecureAssociation.REQUEST_ID_SIZE] = DEFLATED;
+        return deflated;
+    }
+
+    static boolean isDeflated(final byte[] plaintext) {
+        return plaintext[JGSSSecureAssociation.REQUEST_ID_SIZE] == DEFLATED;
+    }
+
+    /**
+     * Inflates the body of a deflated plaintext into inflated().
+     *
+     * @return the length of the body
+     * @throws IOException if the body is not valid Deflate data, or it
+     *                     inflates to more than maxMessageSize bytes
+     */
+    int inflate(final byte[] plaintext) throws IOException {
+        if (inflater == null) {
+            inflater = new Inflater(true);
+        }
+        inflater.setInput(plaintext, HEADER_SIZE, plaintext.length - HEADER_SIZE);
+        try {
+            int length = 0;
+            while (!inflater.finished()) {
+                if (length == inflated.length) {
+                    if (length >= maxMessageSize) {
+                        throw new IOException("Message inflates to more than "
+                                + maxMessageSize + " bytes");
+                    }
+                    inflated = Arrays.copyOf(inflated,
+                            (int) Math.min(maxMessageSize, Math.max(1024, 2L * length)));
+                }
+                final int n = inflater.inflate(inflated, length, inflated.length - length);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated deflated message");
+                }
+                length += n;
+            }
+            return length;
+        } catch (final DataFormatException ex) {
+            throw new IOException("Invalid deflated message", ex);
+        } finally {
+            inflater.reset();
+        }
+    }
+
+    /**
+     * @return the buffer of the last body inflated, valid until the next
+     *         call to inflate()
+     */
+    byte[] inflated() {
+        return inflated;
+    }
+
+    /**
+     * Frees the native memory of the Deflater and the Inflater.
+     */
+    void end() {
+        if (deflater != null) {
+            deflater.end();
+        }
+        if (inflater != null) {
+            inflater.end();
+        }
+    }
+}
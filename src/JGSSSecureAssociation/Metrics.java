@@ -0,0 +1,279 @@
+package JGSSSecureAssociation;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Process-wide counters, gauges and histograms of the sessions run by this
+ * JVM: the ones recorded by JGSSSecureAssociation itself, plus whatever the
+ * application registers (the dossierbox service adds its connection and
+ * queue gauges).
+ *
+ * Recording never allocates or locks: counters are LongAdders and
+ * histograms have fixed buckets. The registry can be written out in the
+ * Prometheus text format (writeText()) or read as a flat map of values
+ * (snapshot(), used by MetricsDynamicMBean).
+ */
+public final class Metrics {
+
+    // Nanoseconds per second, for the text format
+    private static final double NANOS = 1e9;
+
+    private static final Map<String, Object> REGISTRY = new LinkedHashMap<>();
+    private static final Map<String, String> HELP = new LinkedHashMap<>();
+
+    public static final Histogram ACCEPT_LATENCY = histogram("jgss_accept_seconds",
+            "Time from the start of accept() to an established acceptor context",
+            latencyBounds(), NANOS);
+    public static final Histogram ACCEPT_ROUND_TRIPS = histogram("jgss_accept_round_trips",
+            "Establishment tokens received per accepted context",
+            new long[] {1, 2, 3, 4, 6, 8, 16}, 1);
+    public static final Histogram INIT_LATENCY = histogram("jgss_init_seconds",
+            "Time from the start of init() to an established initiator context",
+            latencyBounds(), NANOS);
+    public static final Histogram WRAP_LATENCY = histogram("jgss_wrap_seconds",
+            "Time spent in GSSContext.wrap", latencyBounds(), NANOS);
+    public static final Histogram UNWRAP_LATENCY = histogram("jgss_unwrap_seconds",
+            "Time spent in GSSContext.unwrap", latencyBounds(), NANOS);
+    public static final Histogram GET_MIC_LATENCY = histogram("jgss_get_mic_seconds",
+            "Time spent in GSSContext.getMIC", latencyBounds(), NANOS);
+    public static final Histogram VERIFY_MIC_LATENCY = histogram("jgss_verify_mic_seconds",
+            "Time spent in GSSContext.verifyMIC", latencyBounds(), NANOS);
+    public static final Counter BYTES_IN = counter("jgss_bytes_in_total",
+            "Bytes of frames read, headers included");
+    public static final Counter BYTES_OUT = counter("jgss_bytes_out_total",
+            "Bytes of frames written, headers included");
+    public static final Counter FRAMES_IN = counter("jgss_frames_in_total",
+            "Frames read");
+    public static final Counter FRAMES_OUT = counter("jgss_frames_out_total",
+            "Frames written");
+    public static final Counter REJECTED_HANDSHAKE_FRAMES = counter(
+            "jgss_rejected_handshake_frames_total",
+            "Frames refused for being over the handshake size limit");
+    public static final Counter REJECTED_FRAMES = counter("jgss_rejected_frames_total",
+            "Frames refused for being over the size limit of established sessions");
+    public static final Counter REPLAY_CACHE_HITS = counter("jgss_replay_cache_hits_total",
+            "Establishment tokens refused for being replays of a recorded one");
+    public static final Counter REPLAY_CACHE_MISSES = counter("jgss_replay_cache_misses_total",
+            "Establishment tokens recorded in the replay cache");
+    public static final Counter REPLAY_CACHE_FULL = counter("jgss_replay_cache_full_total",
+            "Establishment tokens refused for finding no free replay cache entry");
+    public static final Counter RESUMPTION_TICKETS = counter("jgss_resumption_tickets_total",
+            "Session resumption tickets issued");
+    public static final Counter RESUMED_SESSIONS = counter("jgss_resumed_sessions_total",
+            "Sessions resumed with a ticket instead of a handshake");
+    public static final Counter RESUMPTIONS_REFUSED = counter("jgss_resumptions_refused_total",
+            "Resume requests refused (forged, expired or replayed tickets)");
+
+    private Metrics() {
+    }
+
+    /**
+     * A value that only grows.
+     */
+    public static final class Counter {
+        private final LongAdder value = new LongAdder();
+
+        public void increment() {
+            value.increment();
+        }
+
+        public void add(final long delta) {
+            value.add(delta);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+    }
+
+    /**
+     * Distribution of recorded values over fixed upper bounds, plus their
+     * count and sum.
+     */
+    public static final class Histogram {
+        private final long[] bounds;
+        // One slot per bound plus the overflow slot
+        private final AtomicLongArray buckets;
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final double scale;
+
+        Histogram(final long[] bounds, final double scale) {
+            this.bounds = bounds.clone();
+            this.buckets = new AtomicLongArray(bounds.length + 1);
+            this.scale = scale;
+        }
+
+        public void record(final long value) {
+            int low = 0;
+            int high = bounds.length;
+            while (low < high) {
+                final int mid = (low + high) >>> 1;
+                if (bounds[mid] < value) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            buckets.incrementAndGet(low);
+            count.increment();
+            sum.add(value);
+        }
+
+        /**
+         * Records the time elapsed since startNanos (a System.nanoTime()).
+         */
+        public void recordSince(final long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        public long count() {
+            return count.sum();
+        }
+
+        public long sum() {
+            return sum.sum();
+        }
+
+        /**
+         * @return the upper bound of the bucket holding the given quantile
+         *         (0 to 1) of the recorded values, Long.MAX_VALUE if it is
+         *         the overflow bucket, or 0 if nothing was recorded
+         */
+        public long quantile(final double quantile) {
+            final long total = count();
+            if (total == 0) {
+                return 0;
+            }
+            final long rank = (long) Math.ceil(quantile * total);
+            long seen = 0;
+            for (int i = 0; i < bounds.length; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    return bounds[i];
+                }
+            }
+            return Long.MAX_VALUE;
+        }
+    }
+
+    public static synchronized Counter counter(final String name, final String help) {
+        final Object existing = REGISTRY.get(name);
+        if (existing instanceof Counter) {
+            return (Counter) existing;
+        }
+        return register(name, help, new Counter());
+    }
+
+    /**
+     * @param bounds ascending upper bounds of the buckets
+     * @param scale  recorded units per unit written out (1e9 for
+     *               nanoseconds written out as seconds)
+     */
+    public static synchronized Histogram histogram(final String name, final String help,
+            final long[] bounds, final double scale) {
+        final Object existing = REGISTRY.get(name);
+        if (existing instanceof Histogram) {
+            return (Histogram) existing;
+        }
+        return register(name, help, new Histogram(bounds, scale));
+    }
+
+    /**
+     * Registers (or replaces) a value read when the metrics are written
+     * out, such as the size of a queue.
+     */
+    public static synchronized void gauge(final String name, final String help,
+            final LongSupplier value) {
+        register(name, help, value);
+    }
+
+    /**
+     * Writes every metric in the Prometheus text exposition format.
+     */
+    public static synchronized void writeText(final Appendable out) throws IOException {
+        for (final Map.Entry<String, Object> entry : REGISTRY.entrySet()) {
+            final String name = entry.getKey();
+            final Object metric = entry.getValue();
+            out.append("# HELP ").append(name).append(' ').append(HELP.get(name)).append('\n');
+            if (metric instanceof Counter) {
+                out.append("# TYPE ").append(name).append(" counter\n");
+                out.append(name).append(' ').append(Long.toString(((Counter) metric).get())).append('\n');
+            } else if (metric instanceof Histogram) {
+                final Histogram histogram = (Histogram) metric;
+                out.append("# TYPE ").append(name).append(" histogram\n");
+                long cumulative = 0;
+                for (int i = 0; i < histogram.bounds.length; i++) {
+                    cumulative += histogram.buckets.get(i);
+                    out.append(name).append("_bucket{le=\"")
+                            .append(format(histogram.bounds[i] / histogram.scale))
+                            .append("\"} ").append(Long.toString(cumulative)).append('\n');
+                }
+                cumulative += histogram.buckets.get(histogram.bounds.length);
+                out.append(name).append("_bucket{le=\"+Inf\"} ")
+                        .append(Long.toString(cumulative)).append('\n');
+                out.append(name).append("_sum ")
+                        .append(format(histogram.sum() / histogram.scale)).append('\n');
+                out.append(name).append("_count ")
+                        .append(Long.toString(histogram.count())).append('\n');
+            } else {
+                out.append("# TYPE ").append(name).append(" gauge\n");
+                out.append(name).append(' ')
+                        .append(Long.toString(((LongSupplier) metric).getAsLong())).append('\n');
+            }
+        }
+    }
+
+    /**
+     * @return the current value of every counter and gauge, and the count,
+     *         sum, p50 and p99 of every histogram (as name_count, name_sum,
+     *         name_p50 and name_p99, in the unit written out)
+     */
+    public static synchronized Map<String, Number> snapshot() {
+        final Map<String, Number> values = new LinkedHashMap<>();
+        for (final Map.Entry<String, Object> entry : REGISTRY.entrySet()) {
+            final String name = entry.getKey();
+            final Object metric = entry.getValue();
+            if (metric instanceof Counter) {
+                values.put(name, ((Counter) metric).get());
+            } else if (metric instanceof Histogram) {
+                final Histogram histogram = (Histogram) metric;
+                values.put(name + "_count", histogram.count());
+                values.put(name + "_sum", histogram.sum() / histogram.scale);
+                values.put(name + "_p50", histogram.quantile(0.5) / histogram.scale);
+                values.put(name + "_p99", histogram.quantile(0.99) / histogram.scale);
+            } else {
+                values.put(name, ((LongSupplier) metric).getAsLong());
+            }
+        }
+        return values;
+    }
+
+    private static <T> T register(final String name, final String help, final T metric) {
+        REGISTRY.put(name, metric);
+        HELP.put(name, help);
+        return metric;
+    }
+
+    /**
+     * @return bounds from 1 microsecond to about a minute, in nanoseconds,
+     *         doubling from one bucket to the next
+     */
+    private static long[] latencyBounds() {
+        final long[] bounds = new long[27];
+        for (int i = 0; i < bounds.length; i++) {
+            bounds[i] = 1000L << i;
+        }
+        return bounds;
+    }
+
+    private static String format(final double value) {
+        return value == Math.rint(value) && Math.abs(value) < 1e15
+                ? Long.toString((long) value) : Double.toString(value);
+    }
+}
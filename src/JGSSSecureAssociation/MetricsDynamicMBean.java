@@ -0,0 +1,91 @@
+package JGSSSecureAssociation;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * Read-only MBean with one attribute per value of Metrics.snapshot(), so
+ * the metrics can be watched from jconsole or any JMX client.
+ */
+public final class MetricsDynamicMBean implements DynamicMBean {
+
+    private MetricsDynamicMBean() {
+    }
+
+    /**
+     * Registers the MBean in the platform MBean server under the given
+     * name, unless one is registered there already.
+     */
+    public static void register(final String objectName) throws JMException {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.registerMBean(new MetricsDynamicMBean(), new ObjectName(objectName));
+        } catch (final InstanceAlreadyExistsException ex) {
+            // Every instance reads the same process-wide registry
+        }
+    }
+
+    @Override
+    public Object getAttribute(final String attribute) throws AttributeNotFoundException {
+        final Number value = Metrics.snapshot().get(attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(final String[] attributes) {
+        final Map<String, Number> snapshot = Metrics.snapshot();
+        final AttributeList list = new AttributeList();
+        for (final String attribute : attributes) {
+            final Number value = snapshot.get(attribute);
+            if (value != null) {
+                list.add(new Attribute(attribute, value));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(final Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read-only");
+    }
+
+    @Override
+    public AttributeList setAttributes(final AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(final String actionName, final Object[] params, final String[] signature)
+            throws ReflectionException {
+        // No operations in the MBeanInfo, so none to invoke
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        final Map<String, Number> snapshot = Metrics.snapshot();
+        final MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[snapshot.size()];
+        int i = 0;
+        for (final Map.Entry<String, Number> entry : snapshot.entrySet()) {
+            attributes[i++] = new MBeanAttributeInfo(entry.getKey(),
+                    entry.getValue().getClass().getName(), entry.getKey(),
+                    true, false, false);
+        }
+        return new MBeanInfo(MetricsDynamicMBean.class.getName(),
+                "JGSS session metrics", attributes, null, null, null);
+    }
+}
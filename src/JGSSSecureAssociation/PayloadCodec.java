@@ -0,0 +1,218 @@
+package JGSSSecureAssociation;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Builds the plaintext of the messages a session sends (request id,
+ * compression flag if negotiated, and payload) in a buffer reused for
+ * every message, which is then wrapped or MICed where it is; and decodes
+ * the text of the messages it receives. Once the buffers have grown to
+ * the messages of the session, neither allocates per message.
+ *
+ * Text always goes as UTF-8, whatever the default charset of either host.
+ * ASCII is copied a byte per char; the rest goes through a CharsetEncoder
+ * and a CharsetDecoder kept for the session. Malformed text (an unpaired
+ * surrogate, or bytes that are not UTF-8) is replaced, as
+ * String.getBytes() and new String() do. Not thread safe: the association
+ * serializes its calls.
+ */
+final class PayloadCodec {
+
+    private static final int INITIAL_SIZE = 256;
+    // Chars decoded at a time by decode() for text that is not ASCII
+    private static final int DECODE_CHUNK = 1024;
+
+    private byte[] bytes = new byte[INITIAL_SIZE];
+    private int length;
+    // Whether the plaintext being built has the compression flag
+    private boolean flagged;
+    // Set once compression is negotiated, and the buffer it deflates into,
+    // swapped with bytes when deflating is worth it
+    private MessageCompression compression;
+    private byte[] deflated;
+    private CharsetEncoder encoder;
+    private CharsetDecoder decoder;
+    private CharBuffer chars;
+
+    void setCompression(final MessageCompression compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * Starts a new plaintext with the request id and, if it is to be
+     * wrapped and compression is on, the flag of a stored body.
+     */
+    PayloadCodec start(final int requestId, final boolean wrapped) {
+        bytes[0] = (byte) (requestId >>> 24);
+        bytes[1] = (byte) (requestId >>> 16);
+        bytes[2] = (byte) (requestId >>> 8);
+        bytes[3] = (byte) requestId;
+        length = JGSSSecureAssociation.REQUEST_ID_SIZE;
+        flagged = wrapped && compression != null;
+        if (flagged) {
+            bytes[length++] = MessageCompression.STORED;
+        }
+        return this;
+    }
+
+    /**
+     * Appends text as UTF-8.
+     */
+    PayloadCodec append(final CharSequence text) {
+        final int count = text.length();
+        ensure(count);
+        int i = 0;
+        for (; i < count; i++) {
+            final char c = text.charAt(i);
+            if (c >= 0x80) {
+                break;
+            }
+            bytes[length++] = (byte) c;
+        }
+        if (i < count) {
+            encode(CharBuffer.wrap(text, i, count));
+        }
+        return this;
+    }
+
+    PayloadCodec append(final byte[] payload, final int offset, final int count) {
+        ensure(count);
+        System.arraycopy(payload, offset, bytes, length, count);
+        length += count;
+        return this;
+    }
+
+    /**
+     * Appends the remaining bytes of payload, advancing its position as a
+     * channel write would.
+     */
+    PayloadCodec append(final ByteBuffer payload) {
+        final int count = payload.remaining();
+        ensure(count);
+        payload.get(bytes, length, count);
+        length += count;
+        return this;
+    }
+
+    /**
+     * Deflates the body of the plaintext, if it has the compression flag
+     * and deflating is worth it (see MessageCompression).
+     */
+    PayloadCodec finish() {
+        if (!flagged) {
+            return this;
+        }
+        if (deflated == null || deflated.length < length) {
+            deflated = new byte[bytes.length];
+        }
+        final int deflatedLength = compression.deflate(bytes, length, deflated);
+        if (deflatedLength >= 0) {
+            final byte[] stored = bytes;
+            bytes = deflated;
+            deflated = stored;
+            length = deflatedLength;
+        }
+        return this;
+    }
+
+    /**
+     * @return the buffer holding the plaintext, valid until the next
+     *         start()
+     */
+    byte[] array() {
+        return bytes;
+    }
+
+    int length() {
+        return length;
+    }
+
+    /**
+     * @return the plaintext in an array of its own
+     */
+    byte[] copy() {
+        return Arrays.copyOf(bytes, length);
+    }
+
+    /**
+     * Appends the UTF-8 text in the given bytes to the builder.
+     */
+    void decode(final byte[] text, final int offset, final int count, final StringBuilder into) {
+        into.ensureCapacity(into.length() + count);
+        final int end = offset + count;
+        int i = offset;
+        while (i < end && text[i] >= 0) {
+            into.append((char) text[i++]);
+        }
+        if (i == end) {
+            return;
+        }
+        if (decoder == null) {
+            decoder = StandardCharsets.UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            chars = CharBuffer.allocate(DECODE_CHUNK);
+        }
+        decoder.reset();
+        final ByteBuffer in = ByteBuffer.wrap(text, i, end - i);
+        CoderResult result;
+        do {
+            result = decoder.decode(in, chars, true);
+            drain(into);
+        } while (result.isOverflow());
+        do {
+            result = decoder.flush(chars);
+            drain(into);
+        } while (result.isOverflow());
+    }
+
+    private void drain(final StringBuilder into) {
+        chars.flip();
+        into.append(chars);
+        chars.clear();
+    }
+
+    private void encode(final CharBuffer in) {
+        if (encoder == null) {
+            encoder = StandardCharsets.UTF_8.newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+        encoder.reset();
+        CoderResult result;
+        do {
+            final ByteBuffer out = ByteBuffer.wrap(bytes, length, bytes.length - length);
+            result = encoder.encode(in, out, true);
+            length = out.position();
+            if (result.isOverflow()) {
+                // Each char left takes one to three bytes
+                ensure(Math.max(in.remaining(), bytes.length - length + 1));
+            }
+        } while (result.isOverflow());
+        do {
+            final ByteBuffer out = ByteBuffer.wrap(bytes, length, bytes.length - length);
+            result = encoder.flush(out);
+            length = out.position();
+            if (result.isOverflow()) {
+                ensure(bytes.length - length + 1);
+            }
+        } while (result.isOverflow());
+    }
+
+    /**
+     * Makes room for count more bytes after the plaintext.
+     */
+    private void ensure(final int count) {
+        final int needed = length + count;
+        if (needed > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(needed, bytes.length * 2));
+        }
+    }
+}
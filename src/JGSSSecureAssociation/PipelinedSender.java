@@ -0,0 +1,308 @@
+package JGSSSecureAssociation;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.ietf.jgss.GSSException;
+import org.ietf.jgss.MessageProp;
+
+/**
+ * Sends messages over an established JGSSSecureAssociation without waiting
+ * for the MIC of one message before sending the next, so a high-latency
+ * link carries up to maxInFlight messages at once instead of one per round
+ * trip.
+ *
+ * Every send() returns a future that completes once the MIC the peer sent
+ * for that message, matched by its request id, has been verified. The peer
+ * may reply in any order. A reader thread consumes the replies, and only
+ * while some reply is expected, so it never blocks on a quiet session.
+ *
+ * Messages sent with sendWithMIC() or sendWindowed() are acknowledged in
+ * ranges instead, as many as the acceptor received before it ran out of
+ * frames to read (up to its ack window, see
+ * JGSSSecureAssociation.setAckWindow()), so a full window of them costs
+ * the peer one getMIC and one reply. Their tokens are kept until their
+ * range is acknowledged; maxInFlight bounds how many.
+ */
+public final class PipelinedSender implements AutoCloseable {
+
+    private static final Logger LOGGER = Logger.getLogger(PipelinedSender.class.getName());
+
+    private final JGSSSecureAssociation association;
+    private final Semaphore inFlight;
+    // Replies expected by the reader thread, plus one more on close
+    private final Semaphore expected = new Semaphore(0);
+    private final Map<Integer, Request> pending = new ConcurrentHashMap<>();
+    // Request ids of the messages acknowledged in ranges and not
+    // acknowledged yet, in the order they were written
+    private final Queue<Integer> unacknowledged = new ConcurrentLinkedQueue<>();
+    private final Thread reader;
+    private final int maxInFlight;
+    private volatile boolean closing;
+    private boolean closed;
+
+    private static final class Request {
+        // Plaintext the MIC of send() covers; null for the other sends
+        final byte[] message;
+        final MessageProp prop;
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        // Token the range acknowledgement covers: the MIC sent by
+        // sendWithMIC() or the wrap token of sendWindowed(); null for send()
+        byte[] token;
+
+        Request(final byte[] message, final MessageProp prop) {
+            this.message = message;
+            this.prop = prop;
+        }
+    }
+
+    PipelinedSender(final JGSSSecureAssociation association, final int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be positive");
+        }
+        this.association = association;
+        this.maxInFlight = maxInFlight;
+        this.inFlight = new Semaphore(maxInFlight);
+        this.reader = new Thread(this::readReplies, "PipelinedSender reader");
+        this.reader.setDaemon(true);
+        this.reader.start();
+    }
+
+    /**
+     * Wraps and sends a message, blocking only while maxInFlight messages
+     * are already waiting for their MIC.
+     *
+     * @return a future completed when the MIC for the message is verified,
+     *         or completed exceptionally if the session fails first
+     */
+    public CompletableFuture<Void> send(final CharSequence message, final boolean confidenciality) {
+        if (closing || !association.open) {
+            return failed(new IOException("Session closed"));
+        }
+        inFlight.acquireUninterruptibly();
+        final Request request;
+        synchronized (association) {
+            final int requestId = association.nextRequestId();
+            // Kept until its MIC comes, so in an array of its own
+            request = new Request(association.plaintext(requestId, true)
+                    .append(message).finish().copy(), new MessageProp(0, confidenciality));
+            pending.put(requestId, request);
+            try {
+                final byte[] token;
+                synchronized (association.context) {
+                    token = association.wrap(request.message, 0,
+                            request.message.length, request.prop);
+                }
+                association.writeToken(token);
+            } catch (GSSException | IOException ex) {
+                // Fails this request too, and gives back its permit
+                failAll(ex);
+                return request.future;
+            }
+        }
+        expected.release();
+        return request.future;
+    }
+
+    /**
+     * Sends a message in clear with its MIC (see
+     * JGSSSecureAssociation.sendWithMIC()), blocking only while
+     * maxInFlight messages are already waiting for their acknowledgement.
+     *
+     * @return a future completed when the acknowledgement of a range that
+     *         includes the message is verified, or completed exceptionally
+     *         if the session fails first
+     */
+    public CompletableFuture<Void> sendWithMIC(final CharSequence message) {
+        return sendInRange(message, new MessageProp(0, false), true);
+    }
+
+    /**
+     * Wraps and sends a message as send() does, but the acceptor
+     * acknowledges it in a range with the others instead of with a MIC of
+     * its own. Blocks only while maxInFlight messages are already waiting
+     * for their acknowledgement.
+     *
+     * @return a future completed when the acknowledgement of a range that
+     *         includes the message is verified, or completed exceptionally
+     *         if the session fails first
+     */
+    public CompletableFuture<Void> sendWindowed(final CharSequence message,
+            final boolean confidenciality) {
+        return sendInRange(message, new MessageProp(0, confidenciality), false);
+    }
+
+    private CompletableFuture<Void> sendInRange(final CharSequence message, final MessageProp prop,
+            final boolean withMIC) {
+        if (closing || !association.open) {
+            return failed(new IOException("Session closed"));
+        }
+        inFlight.acquireUninterruptibly();
+        final Request request;
+        synchronized (association) {
+            final int requestId = association.nextRequestId();
+            request = new Request(null, prop);
+            pending.put(requestId, request);
+            try {
+                // Only wrapped messages are deflated; the range acknowledgement
+                // covers the token, so the plaintext is not kept
+                final PayloadCodec plaintext = association.plaintext(requestId, !withMIC)
+                        .append(message).finish();
+                synchronized (association.context) {
+                    request.token = withMIC
+                            ? association.getMIC(plaintext.array(), 0, plaintext.length(), prop)
+                            : association.wrap(plaintext.array(), 0, plaintext.length(), prop);
+                }
+                unacknowledged.add(requestId);
+                if (withMIC) {
+                    association.writeToken(JGSSSecureAssociation.micMessage(
+                            plaintext.array(), plaintext.length(), request.token));
+                } else {
+                    association.writeWindowed(request.token);
+                }
+            } catch (GSSException | IOException ex) {
+                failAll(ex);
+                return request.future;
+            }
+        }
+        expected.release();
+        return request.future;
+    }
+
+    /**
+     * Waits for every message in flight to be acknowledged and stops the
+     * reader thread. The association itself is left open, so the caller
+     * still has to close() it.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        inFlight.acquireUninterruptibly(maxInFlight);
+        closing = true;
+        expected.release();
+        try {
+            reader.join();
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            inFlight.release(maxInFlight);
+        }
+    }
+
+    private void readReplies() {
+        while (true) {
+            expected.acquireUninterruptibly();
+            if (closing && pending.isEmpty()) {
+                return;
+            }
+            try {
+                final int length = association.readFrame();
+                if (length < 0) {
+                    throw new IOException("Session closed by the peer");
+                }
+                final byte[] token = association.codec.frame();
+                if (length < JGSSSecureAssociation.REQUEST_ID_SIZE) {
+                    throw new IOException("Reply without request id");
+                }
+                if (JGSSSecureAssociation.requestId(token) == JGSSSecureAssociation.RANGE_ACK_ID) {
+                    acknowledged(token, length);
+                    continue;
+                }
+                final Request request = pending.remove(JGSSSecureAssociation.requestId(token));
+                if (request == null) {
+                    throw new IOException("Reply to an unknown request");
+                }
+                try {
+                    synchronized (association.context) {
+                        association.verifyMIC(token, JGSSSecureAssociation.REQUEST_ID_SIZE,
+                                length - JGSSSecureAssociation.REQUEST_ID_SIZE,
+                                request.message, 0, request.message.length,
+                                request.prop);
+                    }
+                    request.future.complete(null);
+                } catch (final GSSException ex) {
+                    request.future.completeExceptionally(ex);
+                }
+                inFlight.release();
+            } catch (final IOException ex) {
+                LOGGER.log(Level.SEVERE, null, ex);
+                failAll(ex);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Completes the messages that a range acknowledgement covers, the
+     * oldest ones not acknowledged yet.
+     */
+    private void acknowledged(final byte[] token, final int length) throws IOException {
+        if (length < JGSSSecureAssociation.REQUEST_ID_SIZE + JGSSSecureAssociation.RANGE_ACK_HEADER) {
+            throw new IOException("Truncated acknowledgement");
+        }
+        final int count = JGSSSecureAssociation.ackCount(token);
+        if (count < 1 || count > maxInFlight) {
+            throw new IOException("Acknowledgement of " + count + " messages");
+        }
+        // Checked before waiting for the replies below: every message is
+        // queued before its token is written, so a range the peer received
+        // is always in unacknowledged, and waiting for a range that is not
+        // would block this thread for good
+        final Integer first = unacknowledged.peek();
+        if (first == null || first != JGSSSecureAssociation.ackFirst(token)
+                || unacknowledged.size() < count) {
+            throw new IOException("Acknowledgement of unknown messages");
+        }
+        // One reply for count messages, whose sends were all written (and
+        // will release their permits, if they have not yet)
+        expected.acquireUninterruptibly(count - 1);
+        final List<Request> requests = new ArrayList<>(count);
+        final List<byte[]> tokens = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final Request request = pending.remove(unacknowledged.poll());
+            requests.add(request);
+            tokens.add(request.token);
+        }
+        try {
+            synchronized (association.context) {
+                association.verifyRangeAck(token, length, tokens);
+            }
+            for (final Request request : requests) {
+                request.future.complete(null);
+            }
+        } catch (final GSSException ex) {
+            for (final Request request : requests) {
+                request.future.completeExceptionally(ex);
+            }
+        }
+        inFlight.release(count);
+    }
+
+    private void failAll(final Exception cause) {
+        closing = true;
+        for (final Integer requestId : pending.keySet()) {
+            final Request request = pending.remove(requestId);
+            if (request != null) {
+                request.future.completeExceptionally(cause);
+                inFlight.release();
+            }
+        }
+    }
+
+    private static CompletableFuture<Void> failed(final Exception cause) {
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        future.completeExceptionally(cause);
+        return future;
+    }
+}
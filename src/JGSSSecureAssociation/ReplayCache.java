@@ -0,0 +1,28 @@
+package JGSSSecureAssociation;
+
+/**
+ * Remembers the first context establishment token of every accepted
+ * session for as long as the mechanism would still accept it, so a token
+ * captured on the wire can not be used to open a second session. Set on
+ * the acceptor with JGSSSecureAssociation.setReplayCache().
+ *
+ * For Kerberos the first token is the AP-REQ, whose authenticator is only
+ * accepted within the clock skew of the acceptor, so entries need to be
+ * kept for the clock skew and no longer. The association records the
+ * ciphertext of the authenticator rather than the whole token, whose
+ * other parts a replay can change (see ApRequest).
+ */
+public interface ReplayCache {
+
+    /**
+     * Records a first token that the mechanism has just accepted, or the
+     * part of it that identifies it.
+     *
+     * @return false if the same bytes were already recorded and have not
+     *         expired yet, that is, if the token is a replay, or if there
+     *         is no room to record them: the session must be refused then
+     *         too, since a cache that forgot a live token would let it be
+     *         replayed
+     */
+    boolean firstSeen(byte[] token, int offset, int length);
+}
@@ -0,0 +1,451 @@
+package JGSSSecureAssociation;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import org.ietf.jgss.ChannelBinding;
+import org.ietf.jgss.GSSContext;
+import org.ietf.jgss.GSSCredential;
+import org.ietf.jgss.GSSException;
+import org.ietf.jgss.GSSManager;
+import org.ietf.jgss.GSSName;
+import org.ietf.jgss.MessageProp;
+import org.ietf.jgss.Oid;
+
+/**
+ * Context of a session resumed with a ResumptionTicket, standing in for
+ * the Kerberos context of the session that issued the ticket, so the
+ * association uses it as any other established context.
+ *
+ * Both sides derive its keys from the secret of the ticket and the nonces
+ * of the resume exchange, one key per direction for wrap tokens (AES-GCM)
+ * and one for MIC tokens (HMAC-SHA256, truncated to MIC_SIZE bytes). Every
+ * token starts with its 8-byte sequence number; wrap tokens must arrive in
+ * order and MIC tokens must not repeat, so replayed or reordered tokens
+ * are refused as with the sequence detection of Kerberos.
+ *
+ * The context is always established, and only offers the per-message
+ * calls; the establishment calls, export and the stream variants fail.
+ */
+final class ResumedContext implements GSSContext {
+
+    static final int NONCE_SIZE = 16;
+    static final int SECRET_SIZE = 32;
+
+    private static final int SEQUENCE_SIZE = 8;
+    private static final int TAG_BITS = 128;
+    private static final int MIC_SIZE = 16;
+    private static final String HMAC = "HmacSHA256";
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final Oid KRB5 = oid("1.2.840.113554.1.2.2");
+    private static final Oid KRB5_PRINCIPAL_NAME = oid("1.2.840.113554.1.2.2.1");
+
+    private final boolean initiator;
+    private final GSSName source;
+    private final GSSName target;
+    // Session expiry of the ticket it was resumed with (epoch milliseconds,
+    // see SessionResumption), which resuming it again does not extend
+    private final long expiry;
+    private final SecretKeySpec wrapOut;
+    private final SecretKeySpec wrapIn;
+    private final Mac micOut;
+    private final Mac micIn;
+    private final Cipher sealer;
+    private final Cipher opener;
+    private long sentWraps;
+    private long receivedWraps;
+    private long sentMics;
+    private long receivedMics;
+    private volatile boolean disposed;
+    // Token for the initiator when created by the acceptor, else null
+    private final byte[] outputToken;
+
+    ResumedContext(final boolean initiator, final byte[] secret, final byte[] clientNonce,
+            final byte[] serverNonce, final String client, final String service,
+            final long expiry, final byte[] outputToken) throws GSSException {
+        this.initiator = initiator;
+        final GSSManager manager = GSSManager.getInstance();
+        this.source = manager.createName(client, KRB5_PRINCIPAL_NAME);
+        this.target = manager.createName(service, KRB5_PRINCIPAL_NAME);
+        this.expiry = expiry;
+        this.outputToken = outputToken;
+        final byte[] master = hmac(secret, label("keys"), clientNonce, serverNonce);
+        final byte[] clientWrap = hmac(master, label("client wrap"));
+        final byte[] serverWrap = hmac(master, label("server wrap"));
+        final byte[] clientMic = hmac(master, label("client mic"));
+        final byte[] serverMic = hmac(master, label("server mic"));
+        this.wrapOut = new SecretKeySpec(initiator ? clientWrap : serverWrap, "AES");
+        this.wrapIn = new SecretKeySpec(initiator ? serverWrap : clientWrap, "AES");
+        try {
+            this.micOut = Mac.getInstance(HMAC);
+            this.micOut.init(new SecretKeySpec(initiator ? clientMic : serverMic, HMAC));
+            this.micIn = Mac.getInstance(HMAC);
+            this.micIn.init(new SecretKeySpec(initiator ? serverMic : clientMic, HMAC));
+            this.sealer = Cipher.getInstance("AES/GCM/NoPadding");
+            this.opener = Cipher.getInstance("AES/GCM/NoPadding");
+        } catch (final GeneralSecurityException ex) {
+            throw failure(ex);
+        } finally {
+            // The key specs keep their own copies
+            for (final byte[] key : new byte[][] {master, clientWrap, serverWrap, clientMic, serverMic}) {
+                Arrays.fill(key, (byte) 0);
+            }
+        }
+    }
+
+    byte[] outputToken() {
+        return outputToken;
+    }
+
+    @Override
+    public synchronized byte[] wrap(final byte[] inBuf, final int offset, final int len,
+            final MessageProp msgProp) throws GSSException {
+        checkOpen();
+        final long sequence = sentWraps++;
+        final byte[] token = new byte[SEQUENCE_SIZE + len + TAG_BITS / 8];
+        ByteBuffer.wrap(token).putLong(sequence);
+        try {
+            sealer.init(Cipher.ENCRYPT_MODE, wrapOut, iv(sequence));
+            sealer.updateAAD(token, 0, SEQUENCE_SIZE);
+            sealer.doFinal(inBuf, offset, len, token, SEQUENCE_SIZE);
+        } catch (final GeneralSecurityException ex) {
+            throw failure(ex);
+        }
+        msgProp.setQOP(0);
+        msgProp.setPrivacy(true);
+        return token;
+    }
+
+    @Override
+    public synchronized byte[] unwrap(final byte[] inBuf, final int offset, final int len,
+            final MessageProp msgProp) throws GSSException {
+        checkOpen();
+        if (len < SEQUENCE_SIZE + TAG_BITS / 8) {
+            throw new GSSException(GSSException.DEFECTIVE_TOKEN);
+        }
+        final long sequence = ByteBuffer.wrap(inBuf, offset, SEQUENCE_SIZE).getLong();
+        if (sequence != receivedWraps) {
+            throw new GSSException(sequence < receivedWraps
+                    ? GSSException.DUPLICATE_TOKEN : GSSException.GAP_TOKEN);
+        }
+        final byte[] message;
+        try {
+            opener.init(Cipher.DECRYPT_MODE, wrapIn, iv(sequence));
+            opener.updateAAD(inBuf, offset, SEQUENCE_SIZE);
+            message = opener.doFinal(inBuf, offset + SEQUENCE_SIZE, len - SEQUENCE_SIZE);
+        } catch (final AEADBadTagException ex) {
+            throw new GSSException(GSSException.BAD_MIC);
+        } catch (final GeneralSecurityException ex) {
+            throw failure(ex);
+        }
+        receivedWraps++;
+        msgProp.setQOP(0);
+        msgProp.setPrivacy(true);
+        return message;
+    }
+
+    @Override
+    public synchronized byte[] getMIC(final byte[] inMsg, final int offset, final int len,
+            final MessageProp msgProp) throws GSSException {
+        checkOpen();
+        final byte[] token = new byte[SEQUENCE_SIZE + MIC_SIZE];
+        ByteBuffer.wrap(token).putLong(sentMics++);
+        System.arraycopy(mic(micOut, token, inMsg, offset, len), 0, token, SEQUENCE_SIZE, MIC_SIZE);
+        msgProp.setQOP(0);
+        return token;
+    }
+
+    @Override
+    public synchronized void verifyMIC(final byte[] inToken, final int tokOffset, final int tokLen,
+            final byte[] inMsg, final int msgOffset, final int msgLen,
+            final MessageProp msgProp) throws GSSException {
+        checkOpen();
+        if (tokLen != SEQUENCE_SIZE + MIC_SIZE) {
+            throw new GSSException(GSSException.DEFECTIVE_TOKEN);
+        }
+        final byte[] sequence = Arrays.copyOfRange(inToken, tokOffset, tokOffset + SEQUENCE_SIZE);
+        final byte[] expected = mic(micIn, sequence, inMsg, msgOffset, msgLen);
+        if (!MessageDigest.isEqual(Arrays.copyOf(expected, MIC_SIZE),
+                Arrays.copyOfRange(inToken, tokOffset + SEQUENCE_SIZE, tokOffset + tokLen))) {
+            throw new GSSException(GSSException.BAD_MIC);
+        }
+        final long number = ByteBuffer.wrap(sequence).getLong();
+        if (number < receivedMics) {
+            throw new GSSException(GSSException.DUPLICATE_TOKEN);
+        }
+        receivedMics = number + 1;
+        msgProp.setQOP(0);
+    }
+
+    @Override
+    public int getWrapSizeLimit(final int qop, final boolean confReq, final int maxTokenSize) {
+        return Math.max(0, maxTokenSize - SEQUENCE_SIZE - TAG_BITS / 8);
+    }
+
+    @Override
+    public boolean isEstablished() {
+        return !disposed;
+    }
+
+    @Override
+    public void dispose() {
+        disposed = true;
+    }
+
+    @Override
+    public GSSName getSrcName() {
+        return source;
+    }
+
+    @Override
+    public GSSName getTargName() {
+        return target;
+    }
+
+    @Override
+    public Oid getMech() {
+        return KRB5;
+    }
+
+    @Override
+    public boolean isInitiator() {
+        return initiator;
+    }
+
+    @Override
+    public int getLifetime() {
+        return (int) Math.max(0, (expiry - System.currentTimeMillis()) / 1000);
+    }
+
+    /**
+     * @return the session expiry, carried over to the tickets issued over
+     *         this context
+     */
+    long expiry() {
+        return expiry;
+    }
+
+    @Override
+    public boolean getMutualAuthState() {
+        return true;
+    }
+
+    @Override
+    public boolean getReplayDetState() {
+        return true;
+    }
+
+    @Override
+    public boolean getSequenceDetState() {
+        return true;
+    }
+
+    @Override
+    public boolean getConfState() {
+        return true;
+    }
+
+    @Override
+    public boolean getIntegState() {
+        return true;
+    }
+
+    @Override
+    public boolean getCredDelegState() {
+        return false;
+    }
+
+    @Override
+    public boolean getAnonymityState() {
+        return false;
+    }
+
+    @Override
+    public boolean isTransferable() {
+        return false;
+    }
+
+    @Override
+    public boolean isProtReady() {
+        return !disposed;
+    }
+
+    @Override
+    public GSSCredential getDelegCred() {
+        return null;
+    }
+
+    /*
+     * Requests only apply before establishment, and this context is born
+     * established: they are ignored, as they are by an established
+     * Kerberos context.
+     */
+
+    @Override
+    public void requestMutualAuth(final boolean state) {
+    }
+
+    @Override
+    public void requestReplayDet(final boolean state) {
+    }
+
+    @Override
+    public void requestSequenceDet(final boolean state) {
+    }
+
+    @Override
+    public void requestCredDeleg(final boolean state) {
+    }
+
+    @Override
+    public void requestAnonymity(final boolean state) {
+    }
+
+    @Override
+    public void requestConf(final boolean state) {
+    }
+
+    @Override
+    public void requestInteg(final boolean state) {
+    }
+
+    @Override
+    public void requestLifetime(final int lifetime) {
+    }
+
+    @Override
+    public void setChannelBinding(final ChannelBinding cb) throws GSSException {
+        throw unavailable();
+    }
+
+    @Override
+    public byte[] initSecContext(final byte[] inputBuf, final int offset, final int len)
+            throws GSSException {
+        throw unavailable();
+    }
+
+    @Deprecated
+    @Override
+    public int initSecContext(final InputStream inStream, final OutputStream outStream)
+            throws GSSException {
+        throw unavailable();
+    }
+
+    @Override
+    public byte[] acceptSecContext(final byte[] inToken, final int offset, final int len)
+            throws GSSException {
+        throw unavailable();
+    }
+
+    @Deprecated
+    @Override
+    public void acceptSecContext(final InputStream inStream, final OutputStream outStream)
+            throws GSSException {
+        throw unavailable();
+    }
+
+    @Deprecated
+    @Override
+    public void wrap(final InputStream inStream, final OutputStream outStream,
+            final MessageProp msgProp) throws GSSException {
+        throw unavailable();
+    }
+
+    @Deprecated
+    @Override
+    public void unwrap(final InputStream inStream, final OutputStream outStream,
+            final MessageProp msgProp) throws GSSException {
+        throw unavailable();
+    }
+
+    @Deprecated
+    @Override
+    public void getMIC(final InputStream inStream, final OutputStream outStream,
+            final MessageProp msgProp) throws GSSException {
+        throw unavailable();
+    }
+
+    @Deprecated
+    @Override
+    public void verifyMIC(final InputStream tokStream, final InputStream msgStream,
+            final MessageProp msgProp) throws GSSException {
+        throw unavailable();
+    }
+
+    @Override
+    public byte[] export() throws GSSException {
+        throw unavailable();
+    }
+
+    /*
+     * Helpers shared with SessionResumption and ResumptionTicket.
+     */
+
+    static byte[] random(final int size) {
+        final byte[] bytes = new byte[size];
+        RANDOM.nextBytes(bytes);
+        return bytes;
+    }
+
+    static byte[] hmac(final byte[] key, final byte[]... parts) throws GSSException {
+        try {
+            final Mac mac = Mac.getInstance(HMAC);
+            mac.init(new SecretKeySpec(key, HMAC));
+            for (final byte[] part : parts) {
+                mac.update(part);
+            }
+            return mac.doFinal();
+        } catch (final GeneralSecurityException ex) {
+            throw failure(ex);
+        }
+    }
+
+    static byte[] label(final String label) {
+        return ("dossierbox resume " + label).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    static GSSException failure(final Exception cause) {
+        final GSSException ex = new GSSException(GSSException.FAILURE, 0, cause.getMessage());
+        ex.initCause(cause);
+        return ex;
+    }
+
+    private void checkOpen() throws GSSException {
+        if (disposed) {
+            throw new GSSException(GSSException.NO_CONTEXT);
+        }
+    }
+
+    private static byte[] mic(final Mac mac, final byte[] sequence, final byte[] message,
+            final int offset, final int length) {
+        mac.update(sequence, 0, SEQUENCE_SIZE);
+        mac.update(message, offset, length);
+        return mac.doFinal();
+    }
+
+    private static GCMParameterSpec iv(final long sequence) {
+        return new GCMParameterSpec(TAG_BITS, ByteBuffer.allocate(12).putLong(4, sequence).array());
+    }
+
+    private static GSSException unavailable() {
+        return new GSSException(GSSException.UNAVAILABLE);
+    }
+
+    private static Oid oid(final String value) {
+        try {
+            return new Oid(value);
+        } catch (final GSSException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package JGSSSecureAssociation;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import org.ietf.jgss.GSSContext;
+import org.ietf.jgss.GSSException;
+
+/**
+ * Client side of session resumption (see SessionResumption): what the
+ * client of an established session keeps, from requestResumption(), to
+ * open a new session with JGSSSecureAssociation.resume() after losing the
+ * connection, in one round trip and without the KDC.
+ *
+ * Holds the secret shared with the service, so it must be kept as
+ * carefully as a Kerberos ticket and its session key.
+ */
+public final class ResumptionTicket {
+
+    private final long expiry;
+    private final long sessionExpiry;
+    private final byte[] secret;
+    private final byte[] ticket;
+    private final String client;
+    private final String service;
+
+    private ResumptionTicket(final long expiry, final long sessionExpiry, final byte[] secret,
+            final byte[] ticket, final String client, final String service) {
+        this.expiry = expiry;
+        this.sessionExpiry = sessionExpiry;
+        this.secret = secret;
+        this.ticket = ticket;
+        this.client = client;
+        this.service = service;
+    }
+
+    /**
+     * Reads the grant unwrapped from the session with the given context.
+     */
+    static ResumptionTicket fromGrant(final byte[] grant, final GSSContext context)
+            throws GSSException {
+        if (grant.length <= 16 + ResumedContext.SECRET_SIZE) {
+            throw new GSSException(GSSException.DEFECTIVE_TOKEN);
+        }
+        final ByteBuffer buffer = ByteBuffer.wrap(grant);
+        final long expiry = buffer.getLong();
+        final long sessionExpiry = buffer.getLong();
+        final byte[] secret = new byte[ResumedContext.SECRET_SIZE];
+        buffer.get(secret);
+        final byte[] ticket = new byte[buffer.remaining()];
+        buffer.get(ticket);
+        return new ResumptionTicket(expiry, sessionExpiry, secret, ticket,
+                context.getSrcName().toString(), context.getTargName().toString());
+    }
+
+    /**
+     * @return the time (epoch milliseconds) after which the service no
+     *         longer accepts the ticket
+     */
+    public long getExpiry() {
+        return expiry;
+    }
+
+    public boolean isExpired() {
+        return System.currentTimeMillis() > expiry;
+    }
+
+    public String getService() {
+        return service;
+    }
+
+    byte[] request(final byte[] clientNonce) throws GSSException {
+        return ByteBuffer.allocate(SessionResumption.MAGIC.length + clientNonce.length + 2
+                + ticket.length + 32)
+                .put(SessionResumption.MAGIC).put(clientNonce)
+                .putShort((short) ticket.length).put(ticket)
+                .put(SessionResumption.requestProof(secret, clientNonce, ticket)).array();
+    }
+
+    /**
+     * Checks the answer of the service to request(clientNonce) and creates
+     * the resumed context.
+     */
+    ResumedContext resumed(final byte[] clientNonce, final byte[] answer, final int offset,
+            final int length) throws GSSException {
+        final int nonceEnd = SessionResumption.MAGIC.length + ResumedContext.NONCE_SIZE;
+        if (length != nonceEnd + 32
+                || !SessionResumption.hasMagic(answer, offset, length)) {
+            throw new GSSException(GSSException.DEFECTIVE_TOKEN);
+        }
+        final byte[] serverNonce = Arrays.copyOfRange(answer,
+                offset + SessionResumption.MAGIC.length, offset + nonceEnd);
+        final byte[] proof = Arrays.copyOfRange(answer, offset + nonceEnd, offset + length);
+        if (!MessageDigest.isEqual(proof,
+                SessionResumption.answerProof(secret, clientNonce, serverNonce))) {
+            // Not the service that issued the ticket
+            throw new GSSException(GSSException.BAD_MIC);
+        }
+        return new ResumedContext(true, secret, clientNonce, serverNonce,
+                client, service, sessionExpiry, null);
+    }
+}
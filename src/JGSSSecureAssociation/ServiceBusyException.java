@@ -0,0 +1,26 @@
+package JGSSSecureAssociation;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the acceptor answers with a busy frame instead of a context
+ * token: it is overloaded and refused the session before reading the
+ * first token (see JGSSSecureAssociation.sendBusy()). The connection is
+ * closed after the frame; the client may try again on a new one after
+ * getRetryAfterMillis().
+ */
+public class ServiceBusyException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int retryAfterMillis;
+
+    public ServiceBusyException(final int retryAfterMillis) {
+        super("Service busy, retry after " + retryAfterMillis + " ms");
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    public int getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+}
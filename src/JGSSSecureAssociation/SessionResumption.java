@@ -0,0 +1,208 @@
+package JGSSSecureAssociation;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import org.ietf.jgss.GSSContext;
+import org.ietf.jgss.GSSException;
+
+/**
+ * Acceptor side of session resumption: issues resumption tickets to the
+ * clients of established sessions, and accepts them back from clients
+ * that reconnect, giving them an established ResumedContext after a
+ * single round trip instead of a new Kerberos handshake. Set on the
+ * acceptor with JGSSSecureAssociation.setResumption(); the client side is
+ * ResumptionTicket.
+ *
+ * A ticket grant, sent wrapped over the issuing session, holds:
+ *
+ *    expiry (8 bytes, epoch milliseconds) | session expiry (8) | secret (32) | ticket
+ *
+ * The session expiry is the end of the Kerberos context the session was
+ * first established with, or the expiry of its first ticket when the
+ * mechanism does not tell (the one of the JDK reports an indefinite
+ * lifetime). Resumed sessions keep it as their own, and no ticket outlives
+ * it, so resuming again and again never extends a session past it. The ticket is opaque to the client: both
+ * expiries, the secret and the names of the session, sealed with AES-GCM
+ * under a key that never leaves this object (so tickets die with the
+ * process). To resume, the client
+ * sends, as its first token:
+ *
+ *    MAGIC | client nonce (16) | ticket length (2) | ticket | HMAC
+ *
+ * where the HMAC proves knowledge of the secret, and the acceptor answers
+ *
+ *    MAGIC | server nonce (16) | HMAC
+ *
+ * proving it in turn. MAGIC can not start an initial GSS token (those
+ * start with 0x60), so both kinds of first token share the framing.
+ */
+public final class SessionResumption {
+
+    static final byte[] MAGIC = {'R', 'S', 'M', '1'};
+
+    private static final int IV_SIZE = 12;
+    private static final int TAG_BITS = 128;
+    private static final int MAC_SIZE = 32;
+
+    private final SecretKeySpec ticketKey = new SecretKeySpec(
+            ResumedContext.random(ResumedContext.SECRET_SIZE), "AES");
+    private final long lifetimeMillis;
+
+    /**
+     * @param lifetimeMillis time a ticket can be used after it is issued,
+     *        if the session does not expire before
+     */
+    public SessionResumption(final long lifetimeMillis) {
+        this.lifetimeMillis = lifetimeMillis;
+    }
+
+    /**
+     * @return true if the token starts with MAGIC, as resume requests and
+     *         answers do, rather than being an initial context token
+     */
+    static boolean hasMagic(final byte[] token, final int offset, final int length) {
+        return length >= MAGIC.length
+                && Arrays.equals(Arrays.copyOfRange(token, offset, offset + MAGIC.length), MAGIC);
+    }
+
+    /**
+     * @return a grant for the client of the given established context, to
+     *         be sent wrapped
+     */
+    byte[] grant(final GSSContext context) throws GSSException {
+        final long now = System.currentTimeMillis();
+        final long sessionExpiry = sessionExpiry(context, now);
+        final long expiry = Math.min(now + lifetimeMillis, sessionExpiry);
+        final byte[] secret = ResumedContext.random(ResumedContext.SECRET_SIZE);
+        final byte[] client = context.getSrcName().toString().getBytes(StandardCharsets.UTF_8);
+        final byte[] service = context.getTargName().toString().getBytes(StandardCharsets.UTF_8);
+
+        final ByteBuffer sealed = ByteBuffer.allocate(16 + secret.length + 4 + client.length + service.length);
+        sealed.putLong(expiry).putLong(sessionExpiry).put(secret)
+                .putShort((short) client.length).put(client)
+                .putShort((short) service.length).put(service);
+        final byte[] ticket = seal(sealed.array());
+        Metrics.RESUMPTION_TICKETS.increment();
+
+        return ByteBuffer.allocate(16 + secret.length + ticket.length)
+                .putLong(expiry).putLong(sessionExpiry).put(secret).put(ticket).array();
+    }
+
+    /**
+     * @return the session expiry (see above) for a ticket issued now over
+     *         the given context: the one it carries if resumed
+     */
+    private long sessionExpiry(final GSSContext context, final long now) {
+        if (context instanceof ResumedContext) {
+            return ((ResumedContext) context).expiry();
+        }
+        final int lifetime = context.getLifetime();
+        if (lifetime == GSSContext.INDEFINITE_LIFETIME) {
+            return now + lifetimeMillis;
+        }
+        return now + lifetime * 1000L;
+    }
+
+    /**
+     * Checks a resume request and creates the context it resumes, whose
+     * outputToken() is the answer for the client.
+     *
+     * @throws GSSException if the ticket is forged, expired or not proven
+     */
+    ResumedContext accept(final byte[] token, final int offset, final int length)
+            throws GSSException {
+        try {
+            final ByteBuffer request = ByteBuffer.wrap(token, offset, length);
+            request.position(request.position() + MAGIC.length);
+            final byte[] clientNonce = new byte[ResumedContext.NONCE_SIZE];
+            request.get(clientNonce);
+            final byte[] ticket = new byte[request.getShort() & 0xFFFF];
+            request.get(ticket);
+            final byte[] proof = new byte[MAC_SIZE];
+            request.get(proof);
+            // Every byte is then covered by the proof or checked, so the
+            // replay cache sees a replay as the same token
+            if (request.hasRemaining()) {
+                throw new GSSException(GSSException.DEFECTIVE_TOKEN);
+            }
+
+            final ByteBuffer contents = ByteBuffer.wrap(open(ticket));
+            final long expiry = contents.getLong();
+            final long sessionExpiry = contents.getLong();
+            final byte[] secret = new byte[ResumedContext.SECRET_SIZE];
+            contents.get(secret);
+            final String client = string(contents);
+            final String service = string(contents);
+
+            if (System.currentTimeMillis() > expiry) {
+                throw new GSSException(GSSException.CREDENTIALS_EXPIRED);
+            }
+            if (!MessageDigest.isEqual(proof, requestProof(secret, clientNonce, ticket))) {
+                throw new GSSException(GSSException.BAD_MIC);
+            }
+
+            final byte[] serverNonce = ResumedContext.random(ResumedContext.NONCE_SIZE);
+            final byte[] answer = ByteBuffer.allocate(MAGIC.length + serverNonce.length + MAC_SIZE)
+                    .put(MAGIC).put(serverNonce)
+                    .put(answerProof(secret, clientNonce, serverNonce)).array();
+            return new ResumedContext(false, secret, clientNonce, serverNonce,
+                    client, service, sessionExpiry, answer);
+        } catch (final BufferUnderflowException | IllegalArgumentException ex) {
+            throw new GSSException(GSSException.DEFECTIVE_TOKEN);
+        }
+    }
+
+    static byte[] requestProof(final byte[] secret, final byte[] clientNonce, final byte[] ticket)
+            throws GSSException {
+        return ResumedContext.hmac(secret, ResumedContext.label("request"), clientNonce, ticket);
+    }
+
+    static byte[] answerProof(final byte[] secret, final byte[] clientNonce,
+            final byte[] serverNonce) throws GSSException {
+        return ResumedContext.hmac(secret, ResumedContext.label("answer"), clientNonce, serverNonce);
+    }
+
+    private byte[] seal(final byte[] contents) throws GSSException {
+        final byte[] iv = ResumedContext.random(IV_SIZE);
+        try {
+            final Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.ENCRYPT_MODE, ticketKey, new GCMParameterSpec(TAG_BITS, iv));
+            cipher.updateAAD(MAGIC);
+            final byte[] sealed = cipher.doFinal(contents);
+            return ByteBuffer.allocate(iv.length + sealed.length).put(iv).put(sealed).array();
+        } catch (final GeneralSecurityException ex) {
+            throw ResumedContext.failure(ex);
+        }
+    }
+
+    private byte[] open(final byte[] ticket) throws GSSException {
+        if (ticket.length < IV_SIZE) {
+            throw new GSSException(GSSException.DEFECTIVE_TOKEN);
+        }
+        try {
+            final Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.DECRYPT_MODE, ticketKey, new GCMParameterSpec(TAG_BITS, ticket, 0, IV_SIZE));
+            cipher.updateAAD(MAGIC);
+            return cipher.doFinal(ticket, IV_SIZE, ticket.length - IV_SIZE);
+        } catch (final AEADBadTagException ex) {
+            // Forged, or issued by another process
+            throw new GSSException(GSSException.BAD_MIC);
+        } catch (final GeneralSecurityException ex) {
+            throw ResumedContext.failure(ex);
+        }
+    }
+
+    private static String string(final ByteBuffer buffer) {
+        final byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,114 @@
+package JGSSSecureAssociation;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * ReplayCache of fixed size, allocated up front: tokens (for Kerberos, the
+ * ciphertext of their authenticator) are recorded as the first 128 bits of
+ * their SHA-256 digest, in a set associative table of WAYS entries per set.
+ *
+ * A token may only be in the set picked by its digest, so a lookup scans
+ * WAYS entries. The sets are spread over STRIPES locks, and handshakes
+ * whose tokens land in different stripes never wait for each other.
+ *
+ * Entries older than the window are free for reuse. A live entry is never
+ * overwritten, since its token could then be replayed: when every entry of
+ * a set is still in the window the new token is refused instead, as a
+ * replay would be. Such refusals are counted, and the cache should have
+ * room for the handshakes of a whole window (handshakes per second times
+ * window seconds) so that they stay at zero.
+ */
+public final class StripedReplayCache implements ReplayCache {
+
+    private static final int WAYS = 8;
+    private static final int STRIPES = 64;
+
+    private final long windowMillis;
+    private final int setMask;
+    private final Object[] locks = new Object[STRIPES];
+    // Digest halves and insertion time of every entry; time 0 is a free entry
+    private final long[] high;
+    private final long[] low;
+    private final long[] times;
+
+    /**
+     * @param entries      entries of the table, rounded up to a power of two
+     *                     (at least WAYS * STRIPES)
+     * @param windowMillis time a token is kept, the clock skew of the
+     *                     mechanism
+     */
+    public StripedReplayCache(final int entries, final long windowMillis) {
+        int sets = STRIPES;
+        while (sets * WAYS < entries) {
+            sets <<= 1;
+        }
+        this.windowMillis = windowMillis;
+        this.setMask = sets - 1;
+        this.high = new long[sets * WAYS];
+        this.low = new long[sets * WAYS];
+        this.times = new long[sets * WAYS];
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    @Override
+    public boolean firstSeen(final byte[] token, final int offset, final int length) {
+        final byte[] digest = digest(token, offset, length);
+        final long h = toLong(digest, 0);
+        final long l = toLong(digest, 8);
+        final int set = (int) l & setMask;
+        final int first = set * WAYS;
+        final long now = System.currentTimeMillis();
+
+        // Sets are striped by their low bits, so neighbouring sets do not
+        // share a lock
+        synchronized (locks[set & (STRIPES - 1)]) {
+            int free = -1;
+            for (int i = first; i < first + WAYS; i++) {
+                if (!isLive(i, now)) {
+                    // Free or expired, so it can be reused
+                    if (free < 0) {
+                        free = i;
+                    }
+                } else if (high[i] == h && low[i] == l) {
+                    Metrics.REPLAY_CACHE_HITS.increment();
+                    return false;
+                }
+            }
+            if (free < 0) {
+                Metrics.REPLAY_CACHE_FULL.increment();
+                return false;
+            }
+            high[free] = h;
+            low[free] = l;
+            times[free] = now;
+        }
+        Metrics.REPLAY_CACHE_MISSES.increment();
+        return true;
+    }
+
+    private boolean isLive(final int entry, final long now) {
+        return times[entry] != 0 && now - times[entry] < windowMillis;
+    }
+
+    private static byte[] digest(final byte[] token, final int offset, final int length) {
+        try {
+            final MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            sha.update(token, offset, length);
+            return sha.digest();
+        } catch (final NoSuchAlgorithmException ex) {
+            // Every Java platform is required to provide SHA-256
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static long toLong(final byte[] bytes, final int offset) {
+        long value = 0;
+        for (int i = offset; i < offset + 8; i++) {
+            value = (value << 8) | (bytes[i] & 0xFF);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,223 @@
+package JGSSSecureAssociation;
+
+import java.io.PrintStream;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous trace of session events, one line per event:
+ *
+ *    2024-05-02T10:15:30.123Z conn=12 event=token_in size=469 detail=acceptSecContext
+ *
+ * Threads that record an event only claim a slot of a preallocated ring
+ * buffer and fill it in; a background thread formats the events and
+ * writes them to System.out in batches, taking the console lock once per
+ * batch instead of once per line. Formatting and console contention stay
+ * off the threads that serve the sessions.
+ *
+ * Configured with system properties:
+ *
+ *    jgss.trace         off, session (connections and contexts) or
+ *                       tokens (every token as well, the default)
+ *    jgss.trace.buffer  slots of the ring buffer, rounded up to a power
+ *                       of two (default 8192)
+ *    jgss.trace.policy  what to do when the buffer is full: drop the new
+ *                       event and count it (drop, the default), or wait
+ *                       for room (block)
+ *
+ * Callers pass constant text and the numbers apart, so a disabled trace
+ * costs one comparison and allocates nothing, and an enabled one
+ * allocates nothing on the calling thread either.
+ */
+public final class Trace {
+
+    public static final int OFF = 0;
+    public static final int SESSION = 1;
+    public static final int TOKENS = 2;
+
+    // Events written out per batch at most
+    private static final int BATCH = 256;
+    private static final long IDLE_PARK_NANOS = 1000000;
+
+    private static volatile int level = parse(property("jgss.trace", "tokens"));
+    private static final boolean BLOCK = "block".equalsIgnoreCase(property("jgss.trace.policy", "drop"));
+
+    private static final int CAPACITY = ceilingPowerOfTwo(
+            Integer.parseInt(property("jgss.trace.buffer", "8192")));
+    private static final int MASK = CAPACITY - 1;
+
+    // Slot i holds event number n (n & MASK == i) once published[i] == n + 1
+    private static final AtomicLongArray PUBLISHED = new AtomicLongArray(CAPACITY);
+    private static final long[] TIMES = new long[CAPACITY];
+    private static final long[] CONNECTIONS = new long[CAPACITY];
+    private static final TraceEvent[] EVENTS = new TraceEvent[CAPACITY];
+    private static final long[] VALUES = new long[CAPACITY];
+    private static final Object[] DETAILS = new Object[CAPACITY];
+
+    // Next event number to claim, and next one to write out
+    private static final AtomicLong TAIL = new AtomicLong();
+    private static volatile long head;
+
+    private static final Metrics.Counter DROPPED = Metrics.counter("jgss_trace_dropped_total",
+            "Trace events dropped because the trace buffer was full");
+
+    private static Thread writer;
+
+    private Trace() {
+    }
+
+    public static void setLevel(final int newLevel) {
+        level = newLevel;
+    }
+
+    public static boolean enabled(final int traceLevel) {
+        return level >= traceLevel;
+    }
+
+    public static boolean enabled(final TraceEvent event) {
+        return level >= event.level;
+    }
+
+    public static void event(final TraceEvent event, final long connection, final long value) {
+        event(event, connection, value, null);
+    }
+
+    /**
+     * Records an event of the given connection if its level is enabled.
+     *
+     * @param detail written out with String.valueOf(), on the trace thread
+     */
+    public static void event(final TraceEvent event, final long connection, final long value,
+            final Object detail) {
+        if (level < event.level) {
+            return;
+        }
+        final long n = claim();
+        if (n < 0) {
+            DROPPED.increment();
+            return;
+        }
+        final int slot = (int) n & MASK;
+        TIMES[slot] = System.currentTimeMillis();
+        CONNECTIONS[slot] = connection;
+        EVENTS[slot] = event;
+        VALUES[slot] = value;
+        DETAILS[slot] = detail;
+        PUBLISHED.set(slot, n + 1);
+    }
+
+    /**
+     * Waits until every event recorded so far has been written out.
+     */
+    public static void flush() {
+        final long tail = TAIL.get();
+        while (head < tail && writer != null) {
+            LockSupport.parkNanos(IDLE_PARK_NANOS);
+        }
+    }
+
+    /**
+     * @return the number of the claimed slot, or -1 if the buffer is full
+     *         and the policy is to drop
+     */
+    private static long claim() {
+        startWriter();
+        while (true) {
+            final long tail = TAIL.get();
+            if (tail - head >= CAPACITY) {
+                if (!BLOCK) {
+                    return -1;
+                }
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            } else if (TAIL.compareAndSet(tail, tail + 1)) {
+                return tail;
+            }
+        }
+    }
+
+    private static void startWriter() {
+        if (writer != null) {
+            return;
+        }
+        synchronized (Trace.class) {
+            if (writer != null) {
+                return;
+            }
+            final Thread thread = new Thread(Trace::writeEvents, "jgss-trace");
+            thread.setDaemon(true);
+            thread.start();
+            try {
+                Runtime.getRuntime().addShutdownHook(new Thread(Trace::flush, "jgss-trace-flush"));
+            } catch (final SecurityException ex) {
+                // Events still queued at exit are lost
+            }
+            writer = thread;
+        }
+    }
+
+    private static void writeEvents() {
+        final StringBuilder batch = new StringBuilder(BATCH * 96);
+        while (true) {
+            long next = head;
+            int count = 0;
+            while (count < BATCH) {
+                final int slot = (int) next & MASK;
+                if (PUBLISHED.get(slot) != next + 1) {
+                    break;
+                }
+                format(batch, slot);
+                DETAILS[slot] = null;
+                next++;
+                count++;
+            }
+            if (count == 0) {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+                continue;
+            }
+            head = next;
+            final PrintStream out = System.out;
+            out.print(batch);
+            out.flush();
+            batch.setLength(0);
+        }
+    }
+
+    private static void format(final StringBuilder line, final int slot) {
+        final TraceEvent event = EVENTS[slot];
+        line.append(Instant.ofEpochMilli(TIMES[slot]))
+                .append(" conn=").append(CONNECTIONS[slot])
+                .append(" event=").append(event.label);
+        if (event.valueName != null) {
+            line.append(' ').append(event.valueName).append('=').append(VALUES[slot]);
+        }
+        if (DETAILS[slot] != null) {
+            line.append(" detail=").append(DETAILS[slot]);
+        }
+        line.append('\n');
+    }
+
+    static int parse(final String value) {
+        switch (value.trim().toLowerCase()) {
+            case "off":
+                return OFF;
+            case "session":
+                return SESSION;
+            default:
+                return TOKENS;
+        }
+    }
+
+    private static int ceilingPowerOfTwo(final int value) {
+        return Math.max(2, Integer.highestOneBit(Math.max(1, value - 1)) << 1);
+    }
+
+    private static String property(final String name, final String defaultValue) {
+        try {
+            return System.getProperty(name, defaultValue);
+        } catch (final SecurityException ex) {
+            return defaultValue;
+        }
+    }
+}
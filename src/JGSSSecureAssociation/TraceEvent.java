@@ -0,0 +1,27 @@
+package JGSSSecureAssociation;
+
+/**
+ * Kinds of session event written by Trace, with the trace level they
+ * belong to and the name of the number they carry (null if none).
+ */
+public enum TraceEvent {
+
+    CONNECTED(Trace.SESSION, "connected", null),
+    ESTABLISHED(Trace.SESSION, "established", "tokens"),
+    TOKEN_IN(Trace.TOKENS, "token_in", "size"),
+    TOKEN_OUT(Trace.TOKENS, "token_out", "size"),
+    MESSAGE(Trace.TOKENS, "message", "length"),
+    STREAM_SENT(Trace.TOKENS, "stream_sent", "bytes"),
+    STREAM_RECEIVED(Trace.TOKENS, "stream_received", "bytes"),
+    CLOSED(Trace.SESSION, "closed", null);
+
+    final int level;
+    final String label;
+    final String valueName;
+
+    TraceEvent(final int level, final String label, final String valueName) {
+        this.level = level;
+        this.label = label;
+        this.valueName = valueName;
+    }
+}
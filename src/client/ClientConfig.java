@@ -0,0 +1,34 @@
+package client;
+
+/**
+ * Deadlines of the client, which are not given on the command line. They
+ * are read from "client.*" system properties (for example
+ * -Dclient.readTimeout=5000), as ServiceConfig does for the service, so
+ * they can change without recompiling the client.
+ */
+final class ClientConfig {
+
+  static private final String PREFIX = "client.";
+
+  // Plazos de cada fase de una sesión, en milisegundos (0: sin plazo):
+  // conectar con el servicio, establecer el contexto y recibir el MIC de
+  // cada mensaje enviado
+  final int connectTimeoutMillis;
+  final int handshakeTimeoutMillis;
+  final int readTimeoutMillis;
+
+  private ClientConfig () {
+    this.connectTimeoutMillis = integer("connectTimeout", 10000);
+    this.handshakeTimeoutMillis = integer("handshakeTimeout", 10000);
+    this.readTimeoutMillis = integer("readTimeout", 30000);
+  }
+
+  static ClientConfig fromSystemProperties () {
+    return new ClientConfig();
+  }
+
+  static private int integer (final String name, final int defaultValue) {
+    return Integer.getInteger(PREFIX + name, defaultValue);
+  }
+
+}
@@ -0,0 +1,336 @@
+package client;
+
+import JGSSSecureAssociation.JGSSSecureAssociation;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.util.Iterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.security.auth.Subject;
+import org.ietf.jgss.GSSContext;
+import org.ietf.jgss.GSSException;
+
+/**
+ * Pool of authenticated sessions to a service, so callers that send many
+ * small messages pay for the Kerberos handshake once per session instead
+ * of once per message.
+ *
+ * Between minSize and maxSize sessions are kept established. Sessions idle
+ * for longer than maxIdleMillis are closed (down to minSize), and a session
+ * whose context is closer to expiry than renewBeforeSeconds, or that fails
+ * its health check, is replaced transparently by a new one on the next
+ * borrow. The health check of a borrow also looks, without blocking, for a
+ * close frame or the end of the connection, so sessions that the service
+ * closed while they were idle (reaped or drained) are not lent. A
+ * background thread does the eviction and keeps minSize sessions ready.
+ *
+ * The handshake of each session and the wait for the MIC of each message
+ * sent with send() have the deadlines of ClientConfig; a connection past
+ * them is closed, and its session discarded on release.
+ */
+public final class GSSSessionPool implements AutoCloseable {
+
+  static private final String CLASS_NAME = GSSSessionPool.class.getName();
+  static private final Logger LOGGER = Logger.getLogger(CLASS_NAME);
+
+  // Cada cuánto revisa el hilo de mantenimiento las sesiones inactivas
+  static private final long MAINTENANCE_PERIOD_MILLIS = 5000;
+
+  /**
+   * An established session borrowed from the pool.
+   */
+  public static final class Session {
+
+    private final Socket socket;
+    private final GSSContext context;
+    private final JGSSSecureAssociation association;
+    private volatile long lastUsed;
+
+    private Session (final Socket socket, final GSSContext context,
+            final JGSSSecureAssociation association) {
+      this.socket = socket;
+      this.context = context;
+      this.association = association;
+      this.lastUsed = System.currentTimeMillis();
+    }
+
+    public JGSSSecureAssociation association () {
+      return association;
+    }
+
+    /**
+     * Sends the message, closing the connection if its MIC does not come
+     * within client.readTimeout milliseconds.
+     */
+    private boolean send (final CharSequence message, final boolean confidentiality) {
+      final ScheduledFuture<?> reply = ClientTask.deadline(socket,
+              ClientTask.CONFIG.readTimeoutMillis);
+      try {
+        return association.send(message, confidentiality);
+      } finally {
+        ClientTask.cancel(reply);
+      }
+    }
+
+    private void close () {
+      association.close();
+      try {
+        socket.close();
+      } catch (final IOException ex) {
+        LOGGER.log(Level.FINE, "Problem at closing socket:", ex);
+      }
+    }
+  }
+
+  private final String service;
+  private final InetAddress serverIP;
+  private final int port;
+  private final int minSize;
+  private final int maxSize;
+  private final long maxIdleMillis;
+  private final int renewBeforeSeconds;
+  private final Subject subject;
+
+  // Sesiones libres, la más recientemente usada primero
+  private final LinkedBlockingDeque<Session> idle = new LinkedBlockingDeque<>();
+  // Un permiso por sesión que puede estar prestada
+  private final Semaphore available;
+  // Sesiones abiertas, prestadas o libres
+  private final AtomicInteger total = new AtomicInteger();
+  private final ScheduledExecutorService maintenance;
+  private volatile boolean closed;
+
+  /**
+   * @param subject the authenticated Subject sessions are established as,
+   *        or null to use the Subject of the calling thread
+   */
+  public GSSSessionPool (final String service, final InetAddress ip, final int port,
+          final int minSize, final int maxSize, final long maxIdleMillis,
+          final int renewBeforeSeconds, final Subject subject) {
+    if (minSize < 0 || maxSize < 1 || minSize > maxSize) {
+      throw new IllegalArgumentException("Invalid pool size " + minSize + ".." + maxSize);
+    }
+    this.service = service;
+    this.serverIP = ip;
+    this.port = port;
+    this.minSize = minSize;
+    this.maxSize = maxSize;
+    this.maxIdleMillis = maxIdleMillis;
+    this.renewBeforeSeconds = renewBeforeSeconds;
+    this.subject = subject;
+    this.available = new Semaphore(maxSize, true);
+    this.maintenance = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      final Thread thread = new Thread(runnable, "GSSSessionPool maintenance");
+      thread.setDaemon(true);
+      return thread;
+    });
+    this.maintenance.scheduleWithFixedDelay(this::maintain,
+            0, MAINTENANCE_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Takes an established, healthy session, creating one if none is idle.
+   * Blocks while maxSize sessions are already borrowed.
+   */
+  public Session borrow () throws IOException, GSSException {
+    if (closed) {
+      throw new IOException("Pool closed");
+    }
+    available.acquireUninterruptibly();
+    try {
+      Session session;
+      while ((session = idle.pollFirst()) != null) {
+        // Ya es solo de este hilo, así que se puede leer de su conexión
+        if (isHealthy(session) && !session.association.isClosedByPeer()) {
+          return session;
+        }
+        discard(session);
+      }
+      return establish();
+    } catch (IOException | GSSException | RuntimeException ex) {
+      available.release();
+      throw ex;
+    }
+  }
+
+  /**
+   * Takes a newly established session instead of an idle one, which the
+   * service may have closed like the session just lost.
+   */
+  private Session borrowNew () throws IOException, GSSException {
+    if (closed) {
+      throw new IOException("Pool closed");
+    }
+    available.acquireUninterruptibly();
+    try {
+      // La nueva ocupa el sitio de la libre más antigua, para no pasar de maxSize
+      final Session stale = idle.pollLast();
+      if (stale != null) {
+        discard(stale);
+      }
+      return establish();
+    } catch (IOException | GSSException | RuntimeException ex) {
+      available.release();
+      throw ex;
+    }
+  }
+
+  /**
+   * Gives back a borrowed session. Sessions that failed are closed.
+   */
+  public void release (final Session session) {
+    try {
+      if (closed || !isHealthy(session)) {
+        discard(session);
+      } else {
+        session.lastUsed = System.currentTimeMillis();
+        idle.offerFirst(session);
+      }
+    } finally {
+      available.release();
+    }
+  }
+
+  /**
+   * Sends one message over a pooled session. If the service closed the
+   * session before serving the message (see
+   * JGSSSecureAssociation.lastSendUnserved()), the message is sent once
+   * more over a new session.
+   *
+   * @return true once the MIC of the message has been verified
+   */
+  public boolean send (final CharSequence message, final boolean confidentiality)
+          throws IOException, GSSException {
+    final Session session = borrow();
+    final boolean unserved;
+    try {
+      if (session.send(message, confidentiality)) {
+        return true;
+      }
+      unserved = session.association.lastSendUnserved();
+    } finally {
+      release(session);
+    }
+    if (!unserved) {
+      return false;
+    }
+    final Session fresh = borrowNew();
+    try {
+      return fresh.send(message, confidentiality);
+    } finally {
+      release(fresh);
+    }
+  }
+
+  /**
+   * Closes the idle sessions and stops the maintenance thread. Borrowed
+   * sessions are closed when they are released.
+   */
+  @Override
+  public void close () {
+    closed = true;
+    maintenance.shutdownNow();
+    Session session;
+    while ((session = idle.pollFirst()) != null) {
+      discard(session);
+    }
+  }
+
+  private boolean isHealthy (final Session session) {
+    if (!session.association.isOpen() || session.socket.isClosed()
+            || !session.context.isEstablished()) {
+      return false;
+    }
+    final int lifetime = session.context.getLifetime();
+    return lifetime == GSSContext.INDEFINITE_LIFETIME || lifetime > renewBeforeSeconds;
+  }
+
+  private void discard (final Session session) {
+    total.decrementAndGet();
+    session.close();
+  }
+
+  private Session establish () throws IOException, GSSException {
+    total.incrementAndGet();
+    try {
+      if (subject == null) {
+        return connect();
+      }
+      return Subject.doAs(subject, (PrivilegedExceptionAction<Session>) this::connect);
+    } catch (final PrivilegedActionException ex) {
+      total.decrementAndGet();
+      if (ex.getException() instanceof GSSException) {
+        throw (GSSException) ex.getException();
+      }
+      throw (IOException) ex.getException();
+    } catch (IOException | GSSException | RuntimeException ex) {
+      total.decrementAndGet();
+      throw ex;
+    }
+  }
+
+  private Session connect () throws IOException, GSSException {
+    final GSSContext context = ClientTask.createContext(service);
+    final SocketChannel channel = ClientTask.connect(serverIP, port);
+    final Socket socket = channel.socket();
+    try {
+      final JGSSSecureAssociation association = new JGSSSecureAssociation(context);
+      final ScheduledFuture<?> handshake = ClientTask.deadline(channel,
+              ClientTask.CONFIG.handshakeTimeoutMillis);
+      try {
+        association.init(channel, true, true);
+      } finally {
+        ClientTask.cancel(handshake);
+      }
+      if (!context.isEstablished()) {
+        throw new IOException("Could not establish a context with " + service);
+      }
+      return new Session(socket, context, association);
+    } catch (IOException | GSSException | RuntimeException ex) {
+      socket.close();
+      context.dispose();
+      throw ex;
+    }
+  }
+
+  /**
+   * Closes sessions idle for too long or close to expiry, then refills the
+   * pool up to minSize.
+   */
+  private void maintain () {
+    final long now = System.currentTimeMillis();
+    final Iterator<Session> sessions = idle.descendingIterator();
+    while (sessions.hasNext()) {
+      final Session session = sessions.next();
+      final boolean expiredIdle = total.get() > minSize
+              && now - session.lastUsed > maxIdleMillis;
+      if ((expiredIdle || !isHealthy(session)) && idle.remove(session)) {
+        discard(session);
+      }
+    }
+    // Each new session takes a permit while it is established, so the
+    // refill never pushes the pool over maxSize
+    while (!closed && total.get() < minSize && available.tryAcquire()) {
+      try {
+        idle.offerLast(establish());
+      } catch (IOException | GSSException ex) {
+        LOGGER.log(Level.WARNING, "Could not refill the session pool:", ex);
+        return;
+      } finally {
+        available.release();
+      }
+    }
+  }
+
+}
@@ -0,0 +1,164 @@
+package client;
+
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.security.auth.RefreshFailedException;
+import javax.security.auth.Subject;
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.auth.kerberos.KerberosTicket;
+import javax.security.auth.login.LoginContext;
+import javax.security.auth.login.LoginException;
+import org.ietf.jgss.GSSContext;
+import org.ietf.jgss.GSSException;
+
+/**
+ * Keeps the tickets of a logged in Subject valid for a client that runs
+ * many sessions (see the batch mode of ClientLogin, or GSSSessionPool).
+ *
+ * The Kerberos mechanism stores every service ticket it gets in the
+ * Subject and reuses it while it is current, so only the first context
+ * with each service goes to the KDC. This class fetches the tickets of the
+ * known services before the first session needs them, and renews every
+ * ticket in the background once RENEW_AT of its lifetime has passed: a
+ * renewable ticket is refreshed in place, any other is dropped and fetched
+ * again (the TGT with a new login of the same Subject, which must not
+ * prompt, e.g. with a keytab). Sessions then never wait for the KDC.
+ */
+public final class ServiceTickets implements AutoCloseable {
+
+  static private final String CLASS_NAME = ServiceTickets.class.getName();
+  static private final Logger LOGGER = Logger.getLogger(CLASS_NAME);
+
+  // Parte de la vida de un tique tras la que se renueva
+  static private final double RENEW_AT = 0.8;
+  // Segundos entre revisiones cuando ningún tique caduca antes
+  static private final long IDLE_CHECK_SECONDS = 60;
+
+  private final String loginEntry;
+  private final Subject subject;
+  private final CallbackHandler handler;
+  private final String[] services;
+  private final ScheduledExecutorService renewer;
+
+  /**
+   * @param loginEntry JAAS entry used to log the Subject in again when
+   *                   its TGT can not be refreshed
+   * @param services   names of the services whose tickets are fetched in
+   *                   advance
+   */
+  public ServiceTickets (final String loginEntry, final Subject subject,
+          final CallbackHandler handler, final String... services) {
+    this.loginEntry = loginEntry;
+    this.subject = subject;
+    this.handler = handler;
+    this.services = services.clone();
+    this.renewer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      final Thread thread = new Thread(runnable, "client-tickets");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * Fetches the tickets of the services now, and schedules their renewal.
+   */
+  public void start () {
+    renew();
+  }
+
+  @Override
+  public void close () {
+    renewer.shutdownNow();
+  }
+
+  private void renew () {
+    long next = IDLE_CHECK_SECONDS;
+    try {
+      final long now = System.currentTimeMillis();
+      for (final KerberosTicket ticket : tickets()) {
+        if (now >= renewalTime(ticket) && !refresh(ticket)) {
+          subject.getPrivateCredentials().remove(ticket);
+        }
+      }
+      if (!hasCurrentTgt()) {
+        new LoginContext(loginEntry, subject, handler).login();
+      }
+      prefetch();
+      for (final KerberosTicket ticket : tickets()) {
+        next = Math.min(next, (renewalTime(ticket) - now) / 1000);
+      }
+    } catch (final LoginException | PrivilegedActionException | RuntimeException ex) {
+      // También las excepciones no comprobadas: si escaparan, el
+      // ejecutor descartaría la tarea y no se programaría otro intento
+      LOGGER.log(Level.WARNING, "Cannot renew tickets:", ex);
+    }
+    renewer.schedule(this::renew, Math.max(1, next), TimeUnit.SECONDS);
+  }
+
+  /**
+   * Starts a context with every service, so the mechanism gets its ticket
+   * (if the Subject has no current one) and stores it in the Subject. The
+   * token is never sent.
+   */
+  // doAsPrivileged está marcado para eliminación desde Java 17, pero
+  // sigue siendo lo que limita la acción a los permisos del Subject bajo
+  // el gestor de seguridad (etc/client.policy), como en ClientLogin
+  @SuppressWarnings("removal")
+  private void prefetch () throws PrivilegedActionException {
+    Subject.doAsPrivileged(subject, new PrivilegedExceptionAction<Void>() {
+      @Override
+      public Void run () throws GSSException {
+        for (final String service : services) {
+          final GSSContext context = ClientTask.createContext(service);
+          try {
+            context.initSecContext(new byte[0], 0, 0);
+          } finally {
+            context.dispose();
+          }
+        }
+        return null;
+      }
+    }, null);
+  }
+
+  private List<KerberosTicket> tickets () {
+    return new ArrayList<>(subject.getPrivateCredentials(KerberosTicket.class));
+  }
+
+  private boolean hasCurrentTgt () {
+    for (final KerberosTicket ticket : tickets()) {
+      if (ticket.getServer().getName().startsWith("krbtgt/") && ticket.isCurrent()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  static private boolean refresh (final KerberosTicket ticket) {
+    if (!ticket.isRenewable()) {
+      return false;
+    }
+    try {
+      ticket.refresh();
+      return true;
+    } catch (final RefreshFailedException ex) {
+      // Pasado su renewTill: se pide de nuevo
+      LOGGER.log(Level.FINE, "Cannot refresh ticket:", ex);
+      return false;
+    }
+  }
+
+  static private long renewalTime (final KerberosTicket ticket) {
+    final long start = ticket.getStartTime() != null
+            ? ticket.getStartTime().getTime() : ticket.getAuthTime().getTime();
+    return start + (long) ((ticket.getEndTime().getTime() - start) * RENEW_AT);
+  }
+
+}
@@ -0,0 +1,175 @@
+package service;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import JGSSSecureAssociation.Metrics;
+import org.ietf.jgss.GSSContext;
+import org.ietf.jgss.GSSCredential;
+import org.ietf.jgss.GSSException;
+import org.ietf.jgss.GSSManager;
+import org.ietf.jgss.MessageProp;
+import org.ietf.jgss.Oid;
+
+/**
+ * Acceptor credential of the service, acquired once from the Subject of
+ * ServiceLogin and shared by every connection, so the mechanism does not
+ * look up the service key in the Subject on each accept.
+ *
+ * A background thread acquires it again before it expires, or every
+ * dossierbox.credentialRefresh seconds if it does not expire (a keytab or
+ * a stored key), so keys renewed in the Subject are picked up. The thread
+ * is created from start(), inside Subject.doAsPrivileged, and inherits the
+ * access control context with the service credentials.
+ *
+ * start() also runs a handshake of the service with itself, so the JGSS
+ * provider and the ciphers are loaded and initialized before the first
+ * client arrives.
+ */
+final class AcceptorCredential {
+
+  static private final String CLASS_NAME = AcceptorCredential.class.getName();
+  static private final Logger LOGGER = Logger.getLogger(CLASS_NAME);
+
+  static private final Oid KRB5 = krb5();
+
+  // Parte de la vida restante tras la que se renueva la credencial
+  static private final double REFRESH_AT = 0.8;
+
+  private final ServiceConfig config;
+  // Credencial compartida; null mientras no se obtenga (el mecanismo usa
+  // entonces las del Subject en cada conexión)
+  private volatile GSSCredential credential;
+  private ScheduledExecutorService refresher;
+
+  AcceptorCredential (final ServiceConfig config) {
+    this.config = config;
+  }
+
+  /**
+   * @return the shared credential, or null if it could not be acquired
+   */
+  GSSCredential get () {
+    return credential;
+  }
+
+  /**
+   * Acquires the credential, warms up the mechanism with it and schedules
+   * its refresh. Must be called as the service Subject, before the port
+   * is opened.
+   */
+  synchronized void start () {
+    if (refresher != null) {
+      return;
+    }
+    refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      final Thread thread = new Thread(runnable, "dossierbox-credential");
+      thread.setDaemon(true);
+      return thread;
+    });
+    refresh();
+    if (credential != null) {
+      warmUp();
+    }
+    Metrics.gauge("dossierbox_credential_remaining_seconds",
+            "Accept lifetime left of the shared acceptor credential",
+            this::remainingLifetime);
+  }
+
+  private void refresh () {
+    long delay = config.credentialRefreshSeconds;
+    try {
+      final GSSCredential acquired = GSSManager.getInstance().createCredential(null,
+              GSSCredential.INDEFINITE_LIFETIME, KRB5, GSSCredential.ACCEPT_ONLY);
+      credential = acquired;
+      final int lifetime = acquired.getRemainingAcceptLifetime(KRB5);
+      if (lifetime != GSSCredential.INDEFINITE_LIFETIME) {
+        delay = Math.max(1, Math.min(delay, (long) (lifetime * REFRESH_AT)));
+      }
+      LOGGER.log(Level.FINE, "Acceptor credential acquired for {0}", acquired.getName());
+    } catch (final GSSException ex) {
+      // Se mantiene la anterior, si la hay; reintento en el próximo ciclo
+      LOGGER.log(Level.WARNING, "Cannot acquire acceptor credential:", ex);
+    }
+    refresher.schedule(this::refresh, delay, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Establishes a context of the service with itself and exchanges a
+   * wrap and a MIC token over it. Needs a TGT in the Subject (the default
+   * of Krb5LoginModule); without one, only the credential is warmed.
+   */
+  private void warmUp () {
+    final long start = System.nanoTime();
+    final GSSManager manager = GSSManager.getInstance();
+    GSSContext initiator = null;
+    GSSContext acceptor = null;
+    try {
+      initiator = manager.createContext(credential.getName(), KRB5, null,
+              GSSContext.DEFAULT_LIFETIME);
+      initiator.requestMutualAuth(true);
+      initiator.requestConf(true);
+      acceptor = manager.createContext(credential);
+
+      byte[] token = new byte[0];
+      while (!initiator.isEstablished()) {
+        final byte[] outToken = initiator.initSecContext(token, 0, token.length);
+        if (outToken == null) {
+          break;
+        }
+        token = acceptor.acceptSecContext(outToken, 0, outToken.length);
+        if (token == null) {
+          token = new byte[0];
+        }
+      }
+
+      final byte[] message = new byte[64];
+      final byte[] wrapped = initiator.wrap(message, 0, message.length, new MessageProp(0, true));
+      final MessageProp prop = new MessageProp(0, false);
+      final byte[] unwrapped = acceptor.unwrap(wrapped, 0, wrapped.length, prop);
+      final byte[] mic = acceptor.getMIC(unwrapped, 0, unwrapped.length, new MessageProp(0, false));
+      initiator.verifyMIC(mic, 0, mic.length, message, 0, message.length, new MessageProp(0, false));
+
+      LOGGER.log(Level.INFO, "Self-test handshake done in {0} ms",
+              (System.nanoTime() - start) / 1000000);
+    } catch (final GSSException | SecurityException ex) {
+      LOGGER.log(Level.INFO, "Self-test handshake skipped: {0}", ex.getMessage());
+    } finally {
+      dispose(initiator);
+      dispose(acceptor);
+    }
+  }
+
+  private long remainingLifetime () {
+    final GSSCredential current = credential;
+    if (current == null) {
+      return 0;
+    }
+    try {
+      return current.getRemainingAcceptLifetime(KRB5);
+    } catch (final GSSException ex) {
+      return 0;
+    }
+  }
+
+  static private void dispose (final GSSContext context) {
+    if (context != null) {
+      try {
+        context.dispose();
+      } catch (final GSSException ex) {
+        LOGGER.log(Level.FINE, null, ex);
+      }
+    }
+  }
+
+  static private Oid krb5 () {
+    try {
+      return new Oid("1.2.840.113554.1.2.2");
+    } catch (final GSSException ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+
+}
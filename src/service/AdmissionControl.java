@@ -0,0 +1,267 @@
+package service;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import JGSSSecureAssociation.Metrics;
+
+/**
+ * Limits the sessions DossierBox or NioDossierBox serve at once, so an
+ * overload is shed at the door (with the busy frame) instead of piling up
+ * connections that time out in the queue of the executor.
+ *
+ * What happens to a connection over the limit depends on
+ * dossierbox.admission:
+ *
+ *   reject  it is refused with the busy frame at once;
+ *   delay   it waits up to dossierbox.admissionDelay milliseconds for a
+ *           session to end, then it is refused;
+ *   wait    the accept loop waits for a free slot, and new connections
+ *           wait in the listen backlog (the former behaviour).
+ *
+ * DossierBox waits in admit(), on the thread of its accept loop (one per
+ * shard), so in delay mode each connection over the limit can hold that
+ * loop for up to dossierbox.admissionDelay, while the connections behind
+ * it wait in the listen backlog. The selector thread of NioDossierBox
+ * does not wait: it takes a slot with tryAdmit() and, if there is none,
+ * holds the connection aside and stops accepting until a slot frees or
+ * the delay runs out.
+ *
+ * With dossierbox.limit=adaptive the limit follows the handshake latency
+ * of the admitted sessions, measured from admission to the established
+ * context (so it includes the wait for a thread and for the KDC and CPU),
+ * with the gradient method: the limit is multiplied by the ratio between
+ * the latency of an unloaded service (the recent minimum, times
+ * TOLERANCE) and the latest one, plus the square root of the limit as
+ * room to grow. Latency over that means sessions are queueing, and the
+ * limit drops until it does not; the limit only grows while it is being
+ * used. It stays between
+ * MIN_LIMIT and the limit of the executor. With dossierbox.limit=fixed
+ * the limit is always that of the executor.
+ */
+final class AdmissionControl {
+
+  static private final int MIN_LIMIT = 4;
+  // Peso de cada muestra en la latencia de referencia y en el límite
+  static private final double LONG_SMOOTHING = 0.001;
+  static private final double LIMIT_SMOOTHING = 0.2;
+  // Latencia tolerada sobre la habitual antes de reducir el límite
+  static private final double TOLERANCE = 2.0;
+
+  static private final Metrics.Counter REFUSED = Metrics.counter(
+          "dossierbox_admission_refused_total",
+          "Connections refused with the busy frame");
+  static private final Metrics.Counter DELAYED = Metrics.counter(
+          "dossierbox_admission_delayed_total",
+          "Connections that waited for a free session slot");
+
+  private final String mode;
+  private final boolean adaptive;
+  private final long delayNanos;
+  private final int maxLimit;
+
+  // Avisa de cada permiso liberado a quien no puede esperar en released
+  // (el hilo del selector de NioDossierBox)
+  private volatile Runnable releaseListener;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition released = lock.newCondition();
+  // Protegidos por lock
+  private int inFlight;
+  private double limit;
+  private double baseLatency;
+
+  /**
+   * @param maxLimit sessions the executor can take at once (threads and
+   *                 queue), which the limit never exceeds
+   */
+  AdmissionControl (final ServiceConfig config, final int maxLimit) {
+    this.mode = config.admission;
+    this.adaptive = "adaptive".equalsIgnoreCase(config.admissionLimit);
+    this.delayNanos = TimeUnit.MILLISECONDS.toNanos(config.admissionDelayMillis);
+    this.maxLimit = Math.max(MIN_LIMIT, maxLimit);
+    this.limit = this.maxLimit;
+  }
+
+  /**
+   * Waits for a slot for a new session, as much as the mode allows. The
+   * calling thread is blocked while it waits, which for DossierBox is the
+   * accept loop.
+   *
+   * @return the permit of the session, or null if it must be refused
+   */
+  Permit admit () {
+    lock.lock();
+    try {
+      if (inFlight >= currentLimit()) {
+        if ("reject".equalsIgnoreCase(mode)) {
+          REFUSED.increment();
+          return null;
+        }
+        DELAYED.increment();
+        final boolean waitForever = "wait".equalsIgnoreCase(mode);
+        long nanos = delayNanos;
+        while (inFlight >= currentLimit()) {
+          if (waitForever) {
+            released.awaitUninterruptibly();
+          } else if (nanos <= 0) {
+            REFUSED.increment();
+            return null;
+          } else {
+            try {
+              nanos = released.awaitNanos(nanos);
+            } catch (final InterruptedException ex) {
+              Thread.currentThread().interrupt();
+              REFUSED.increment();
+              return null;
+            }
+          }
+        }
+      }
+      inFlight++;
+      return new Permit();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Takes a slot for a new session if one is free, without waiting, for
+   * callers that must not block: the selector thread of NioDossierBox,
+   * which waits for a slot with setReleaseListener() instead.
+   *
+   * @return the permit of the session, or null if there is no free slot
+   */
+  Permit tryAdmit () {
+    lock.lock();
+    try {
+      if (inFlight >= currentLimit()) {
+        return null;
+      }
+      inFlight++;
+      return new Permit();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return how long a connection over the limit may wait for a slot,
+   *         according to the mode: 0 (reject), dossierbox.admissionDelay
+   *         (delay) or Long.MAX_VALUE (wait)
+   */
+  long maxWaitNanos () {
+    if ("reject".equalsIgnoreCase(mode)) {
+      return 0;
+    }
+    return "wait".equalsIgnoreCase(mode) ? Long.MAX_VALUE : delayNanos;
+  }
+
+  /**
+   * Counts a connection that, not admitted by tryAdmit(), waits for a slot.
+   */
+  void delayed () {
+    DELAYED.increment();
+  }
+
+  /**
+   * Counts a connection that, not admitted by tryAdmit(), is refused.
+   */
+  void refused () {
+    REFUSED.increment();
+  }
+
+  /**
+   * @param listener run, on the thread that releases it, after every
+   *                 permit released
+   */
+  void setReleaseListener (final Runnable listener) {
+    this.releaseListener = listener;
+  }
+
+  private int currentLimit () {
+    return (int) limit;
+  }
+
+  long limit () {
+    lock.lock();
+    try {
+      return currentLimit();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  long inFlight () {
+    lock.lock();
+    try {
+      return inFlight;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void release () {
+    lock.lock();
+    try {
+      inFlight--;
+      released.signal();
+    } finally {
+      lock.unlock();
+    }
+    final Runnable listener = releaseListener;
+    if (listener != null) {
+      listener.run();
+    }
+  }
+
+  private void sample (final long latency) {
+    if (!adaptive) {
+      return;
+    }
+    lock.lock();
+    try {
+      // Mínimo reciente: baja con cada muestra menor y sube muy despacio,
+      // para que una sobrecarga larga no pase por latencia normal
+      if (baseLatency == 0 || latency < baseLatency) {
+        baseLatency = latency;
+      } else {
+        baseLatency += (latency - baseLatency) * LONG_SMOOTHING;
+      }
+      final double gradient = Math.max(0.5,
+              Math.min(1.0, TOLERANCE * baseLatency / latency));
+      // Solo crece si se usa: sin sesiones suficientes en curso, la
+      // latencia no dice nada de lo que cabe
+      final double room = inFlight * 2 >= limit ? Math.sqrt(limit) : 0;
+      final double target = limit * gradient + room;
+      limit = Math.max(MIN_LIMIT, Math.min(maxLimit,
+              limit * (1 - LIMIT_SMOOTHING) + target * LIMIT_SMOOTHING));
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Slot of an admitted session. The ServerTask (or the NioConnection)
+   * reports when its context is established and releases it when the
+   * connection ends; DossierBox releases it too when it drops a task that
+   * never ran.
+   */
+  final class Permit {
+
+    private final long admitted = System.nanoTime();
+    private final AtomicBoolean done = new AtomicBoolean();
+
+    void established () {
+      sample(System.nanoTime() - admitted);
+    }
+
+    void release () {
+      if (done.compareAndSet(false, true)) {
+        AdmissionControl.this.release();
+      }
+    }
+  }
+
+}
@@ -0,0 +1,230 @@
+package service;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import JGSSSecureAssociation.Metrics;
+
+/**
+ * Closes the connections that miss a deadline of the phase they are in,
+ * so a client that stalls (or trickles bytes, as slowloris does) can not
+ * keep a worker thread of DossierBox, or a connection of NioDossierBox,
+ * for ever:
+ *
+ *   handshake  the context must be established within
+ *              dossierbox.handshakeTimeout milliseconds of the accept;
+ *   read       a frame must be complete within dossierbox.readTimeout
+ *              milliseconds of its first bytes;
+ *   idle       the next frame must come within dossierbox.idleTimeout
+ *              milliseconds of the last one.
+ *
+ * A timeout of 0 disables its deadline. Blocking reads over socket
+ * channels ignore SO_TIMEOUT, so instead of timing each read a single
+ * thread checks every watched connection each TICK_MILLIS and closes
+ * those past a deadline, which fails the read that blocks their worker.
+ * Deadlines are therefore enforced with up to TICK_MILLIS of delay.
+ *
+ * Since it knows every open connection, the reaper also drains them when
+ * the service stops (see ServiceLifecycle).
+ */
+final class ConnectionReaper {
+
+  static private final String CLASS_NAME = ConnectionReaper.class.getName();
+  static private final Logger LOGGER = Logger.getLogger(CLASS_NAME);
+
+  static private final long TICK_MILLIS = 250;
+
+  static private final Metrics.Counter HANDSHAKE = Metrics.counter(
+          "dossierbox_reaped_handshake_total",
+          "Connections closed for not establishing the context in time");
+  static private final Metrics.Counter READ = Metrics.counter(
+          "dossierbox_reaped_read_total",
+          "Connections closed for not completing a frame in time");
+  static private final Metrics.Counter IDLE = Metrics.counter(
+          "dossierbox_reaped_idle_total",
+          "Connections closed for being idle too long between frames");
+  static private final Metrics.Counter FORCED = Metrics.counter(
+          "dossierbox_drain_forced_total",
+          "Connections closed for not ending within the drain timeout");
+
+  /**
+   * A connection under watch: its state, read by the reaper thread, and
+   * the way to close it.
+   */
+  interface Connection {
+
+    boolean isEstablished ();
+
+    /**
+     * @return System.nanoTime() of the first bytes of the frame being
+     *         read, or 0 if none is partly read
+     */
+    long frameStartedAt ();
+
+    /**
+     * @return System.nanoTime() of the end of the last frame read
+     */
+    long lastFrameAt ();
+
+    /**
+     * Closes the connection; called from the reaper thread.
+     */
+    void reap ();
+
+    /**
+     * Closes the session with the close frame, once the message being
+     * served (if any) has been answered; called while draining, for
+     * established connections with no frame partly read.
+     */
+    void drain ();
+  }
+
+  private final long handshakeNanos;
+  private final long readNanos;
+  private final long idleNanos;
+  private final Set<Watch> watched = ConcurrentHashMap.newKeySet();
+  private ScheduledExecutorService reaper;
+
+  ConnectionReaper (final ServiceConfig config) {
+    this.handshakeNanos = TimeUnit.MILLISECONDS.toNanos(config.handshakeTimeoutMillis);
+    this.readNanos = TimeUnit.MILLISECONDS.toNanos(config.readTimeoutMillis);
+    this.idleNanos = TimeUnit.MILLISECONDS.toNanos(config.idleTimeoutMillis);
+  }
+
+  synchronized void start () {
+    if (reaper != null) {
+      return;
+    }
+    reaper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      final Thread thread = new Thread(runnable, "dossierbox-reaper");
+      thread.setDaemon(true);
+      return thread;
+    });
+    reaper.scheduleWithFixedDelay(this::reapExpired, TICK_MILLIS, TICK_MILLIS,
+            TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Starts watching a connection just accepted; its handshake deadline
+   * counts from now. The watch must be closed when the connection ends.
+   */
+  Watch watch (final Connection connection) {
+    final Watch watch = new Watch(connection);
+    watched.add(watch);
+    return watch;
+  }
+
+  /**
+   * Drains the watched connections until inFlight reports none left, or
+   * the timeout passes.
+   *
+   * @return true if no session was left in flight
+   */
+  boolean drain (final long timeoutMillis, final LongSupplier inFlight) {
+    final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    LOGGER.log(Level.INFO, "Draining {0} sessions", inFlight.getAsLong());
+    while (true) {
+      for (final Watch watch : watched) {
+        watch.drainIfIdle();
+      }
+      final long left = inFlight.getAsLong();
+      if (left == 0) {
+        LOGGER.log(Level.INFO, "Drained");
+        return true;
+      }
+      if (System.nanoTime() - deadline >= 0) {
+        LOGGER.log(Level.WARNING, "{0} sessions still in flight after the drain timeout",
+                left);
+        return false;
+      }
+      try {
+        TimeUnit.MILLISECONDS.sleep(Math.min(TICK_MILLIS / 2,
+                TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()) + 1));
+      } catch (final InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+    }
+  }
+
+  /**
+   * Closes every watched connection, as the end of a drain.
+   */
+  void reapAll () {
+    for (final Watch watch : watched) {
+      if (watched.remove(watch)) {
+        FORCED.increment();
+        try {
+          watch.connection.reap();
+        } catch (final RuntimeException ex) {
+          LOGGER.log(Level.WARNING, "Cannot close connection:", ex);
+        }
+      }
+    }
+  }
+
+  private void reapExpired () {
+    final long now = System.nanoTime();
+    for (final Watch watch : watched) {
+      final Metrics.Counter phase = watch.expired(now);
+      if (phase != null && watched.remove(watch)) {
+        phase.increment();
+        LOGGER.log(Level.FINE, "Connection reaped: {0}", phase == HANDSHAKE
+                ? "handshake" : phase == READ ? "read" : "idle");
+        try {
+          watch.connection.reap();
+        } catch (final RuntimeException ex) {
+          LOGGER.log(Level.WARNING, "Cannot close connection:", ex);
+        }
+      }
+    }
+  }
+
+  final class Watch implements AutoCloseable {
+
+    private final Connection connection;
+    private final long accepted = System.nanoTime();
+    // Ya se le pidió que termine (solo lo usa el hilo que drena)
+    private boolean draining;
+
+    private Watch (final Connection connection) {
+      this.connection = connection;
+    }
+
+    /**
+     * @return the counter of the deadline that passed, or null
+     */
+    private Metrics.Counter expired (final long now) {
+      if (!connection.isEstablished()) {
+        return handshakeNanos > 0 && now - accepted > handshakeNanos ? HANDSHAKE : null;
+      }
+      final long frameStarted = connection.frameStartedAt();
+      if (frameStarted != 0) {
+        return readNanos > 0 && now - frameStarted > readNanos ? READ : null;
+      }
+      return idleNanos > 0 && now - connection.lastFrameAt() > idleNanos ? IDLE : null;
+    }
+
+    private void drainIfIdle () {
+      if (!draining && connection.isEstablished() && connection.frameStartedAt() == 0) {
+        draining = true;
+        try {
+          connection.drain();
+        } catch (final RuntimeException ex) {
+          LOGGER.log(Level.WARNING, "Cannot drain connection:", ex);
+        }
+      }
+    }
+
+    @Override
+    public void close () {
+      watched.remove(this);
+    }
+  }
+
+}
@@ -1,102 +1,532 @@
-/*
- * @(#)ServiceOn.java
- *
- * Copyright (c) 2001, 2002, Oracle and/or its affiliates. All rights reserved.
- *
- * Redistribution and use in source and binary forms, with or 
- * without modification, are permitted provided that the following 
- * conditions are met:
- * 
- * -Redistributions of source code must retain the above copyright  
- * notice, this  list of conditions and the following disclaimer.
- * 
- * -Redistribution in binary form must reproduct the above copyright 
- * notice, this list of conditions and the following disclaimer in 
- * the documentation and/or other materials provided with the 
- * distribution.
- * 
- * Neither the name of Oracle or the names of 
- * contributors may be used to endorse or promote products derived 
- * from this software without specific prior written permission.
- * 
- * This software is provided "AS IS," without a warranty of any 
- * kind. ALL EXPRESS OR IMPLIED CONDITIONS, REPRESENTATIONS AND 
- * WARRANTIES, INCLUDING ANY IMPLIED WARRANTY OF MERCHANTABILITY, 
- * FITNESS FOR A PARTICULAR PURPOSE OR NON-INFRINGEMENT, ARE HEREBY 
- * EXCLUDED. SUN AND ITS LICENSORS SHALL NOT BE LIABLE FOR ANY 
- * DAMAGES OR LIABILITIES  SUFFERED BY LICENSEE AS A RESULT OF  OR 
- * RELATING TO USE, MODIFICATION OR DISTRIBUTION OF THE SOFTWARE OR 
- * ITS DERIVATIVES. IN NO EVENT WILL SUN OR ITS LICENSORS BE LIABLE 
- * FOR ANY LOST REVENUE, PROFIT OR DATA, OR FOR DIRECT, INDIRECT, 
- * SPECIAL, CONSEQUENTIAL, INCIDENTAL OR PUNITIVE DAMAGES, HOWEVER 
- * CAUSED AND REGARDLESS OF THE THEORY OF LIABILITY, ARISING OUT OF 
- * THE USE OF OR INABILITY TO USE SOFTWARE, EVEN IF SUN HAS BEEN 
- * ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
- * 
- * You acknowledge that Software is not designed, licensed or 
- * intended for use in the design, construction, operation or 
- * maintenance of any nuclear facility. 
- */
-
-package service;
-
-import java.io.IOException;
-import java.net.ServerSocket;
-import java.security.PrivilegedExceptionAction;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.logging.Level;
-import java.util.logging.Logger;
-
-
-final class DossierBox implements PrivilegedExceptionAction<Void> {
-
-  static private final String SERVICE_NAME = "dossierbox";
-  
-  static private final String CLASS_NAME = DossierBox.class.getName();
-  static private final Logger LOGGER = Logger.getLogger(CLASS_NAME);  
-    
-  // Servicio ejecutor para atender solicitudes entrantes.
-  final ExecutorService executorForServiceTasks;
-  // Puerto de escucha del servicio
-  private final int servicePortNumber;
-  
-  DossierBox (final int port, final int numThreads) {
-    // Parametros de operación.
-    // En una implementación más profesional de la parte cliente de un servicio
-    // concreto, estos valores se tomarían de un fichero de configuración,
-    // de modo que no haya que recompilar el código de la parte cliente cuando
-    // cambien la dirección IP o el puerto de escucha del servicio.    
-    this.servicePortNumber = port;
-    // El valor numThreads indica el número máximo de clientes
-    // que van a poder ser atendidos simultánemamente.
-    this.executorForServiceTasks = Executors.newFixedThreadPool(numThreads);
-  }
-
-  @Override
-  public Void run () throws IOException, SecurityException {
-    
-    final ServerSocket serverSocket;
-    try {
-      serverSocket = new ServerSocket(servicePortNumber);
-    } catch (final IOException ex) {
-      LOGGER.log(Level.SEVERE,"Problem creating server socket:", ex);
-      throw new IOException();
-    } catch (final SecurityException ex) {
-      LOGGER.log(Level.SEVERE, "Permission denied:", ex);
-      throw new SecurityException();
-    }
-
-    System.out.println("Waiting for incomings connection...");
-    while (true) {
-
-      final ServerTask task =
-              new ServerTask(serverSocket.accept());
-      System.out.println("New incoming connection");
-      executorForServiceTasks.submit(task);
-
-    }
-
-  }
-
+/*
+ * @(#)ServiceOn.java
+ *
+ * Copyright (c) 2001, 2002, Oracle and/or its affiliates. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or 
+ * without modification, are permitted provided that the following 
+ * conditions are met:
+ * 
+ * -Redistributions of source code must retain the above copyright  
+ * notice, this  list of conditions and the following disclaimer.
+ * 
+ * -Redistribution in binary form must reproduct the above copyright 
+ * notice, this list of conditions and the following disclaimer in 
+ * the documentation and/or other materials provided with the 
+ * distribution.
+ * 
+ * Neither the name of Oracle or the names of 
+ * contributors may be used to endorse or promote products derived 
+ * from this software without specific prior written permission.
+ * 
+ * This software is provided "AS IS," without a warranty of any 
+ * kind. ALL EXPRESS OR IMPLIED CONDITIONS, REPRESENTATIONS AND 
+ * WARRANTIES, INCLUDING ANY IMPLIED WARRANTY OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE OR NON-INFRINGEMENT, ARE HEREBY 
+ * EXCLUDED. SUN AND ITS LICENSORS SHALL NOT BE LIABLE FOR ANY 
+ * DAMAGES OR LIABILITIES  SUFFERED BY LICENSEE AS A RESULT OF  OR 
+ * RELATING TO USE, MODIFICATION OR DISTRIBUTION OF THE SOFTWARE OR 
+ * ITS DERIVATIVES. IN NO EVENT WILL SUN OR ITS LICENSORS BE LIABLE 
+ * FOR ANY LOST REVENUE, PROFIT OR DATA, OR FOR DIRECT, INDIRECT, 
+ * SPECIAL, CONSEQUENTIAL, INCIDENTAL OR PUNITIVE DAMAGES, HOWEVER 
+ * CAUSED AND REGARDLESS OF THE THEORY OF LIABILITY, ARISING OUT OF 
+ * THE USE OF OR INABILITY TO USE SOFTWARE, EVEN IF SUN HAS BEEN 
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ * 
+ * You acknowledge that Software is not designed, licensed or 
+ * intended for use in the design, construction, operation or 
+ * maintenance of any nuclear facility. 
+ */
+
+package service;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.security.PrivilegedAction;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToLongFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.security.auth.Subject;
+import JGSSSecureAssociation.JGSSSecureAssociation;
+import JGSSSecureAssociation.Metrics;
+
+
+/**
+ * Blocking front end of the dossierbox service: one thread per session,
+ * from a fixed pool or one virtual thread each.
+ *
+ * With dossierbox.shards=N the service runs N shards, each with its own
+ * worker pool (a share of the threads and of the queue) and its own
+ * admission limit, so bursts of connections (after a restart of many
+ * clients, say) are accepted and handshaken on several cores at once.
+ * Where the platform supports SO_REUSEPORT each shard also has its own
+ * listening socket on the port and its own acceptor thread, and the
+ * kernel spreads the connections among them; elsewhere a single acceptor
+ * hands every connection to the shard with the fewest sessions. Java
+ * offers no way to pin threads to cores, so the threads of each shard are
+ * named after it ("dossierbox-shard-<n>-...") for tools such as taskset
+ * to pin them from outside.
+ *
+ * Once stopped (see ServiceLifecycle) run() waits for the drain to end
+ * before returning, so the credentials of the Subject outlive every
+ * session.
+ */
+final class DossierBox implements ServiceLifecycle {
+
+  static private final String SERVICE_NAME = "dossierbox";
+  
+  static private final String CLASS_NAME = DossierBox.class.getName();
+  static private final Logger LOGGER = Logger.getLogger(CLASS_NAME);  
+
+  // StandardSocketOptions.SO_REUSEPORT, o null si el runtime es anterior
+  // a Java 9
+  static private final SocketOption<Boolean> REUSE_PORT = reusePortOption();
+    
+  // Puerto de escucha del servicio
+  private final int servicePortNumber;
+  // Particiones del servicio, cada una con sus hilos y su límite de sesiones
+  private final Shard[] shards;
+  // Subject con el que se ejecuta cada tarea (null si los hilos del
+  // ejecutor ya lo heredan de Subject.doAsPrivileged)
+  private final Subject subject;
+  // Parámetros de operación leídos de las propiedades dossierbox.*
+  private final ServiceConfig config;
+  // Credencial de aceptación compartida por todas las conexiones
+  private final AcceptorCredential credential;
+  // Cierra las conexiones que no cumplen los plazos de su fase
+  private final ConnectionReaper reaper;
+  // Socket de escucha común, si las particiones no tienen el suyo
+  private volatile ServerSocket serverSocket;
+  // Falso tras stopAccepting(); los sockets de escucha ya están cerrados
+  private volatile boolean accepting = true;
+  // Se abre al terminar el drenaje, para que run() termine
+  private final CountDownLatch stopped = new CountDownLatch(1);
+  
+  DossierBox (final int port, final int numThreads, final ServiceConfig config) {
+    // Parametros de operación.
+    // En una implementación más profesional de la parte cliente de un servicio
+    // concreto, estos valores se tomarían de un fichero de configuración,
+    // de modo que no haya que recompilar el código de la parte cliente cuando
+    // cambien la dirección IP o el puerto de escucha del servicio.    
+    this(port, config, null);
+    // El valor numThreads indica el número máximo de clientes
+    // que van a poder ser atendidos simultánemamente, repartidos entre
+    // las particiones.
+    for (int i = 0; i < shards.length; i++) {
+      final int threads = Math.max(1, share(numThreads, i));
+      // Cola acotada. El control de admisión no deja pasar más sesiones que
+      // hilos más la cola; la cola tiene sitio para todas porque una
+      // tarea libera su plaza justo antes de que su hilo tome la
+      // siguiente, y el ejecutor nunca tiene que rechazar ninguna.
+      final int maxSessions = threads + share(config.workQueueCapacity, i);
+      final ExecutorService executor = new ThreadPoolExecutor(threads, threads,
+              0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(maxSessions),
+              shardThreads(i));
+      shards[i] = new Shard(executor, new AdmissionControl(config, maxSessions));
+    }
+  }
+
+  private DossierBox (final int port, final ExecutorService executor,
+          final ServiceConfig config, final Subject subject) {
+    this(port, config, subject);
+    for (int i = 0; i < shards.length; i++) {
+      shards[i] = new Shard(executor,
+              new AdmissionControl(config, Math.max(1, share(config.maxInFlight, i))));
+    }
+  }
+
+  private DossierBox (final int port, final ServiceConfig config, final Subject subject) {
+    this.servicePortNumber = port;
+    this.shards = new Shard[Math.max(1, config.shards)];
+    this.subject = subject;
+    this.config = config;
+    this.credential = new AcceptorCredential(config);
+    this.reaper = new ConnectionReaper(config);
+  }
+
+  /**
+   * Creates a DossierBox that runs every ServerTask on its own virtual
+   * thread, with no fixed number of threads. At most config.maxInFlight tasks run
+   * at once (fewer if the adaptive limit of AdmissionControl says so);
+   * further connections are delayed or refused, so the KDC and the CPU
+   * are not overwhelmed.
+   *
+   * Virtual threads do not inherit the access control context of
+   * Subject.doAsPrivileged (and have no permissions under a security
+   * manager), so every task is run explicitly as the given Subject.
+   */
+  static DossierBox withVirtualThreads (final int port, final ServiceConfig config,
+          final Subject subject) {
+    return new DossierBox(port, newVirtualThreadExecutor(), config, subject);
+  }
+
+  @Override
+  public Void run () throws IOException, SecurityException {
+    
+    // Antes de abrir el puerto, para que el primer cliente no espere
+    credential.start();
+    reaper.start();
+
+    // Un socket de escucha por partición si el sistema lo permite
+    final boolean reusePort = shards.length > 1 && supportsReusePort();
+    try {
+      if (reusePort) {
+        for (final Shard shard : shards) {
+          shard.serverSocket = listen(true);
+        }
+      } else {
+        serverSocket = listen(false);
+      }
+    } catch (final IOException ex) {
+      LOGGER.log(Level.SEVERE,"Problem creating server socket:", ex);
+      throw new IOException();
+    } catch (final SecurityException ex) {
+      LOGGER.log(Level.SEVERE, "Permission denied:", ex);
+      throw new SecurityException();
+    }
+
+    ServiceMetrics.start(config, ServerTask::openConnections, this::queueDepth);
+    Metrics.gauge("dossierbox_admission_limit", "Sessions admitted at once",
+            () -> sum(shard -> shard.admission.limit()));
+    Metrics.gauge("dossierbox_admission_in_flight", "Sessions admitted and not ended",
+            () -> sum(shard -> shard.admission.inFlight()));
+
+    System.out.println("Waiting for incomings connection...");
+    if (reusePort) {
+      LOGGER.log(Level.INFO, "{0} shards listening with SO_REUSEPORT", shards.length);
+      for (int i = 1; i < shards.length; i++) {
+        final Shard shard = shards[i];
+        final Thread acceptor = new Thread(() -> {
+          try {
+            shard.acceptLoop();
+          } catch (final IOException ex) {
+            LOGGER.log(Level.SEVERE, "Problem with server socket:", ex);
+          }
+        }, "dossierbox-shard-" + i + "-acceptor");
+        acceptor.start();
+      }
+      shards[0].acceptLoop();
+    } else {
+      Socket socket;
+      while ((socket = accept(serverSocket)) != null) {
+
+        leastLoaded().serve(socket);
+
+      }
+    }
+
+    // Parado: se espera a que terminen (o se cierren) las sesiones
+    closeListeners();
+    while (true) {
+      try {
+        stopped.await();
+        break;
+      } catch (final InterruptedException ex) {
+        // Hasta el final del drenaje
+      }
+    }
+    return null;
+
+  }
+
+  /**
+   * @return the next connection, or null once the service stops accepting
+   */
+  private Socket accept (final ServerSocket listener) throws IOException {
+    try {
+      return accepting ? listener.accept() : null;
+    } catch (final IOException ex) {
+      if (!accepting) {
+        // Closed by stopAccepting()
+        return null;
+      }
+      throw ex;
+    }
+  }
+
+  @Override
+  public void stopAccepting () {
+    accepting = false;
+    closeListeners();
+  }
+
+  @Override
+  public boolean drain (final long timeoutMillis) {
+    stopAccepting();
+    final boolean drained = reaper.drain(timeoutMillis, this::inFlight);
+    if (drained) {
+      for (final Shard shard : shards) {
+        shard.executor.shutdown();
+      }
+      stopped.countDown();
+    }
+    return drained;
+  }
+
+  @Override
+  public void forceClose () {
+    stopAccepting();
+    reaper.reapAll();
+    for (final Shard shard : shards) {
+      // Las tareas en cola no llegan a empezar: se liberan sus plazas y se
+      // cierran sus conexiones
+      for (final Runnable queued : shard.executor.shutdownNow()) {
+        abandon(queued);
+      }
+    }
+    stopped.countDown();
+  }
+
+  @Override
+  public long inFlight () {
+    return sum(shard -> shard.admission.inFlight());
+  }
+
+  @Override
+  public void shutdown () {
+    if (!drain(config.drainTimeoutMillis)) {
+      forceClose();
+    }
+  }
+
+  private void closeListeners () {
+    closeQuietly(serverSocket);
+    for (final Shard shard : shards) {
+      closeQuietly(shard.serverSocket);
+    }
+  }
+
+  static private void closeQuietly (final ServerSocket listener) {
+    if (listener == null) {
+      return;
+    }
+    try {
+      listener.close();
+    } catch (final IOException ex) {
+      LOGGER.log(Level.FINE, "Cannot close server socket:", ex);
+    }
+  }
+
+  /**
+   * Opens a listening socket on the service port, through a channel so
+   * that every accepted connection has its own and ServerTask can frame
+   * the tokens over it.
+   */
+  private ServerSocket listen (final boolean reusePort) throws IOException {
+    final ServerSocketChannel channel = ServerSocketChannel.open();
+    if (reusePort) {
+      channel.setOption(REUSE_PORT, true);
+    }
+    return channel.bind(new InetSocketAddress(servicePortNumber)).socket();
+  }
+
+  static private boolean supportsReusePort () {
+    if (REUSE_PORT == null) {
+      return false;
+    }
+    try (ServerSocketChannel probe = ServerSocketChannel.open()) {
+      return probe.supportedOptions().contains(REUSE_PORT);
+    } catch (final IOException ex) {
+      return false;
+    }
+  }
+
+  /**
+   * @return the shard with the fewest sessions, for the common acceptor
+   */
+  private Shard leastLoaded () {
+    Shard least = shards[0];
+    for (int i = 1; i < shards.length; i++) {
+      if (shards[i].admission.inFlight() < least.admission.inFlight()) {
+        least = shards[i];
+      }
+    }
+    return least;
+  }
+
+  /**
+   * @return the part of total that goes to the given shard
+   */
+  private int share (final int total, final int shard) {
+    return total / shards.length + (shard < total % shards.length ? 1 : 0);
+  }
+
+  /**
+   * @return the number of accepted connections waiting for a thread
+   */
+  private long queueDepth () {
+    return sum(Shard::queueDepth);
+  }
+
+  private long sum (final ToLongFunction<Shard> value) {
+    long total = 0;
+    for (final Shard shard : shards) {
+      total += value.applyAsLong(shard);
+    }
+    return total;
+  }
+
+  /**
+   * Names the worker threads after their shard.
+   */
+  static private ThreadFactory shardThreads (final int shard) {
+    final AtomicInteger count = new AtomicInteger();
+    return runnable -> new Thread(runnable,
+            "dossierbox-shard-" + shard + "-worker-" + count.incrementAndGet());
+  }
+
+  /**
+   * A worker pool with its admission limit, and the acceptor that feeds
+   * it when it has its own listening socket.
+   */
+  private final class Shard {
+
+    private final ExecutorService executor;
+    private final AdmissionControl admission;
+    // Socket de escucha propio (con SO_REUSEPORT), o null si las
+    // conexiones llegan del acceptor común
+    private volatile ServerSocket serverSocket;
+
+    Shard (final ExecutorService executor, final AdmissionControl admission) {
+      this.executor = executor;
+      this.admission = admission;
+    }
+
+    void acceptLoop () throws IOException {
+      Socket socket;
+      while ((socket = accept(serverSocket)) != null) {
+        serve(socket);
+      }
+    }
+
+    /**
+     * Admits the connection into this shard, or refuses it as busy.
+     */
+    void serve (final Socket socket) throws IOException {
+      socket.setTcpNoDelay(true);
+      final AdmissionControl.Permit permit = admission.admit();
+      if (permit == null) {
+        refuse(socket);
+        return;
+      }
+      final ServerTask task = new ServerTask(socket, config, credential.get(), permit,
+              reaper);
+      try {
+        // execute y no submit, para que shutdownNow() devuelva la tarea
+        executor.execute(subject == null ? task : new AsSubject(task));
+      } catch (final RejectedExecutionException ex) {
+        // Ejecutor ya parado por forceClose()
+        LOGGER.log(Level.FINE, "Connection dropped, service stopped");
+        task.abandon();
+      }
+    }
+
+    long queueDepth () {
+      if (executor instanceof ThreadPoolExecutor) {
+        return ((ThreadPoolExecutor) executor).getQueue().size();
+      }
+      return 0;
+    }
+  }
+
+  /**
+   * Sends the busy frame to a connection over the admission limit and
+   * closes it, without starting a ServerTask.
+   */
+  private void refuse (final Socket socket) {
+    try {
+      JGSSSecureAssociation.sendBusy(socket.getOutputStream(), config.busyRetryMillis);
+    } catch (final IOException ex) {
+      LOGGER.log(Level.FINE, "Cannot send busy frame:", ex);
+    } finally {
+      try {
+        socket.close();
+      } catch (final IOException ex) {
+        LOGGER.log(Level.SEVERE, "Problema at closing socket:", ex);
+      }
+    }
+  }
+
+  /**
+   * Frees a task dropped from the queue of an executor, which never ran.
+   */
+  static private void abandon (final Runnable queued) {
+    if (queued instanceof ServerTask) {
+      ((ServerTask) queued).abandon();
+    } else if (queued instanceof AsSubject) {
+      ((AsSubject) queued).task.abandon();
+    }
+  }
+
+  /**
+   * Runs the task as the service Subject.
+   */
+  private final class AsSubject implements Runnable {
+
+    private final ServerTask task;
+
+    AsSubject (final ServerTask task) {
+      this.task = task;
+    }
+
+    // doAsPrivileged está marcado para eliminación desde Java 17, pero
+    // sigue siendo lo que limita la tarea a los permisos del Subject bajo
+    // el gestor de seguridad (etc/service.policy), como en ServiceLogin
+    @SuppressWarnings("removal")
+    @Override
+    public void run () {
+      Subject.doAsPrivileged(subject, new PrivilegedAction<Void>() {
+        @Override
+        public Void run () {
+          task.run();
+          return null;
+        }
+      }, null);
+    }
+  }
+
+  /**
+   * Looks up StandardSocketOptions.SO_REUSEPORT, available from Java 9 on.
+   * Older runtimes get null, and a single acceptor for every shard.
+   */
+  @SuppressWarnings("unchecked")
+  static private SocketOption<Boolean> reusePortOption () {
+    try {
+      return (SocketOption<Boolean>) StandardSocketOptions.class
+              .getField("SO_REUSEPORT").get(null);
+    } catch (final ReflectiveOperationException ex) {
+      return null;
+    }
+  }
+
+  /**
+   * Looks up Executors.newVirtualThreadPerTaskExecutor(), available from
+   * Java 21 on. Older runtimes get an unbounded pool of platform threads
+   * instead; concurrency is still capped by the admission limit.
+   */
+  static private ExecutorService newVirtualThreadExecutor () {
+    try {
+      return (ExecutorService) Executors.class
+              .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (final ReflectiveOperationException ex) {
+      LOGGER.log(Level.WARNING,
+              "Virtual threads not available, using platform threads");
+      return Executors.newCachedThreadPool();
+    }
+  }
+
 }
\ No newline at end of file
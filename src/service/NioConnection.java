@@ -0,0 +1,406 @@
+package service;
+
+import JGSSSecureAssociation.JGSSSecureAssociation;
+import JGSSSecureAssociation.Trace;
+import JGSSSecureAssociation.TraceEvent;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.ietf.jgss.GSSException;
+import org.ietf.jgss.GSSManager;
+
+/**
+ * One client connection of the non-blocking front end.
+ *
+ * The selector thread only reads bytes and splits them into complete
+ * frames; the GSS work for those frames (acceptSecContext, unwrap, getMIC)
+ * runs on the worker pool, one frame at a time per connection, through the
+ * same JGSSSecureAssociation used by the blocking ServerTask. The
+ * association reads the current frame from an in-memory stream and its
+ * replies are queued for the selector thread to write.
+ */
+final class NioConnection implements Runnable, ConnectionReaper.Connection {
+
+  static private final String CLASS_NAME = NioConnection.class.getName();
+  static private final Logger LOGGER = Logger.getLogger(CLASS_NAME);
+
+  // Número de tramas completas pendientes a partir del cual se deja de leer
+  // del socket hasta que los workers las procesen.
+  static private final int MAX_PENDING_FRAMES = 16;
+
+  // Conexiones abiertas cuyo contexto no se ha liberado todavía
+  static private final AtomicInteger OPEN_CONNECTIONS = new AtomicInteger();
+
+  private final NioDossierBox server;
+  private final SocketChannel channel;
+  private final SelectionKey key;
+  private final JGSSSecureAssociation jgss;
+  // Plaza de la sesión en el límite de admisión, liberada al desecharla
+  private final AdmissionControl.Permit permit;
+
+  // Bytes recibidos que todavía no forman una trama completa
+  // (solo los usa el hilo del selector).
+  private ByteBuffer partial;
+
+  private final Queue<byte[]> frames = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger pendingFrames = new AtomicInteger();
+  private final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+  private final AtomicBoolean scheduled = new AtomicBoolean();
+  private final AtomicBoolean disposed = new AtomicBoolean();
+  private final FrameInputStream in = new FrameInputStream();
+  private volatile boolean closeRequested;
+  // Plazos de la conexión: inicio de la trama incompleta (0 si no hay) y
+  // fin de la última trama completa, escritos por el hilo del selector
+  private volatile long partialSince;
+  private volatile long lastFrame = System.nanoTime();
+  // Cerrada por el reaper, aunque queden respuestas por escribir
+  private volatile boolean reaped;
+  // Hay que cerrarla en cuanto no quede trama por procesar, al parar el servicio
+  private volatile boolean draining;
+  private final ConnectionReaper.Watch watch;
+
+  NioConnection (final NioDossierBox server, final SocketChannel channel,
+          final SelectionKey key, final AdmissionControl.Permit permit) throws GSSException {
+    this.server = server;
+    this.channel = channel;
+    this.key = key;
+    this.permit = permit;
+    /*
+     * Use the acceptor credential shared by the service, as in ServerTask;
+     * if it could not be acquired it is null, and the mechanism picks
+     * whatever credentials of the Subject can accept this connection.
+     */
+    this.jgss = new JGSSSecureAssociation(
+            GSSManager.getInstance().createContext(server.credential.get()));
+    this.jgss.setMaxFrameSize(server.config.maxFrameSize);
+    this.jgss.setMaxHandshakeFrameSize(server.config.maxHandshakeFrameSize);
+    this.jgss.setAckWindow(server.config.ackWindow, server.config.ackDelayMillis);
+    this.jgss.setCompressionAllowed(server.config.compressionAllowed);
+    this.jgss.setReplayCache(server.config.replayCache);
+    this.jgss.setResumption(server.config.resumption);
+    this.jgss.attach(in, new FrameOutputStream());
+    this.watch = server.reaper.watch(this);
+    OPEN_CONNECTIONS.incrementAndGet();
+    Trace.event(TraceEvent.CONNECTED, jgss.id(), 0, channel.socket().getInetAddress());
+  }
+
+  static long openConnections () {
+    return OPEN_CONNECTIONS.get();
+  }
+
+  /**
+   * Reads whatever is available and queues the complete frames for the
+   * workers. Called from the selector thread only.
+   */
+  void onReadable (final ByteBuffer readBuffer) throws IOException {
+    readBuffer.clear();
+    final int n = channel.read(readBuffer);
+    if (n < 0) {
+      closeRequested = true;
+      return;
+    }
+    readBuffer.flip();
+
+    ByteBuffer source = readBuffer;
+    if (partial != null) {
+      partial = ensureRemaining(partial, readBuffer.remaining());
+      partial.put(readBuffer);
+      partial.flip();
+      source = partial;
+    }
+
+    int length;
+    boolean completed = false;
+    // Oversized frames are refused as soon as their header is in, before
+    // the partial buffer grows to hold them
+    while ((length = jgss.completeFrameLengthFor(source)) > 0) {
+      final byte[] frame = new byte[length];
+      source.get(frame);
+      frames.add(frame);
+      pendingFrames.incrementAndGet();
+      completed = true;
+    }
+
+    final long now = System.nanoTime();
+    if (completed) {
+      lastFrame = now;
+    }
+    // Keep the bytes of an incomplete frame, in write mode, for the next read
+    if (!source.hasRemaining()) {
+      partial = null;
+    } else if (source == partial) {
+      partial.compact();
+    } else {
+      partial = ByteBuffer.allocate(source.remaining());
+      partial.put(source);
+    }
+    if (partial == null) {
+      partialSince = 0;
+    } else if (completed || partialSince == 0) {
+      partialSince = now;
+    }
+    schedule();
+  }
+
+  /**
+   * Writes as much of the queued replies as the socket takes. Called from
+   * the selector thread only.
+   */
+  void onWritable () throws IOException {
+    ByteBuffer buffer;
+    while ((buffer = outbound.peek()) != null) {
+      channel.write(buffer);
+      if (buffer.hasRemaining()) {
+        return;
+      }
+      outbound.poll();
+    }
+  }
+
+  /**
+   * Recomputes the interest set, or closes the connection once it has been
+   * asked to and everything queued has been written. Called from the
+   * selector thread only.
+   */
+  void updateInterest () {
+    if (!key.isValid()) {
+      if (!scheduled.get()) {
+        disposeContext();
+      }
+      return;
+    }
+    if (draining && !closeRequested && !scheduled.get() && frames.isEmpty()
+            && partial == null) {
+      // Ningún worker la usa: la trama de cierre va tras las respuestas
+      jgss.close();
+      closeRequested = true;
+    }
+    if (reaped || closeRequested && !scheduled.get() && outbound.isEmpty()) {
+      close();
+      return;
+    }
+    int ops = 0;
+    if (!closeRequested && pendingFrames.get() < MAX_PENDING_FRAMES) {
+      ops |= SelectionKey.OP_READ;
+    }
+    if (!outbound.isEmpty()) {
+      ops |= SelectionKey.OP_WRITE;
+    }
+    key.interestOps(ops);
+  }
+
+  void close () {
+    closeRequested = true;
+    key.cancel();
+    try {
+      channel.close();
+    } catch (final IOException ex) {
+      LOGGER.log(Level.SEVERE, "Problema at closing socket:", ex);
+    }
+    if (!scheduled.get()) {
+      disposeContext();
+    }
+  }
+
+  @Override
+  public boolean isEstablished () {
+    return jgss.isEstablished();
+  }
+
+  @Override
+  public long frameStartedAt () {
+    return partialSince;
+  }
+
+  @Override
+  public long lastFrameAt () {
+    return lastFrame;
+  }
+
+  /**
+   * Has the selector thread close the connection, dropping the replies
+   * not written yet (the client may have stopped reading them).
+   */
+  @Override
+  public void reap () {
+    reaped = true;
+    closeRequested = true;
+    server.requestUpdate(this);
+  }
+
+  /**
+   * Has the selector thread send the close frame once the frames received
+   * have been answered.
+   */
+  @Override
+  public void drain () {
+    draining = true;
+    server.requestUpdate(this);
+  }
+
+  private void disposeContext () {
+    if (!disposed.compareAndSet(false, true)) {
+      return;
+    }
+    OPEN_CONNECTIONS.decrementAndGet();
+    permit.release();
+    watch.close();
+    Trace.event(TraceEvent.CLOSED, jgss.id(), 0);
+    try {
+      // El de Kerberos, o el reanudado que lo sustituyó, y el estado de
+      // la compresión si se negoció
+      jgss.dispose();
+    } catch (final GSSException ex) {
+      LOGGER.log(Level.SEVERE, "Problem at context dispose:", ex);
+    }
+  }
+
+  private void schedule () {
+    if (frames.isEmpty() || !scheduled.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      server.execute(this);
+    } catch (final RejectedExecutionException ex) {
+      LOGGER.log(Level.WARNING, "Worker queue full, dropping connection from {0}",
+              channel.socket().getInetAddress());
+      scheduled.set(false);
+      frames.clear();
+      closeRequested = true;
+    }
+  }
+
+  /**
+   * Processes the queued frames of this connection on a worker thread.
+   */
+  @Override
+  public void run () {
+    byte[] frame;
+    while (!closeRequested && (frame = frames.poll()) != null) {
+      pendingFrames.decrementAndGet();
+      process(frame);
+    }
+    // Una sola confirmación para los mensajes con MIC de todas las tramas
+    if (!closeRequested) {
+      try {
+        jgss.acknowledge();
+      } catch (final GSSException ex) {
+        LOGGER.log(Level.SEVERE, "Problem with GSSContext:", ex);
+        closeRequested = true;
+      } catch (final IOException ex) {
+        LOGGER.log(Level.SEVERE, "Problem with socket:", ex);
+        closeRequested = true;
+      }
+    }
+    scheduled.set(false);
+    // A frame may have been queued after the last poll
+    if (!closeRequested) {
+      schedule();
+    }
+    server.requestUpdate(this);
+  }
+
+  private void process (final byte[] frame) {
+    in.set(frame);
+    try {
+      if (!jgss.isEstablished()) {
+        if (!jgss.acceptToken()) {
+          closeRequested = true;
+        } else if (jgss.isEstablished()) {
+          permit.established();
+        }
+      } else {
+        final ByteBuffer message = jgss.receiveBytes();
+        if (message == null) {
+          // Abierta todavía si la trama era una petición de reanudación
+          if (!jgss.isOpen()) {
+            jgss.close();
+            closeRequested = true;
+          }
+        } else if (Trace.enabled(TraceEvent.MESSAGE)) {
+          // Solo se decodifica si se traza
+          Trace.event(TraceEvent.MESSAGE, jgss.id(), message.remaining(),
+                  StandardCharsets.UTF_8.decode(message));
+        }
+      }
+    } catch (final GSSException ex) {
+      LOGGER.log(Level.SEVERE, "Problem with GSSContext:", ex);
+      closeRequested = true;
+    } catch (final IOException ex) {
+      LOGGER.log(Level.SEVERE, "Problem with socket:", ex);
+      closeRequested = true;
+    }
+  }
+
+  /**
+   * @return the buffer, or a bigger copy of it, with room for needed more bytes
+   */
+  static private ByteBuffer ensureRemaining (final ByteBuffer buffer, final int needed) {
+    if (buffer.remaining() >= needed) {
+      return buffer;
+    }
+    final ByteBuffer bigger = ByteBuffer.allocate(
+            Math.max(buffer.capacity() * 2, buffer.position() + needed));
+    buffer.flip();
+    bigger.put(buffer);
+    return bigger;
+  }
+
+  /**
+   * Gives the association the frame being processed.
+   */
+  static private final class FrameInputStream extends InputStream {
+
+    private byte[] frame = new byte[0];
+    private int position;
+
+    void set (final byte[] frame) {
+      this.frame = frame;
+      this.position = 0;
+    }
+
+    @Override
+    public int read () {
+      return position < frame.length ? frame[position++] & 0xff : -1;
+    }
+
+    @Override
+    public int read (final byte[] b, final int off, final int len) {
+      if (position >= frame.length) {
+        return -1;
+      }
+      final int n = Math.min(len, frame.length - position);
+      System.arraycopy(frame, position, b, off, n);
+      position += n;
+      return n;
+    }
+  }
+
+  /**
+   * Hands every flushed reply of the association to the selector thread.
+   */
+  private final class FrameOutputStream extends ByteArrayOutputStream {
+
+    @Override
+    public void flush () {
+      if (size() == 0) {
+        return;
+      }
+      outbound.add(ByteBuffer.wrap(toByteArray()));
+      reset();
+      server.requestUpdate(NioConnection.this);
+    }
+  }
+
+}
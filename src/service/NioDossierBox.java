@@ -0,0 +1,355 @@
+package service;
+
+import JGSSSecureAssociation.FrameTooLargeException;
+import JGSSSecureAssociation.JGSSSecureAssociation;
+import JGSSSecureAssociation.Metrics;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.ietf.jgss.GSSException;
+
+/**
+ * Non-blocking front end of the dossierbox service.
+ *
+ * A single selector thread accepts connections and parses the 4-byte
+ * length-prefixed framing of every socket without blocking, so idle or slow
+ * clients only cost a registered channel. Complete frames are handed to a
+ * bounded worker pool for the GSS work (see NioConnection).
+ *
+ * Every connection is admitted by AdmissionControl, with up to
+ * dossierbox.maxInFlight sessions at once, before it is registered. The
+ * selector thread never waits for a slot: a connection over the limit is
+ * refused with the busy frame at once (dossierbox.admission=reject), or
+ * is held aside while accepting pauses, so further connections wait in
+ * the listen backlog as with DossierBox, until a session ends (wait) or
+ * dossierbox.admissionDelay passes and it is refused (delay).
+ */
+final class NioDossierBox implements ServiceLifecycle {
+
+  static private final String CLASS_NAME = NioDossierBox.class.getName();
+  static private final Logger LOGGER = Logger.getLogger(CLASS_NAME);
+
+  // Tamaño del buffer de lectura compartido por todas las conexiones
+  static private final int READ_BUFFER_SIZE = 64 * 1024;
+
+  // Puerto de escucha del servicio
+  private final int servicePortNumber;
+  // Parámetros de operación leídos de las propiedades dossierbox.*
+  final ServiceConfig config;
+  // Credencial de aceptación compartida por todas las conexiones
+  final AcceptorCredential credential;
+  // Cierra las conexiones que no cumplen los plazos de su fase
+  final ConnectionReaper reaper;
+  // Límite de sesiones a la vez
+  private final AdmissionControl admission;
+  // Conexión aceptada que espera un permiso (modos delay y wait), y desde
+  // cuándo; mientras la hay no se aceptan más (solo los usa el hilo del
+  // selector)
+  private SocketChannel waiting;
+  private long waitingSince;
+  // Workers para el trabajo GSS, con cola acotada
+  private final ThreadPoolExecutor workers;
+  // Conexiones cuyo conjunto de interés debe recalcular el hilo del selector
+  private final Queue<NioConnection> pendingUpdates = new ConcurrentLinkedQueue<>();
+  private volatile Selector selector;
+  // Se cierra el canal de escucha (stopAccepting) y, tras drenar, se sale
+  // del bucle del selector
+  private volatile boolean accepting = true;
+  private volatile boolean stopped;
+
+  NioDossierBox (final int port, final int numThreads, final ServiceConfig config) {
+    this.servicePortNumber = port;
+    this.config = config;
+    this.credential = new AcceptorCredential(config);
+    this.reaper = new ConnectionReaper(config);
+    this.admission = new AdmissionControl(config, config.maxInFlight);
+    // Cada sesión que termina puede dejar paso a la conexión en espera
+    this.admission.setReleaseListener(this::wakeup);
+    // Los hilos se crean dentro de Subject.doAsPrivileged, por lo que
+    // heredan el contexto de acceso con las credenciales del servicio.
+    this.workers = new ThreadPoolExecutor(numThreads, numThreads,
+            0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(config.workQueueCapacity));
+  }
+
+  @Override
+  public Void run () throws IOException, SecurityException {
+
+    // Antes de abrir el puerto, para que el primer cliente no espere
+    credential.start();
+    reaper.start();
+
+    final ServerSocketChannel serverChannel;
+    final SelectionKey serverKey;
+    try {
+      selector = Selector.open();
+      serverChannel = ServerSocketChannel.open();
+      serverChannel.bind(new InetSocketAddress(servicePortNumber));
+      serverChannel.configureBlocking(false);
+      serverKey = serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    } catch (final IOException ex) {
+      LOGGER.log(Level.SEVERE,"Problem creating server socket:", ex);
+      throw new IOException();
+    } catch (final SecurityException ex) {
+      LOGGER.log(Level.SEVERE, "Permission denied:", ex);
+      throw new SecurityException();
+    }
+
+    final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+    ServiceMetrics.start(config, NioConnection::openConnections,
+            () -> workers.getQueue().size());
+    Metrics.gauge("dossierbox_admission_limit", "Sessions admitted at once",
+            admission::limit);
+    Metrics.gauge("dossierbox_admission_in_flight", "Sessions admitted and not ended",
+            admission::inFlight);
+
+    System.out.println("Waiting for incomings connection...");
+    while (!stopped) {
+
+      selector.select(waitingTimeoutMillis());
+
+      NioConnection updated;
+      while ((updated = pendingUpdates.poll()) != null) {
+        updated.updateInterest();
+      }
+      if (!accepting && serverChannel.isOpen()) {
+        serverChannel.close();
+      }
+      admitWaiting(serverKey);
+
+      final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+      while (keys.hasNext()) {
+        final SelectionKey key = keys.next();
+        keys.remove();
+        try {
+          if (key.isAcceptable()) {
+            accept(serverChannel, serverKey);
+          } else {
+            final NioConnection connection = (NioConnection) key.attachment();
+            try {
+              if (key.isWritable()) {
+                connection.onWritable();
+              }
+              if (key.isValid() && key.isReadable()) {
+                connection.onReadable(readBuffer);
+              }
+              connection.updateInterest();
+            } catch (final FrameTooLargeException ex) {
+              LOGGER.log(Level.WARNING, "Frame refused: {0}", ex.getMessage());
+              connection.close();
+            } catch (final IOException ex) {
+              LOGGER.log(Level.SEVERE, "Problem with socket:", ex);
+              connection.close();
+            }
+          }
+        } catch (final CancelledKeyException ex) {
+          // The connection was closed while its events were pending
+        }
+      }
+
+    }
+
+    serverChannel.close();
+    if (waiting != null) {
+      refuse(waiting);
+      waiting = null;
+    }
+    workers.shutdown();
+    try {
+      workers.awaitTermination(1, TimeUnit.SECONDS);
+    } catch (final InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+    for (final SelectionKey key : selector.keys()) {
+      if (key.attachment() instanceof NioConnection) {
+        ((NioConnection) key.attachment()).close();
+      }
+    }
+    selector.close();
+    return null;
+
+  }
+
+  @Override
+  public void stopAccepting () {
+    accepting = false;
+    wakeup();
+  }
+
+  @Override
+  public boolean drain (final long timeoutMillis) {
+    stopAccepting();
+    final boolean drained = reaper.drain(timeoutMillis, this::inFlight);
+    if (drained) {
+      stop();
+    }
+    return drained;
+  }
+
+  @Override
+  public void forceClose () {
+    stopAccepting();
+    reaper.reapAll();
+    stop();
+  }
+
+  @Override
+  public long inFlight () {
+    return NioConnection.openConnections();
+  }
+
+  @Override
+  public void shutdown () {
+    if (!drain(config.drainTimeoutMillis)) {
+      forceClose();
+    }
+  }
+
+  /**
+   * Has the selector thread leave its loop and close what is left.
+   */
+  private void stop () {
+    stopped = true;
+    wakeup();
+  }
+
+  private void wakeup () {
+    final Selector current = selector;
+    if (current != null) {
+      current.wakeup();
+    }
+  }
+
+  /**
+   * Runs the GSS work of a connection on the worker pool.
+   */
+  void execute (final NioConnection connection) {
+    workers.execute(connection);
+  }
+
+  /**
+   * Asks the selector thread to recompute the interest set of a connection,
+   * after a worker queued replies or consumed frames.
+   */
+  void requestUpdate (final NioConnection connection) {
+    pendingUpdates.add(connection);
+    selector.wakeup();
+  }
+
+  /**
+   * Accepts a connection and registers it if admitted; if not, refuses it
+   * or holds it aside, pausing the accepts, until admitWaiting() decides.
+   */
+  private void accept (final ServerSocketChannel serverChannel, final SelectionKey serverKey)
+          throws IOException {
+    final SocketChannel channel = serverChannel.accept();
+    if (channel == null) {
+      return;
+    }
+    channel.socket().setTcpNoDelay(true);
+    final AdmissionControl.Permit permit = admission.tryAdmit();
+    if (permit != null) {
+      register(channel, permit);
+    } else if (admission.maxWaitNanos() == 0) {
+      admission.refused();
+      refuse(channel);
+    } else {
+      admission.delayed();
+      waiting = channel;
+      waitingSince = System.nanoTime();
+      serverKey.interestOps(0);
+    }
+  }
+
+  /**
+   * Admits the connection held aside if a session ended, or refuses it if
+   * its wait is over, and then resumes accepting.
+   */
+  private void admitWaiting (final SelectionKey serverKey) throws IOException {
+    if (waiting == null) {
+      return;
+    }
+    final AdmissionControl.Permit permit = admission.tryAdmit();
+    if (permit != null) {
+      register(waiting, permit);
+    } else if (!accepting || System.nanoTime() - waitingSince >= admission.maxWaitNanos()) {
+      admission.refused();
+      refuse(waiting);
+    } else {
+      return;
+    }
+    waiting = null;
+    if (serverKey.isValid()) {
+      serverKey.interestOps(SelectionKey.OP_ACCEPT);
+    }
+  }
+
+  /**
+   * @return the milliseconds select() may block before the connection held
+   *         aside must be refused, or 0 (no limit) if there is none
+   */
+  private long waitingTimeoutMillis () {
+    final long maxWait = admission.maxWaitNanos();
+    if (waiting == null || maxWait == Long.MAX_VALUE) {
+      return 0;
+    }
+    final long left = maxWait - (System.nanoTime() - waitingSince);
+    return Math.max(1, TimeUnit.NANOSECONDS.toMillis(left));
+  }
+
+  private void register (final SocketChannel channel, final AdmissionControl.Permit permit)
+          throws IOException {
+    final SelectionKey key;
+    try {
+      channel.configureBlocking(false);
+      key = channel.register(selector, SelectionKey.OP_READ);
+    } catch (final IOException ex) {
+      permit.release();
+      channel.close();
+      throw ex;
+    }
+    try {
+      key.attach(new NioConnection(this, channel, key, permit));
+    } catch (final GSSException ex) {
+      LOGGER.log(Level.SEVERE, "Problem with GSSContext:", ex);
+      permit.release();
+      key.cancel();
+      channel.close();
+    }
+  }
+
+  /**
+   * Sends the busy frame to a connection over the admission limit and
+   * closes it. The channel is still in blocking mode, as accepted, and
+   * the 8 bytes of the frame fit in the empty send buffer of the socket.
+   */
+  private void refuse (final SocketChannel channel) {
+    try {
+      JGSSSecureAssociation.sendBusy(channel.socket().getOutputStream(),
+              config.busyRetryMillis);
+    } catch (final IOException ex) {
+      LOGGER.log(Level.FINE, "Cannot send busy frame:", ex);
+    } finally {
+      try {
+        channel.close();
+      } catch (final IOException ex) {
+        LOGGER.log(Level.SEVERE, "Problema at closing socket:", ex);
+      }
+    }
+  }
+
+}
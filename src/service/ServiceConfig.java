@@ -0,0 +1,124 @@
+package service;
+
+import JGSSSecureAssociation.JGSSSecureAssociation;
+import JGSSSecureAssociation.ReplayCache;
+import JGSSSecureAssociation.SessionResumption;
+import JGSSSecureAssociation.StripedReplayCache;
+
+/**
+ * Operation parameters of the dossierbox service that are not given on the
+ * command line. They are read from "dossierbox.*" system properties (for
+ * example -Ddossierbox.engine=nio in runservice.bsh), so they can change
+ * without recompiling the service.
+ */
+final class ServiceConfig {
+
+  static private final String PREFIX = "dossierbox.";
+
+  // Front end: "blocking" (un hilo por conexión) o "nio" (selector)
+  final String engine;
+  // Capacidad de la cola de trabajo: la GSS del front end nio, o la de
+  // conexiones en espera de hilo del front end blocking
+  final int workQueueCapacity;
+  // Particiones del front end blocking, cada una con sus hilos, su límite
+  // de sesiones y, si el sistema admite SO_REUSEPORT, su socket de escucha
+  final int shards;
+  // Máximo de sesiones en curso cuando se usan hilos virtuales o el front
+  // end nio, que no dedican un hilo de plataforma a cada una
+  final int maxInFlight;
+  // Tamaño máximo de trama aceptado de un cliente autenticado, en bytes
+  final int maxFrameSize;
+  // Tamaño máximo de los tokens de establecimiento de contexto, cuando el
+  // cliente todavía no se ha autenticado
+  final int maxHandshakeFrameSize;
+  // Mensajes que cubre como mucho un acuse por rangos, y milisegundos que
+  // el primero espera como mucho su acuse mientras llegan más
+  final int ackWindow;
+  final int ackDelayMillis;
+  // Si se aceptan mensajes comprimidos (Deflate) de los clientes que lo
+  // pidan
+  final boolean compressionAllowed;
+  // Puerto local (solo loopback) del endpoint de métricas; 0 lo desactiva
+  final int metricsPort;
+  // Caché de repeticiones compartida por todas las conexiones: "striped"
+  // (la del servicio, de tamaño fijo; si se llena rechaza sesiones en vez
+  // de olvidar tokens vigentes) o "jdk" (null, la del mecanismo)
+  final ReplayCache replayCache;
+  // Segundos entre renovaciones de la credencial de aceptación compartida,
+  // si no caduca antes
+  final int credentialRefreshSeconds;
+  // Emisor de tiques de reanudación de sesión; null si está desactivada
+  // (dossierbox.resumeLifetime=0)
+  final SessionResumption resumption;
+  // Qué hacer con una conexión por encima del límite de sesiones:
+  // "reject" (trama busy), "delay" (esperar admissionDelay y después
+  // busy) o "wait" (esperar sin límite en el backlog)
+  final String admission;
+  // Límite de sesiones: "adaptive" (según la latencia del handshake) o
+  // "fixed" (el del ejecutor)
+  final String admissionLimit;
+  // Espera máxima de una conexión en modo "delay", en milisegundos
+  final int admissionDelayMillis;
+  // Tiempo que se pide esperar al cliente rechazado antes de reintentar
+  final int busyRetryMillis;
+  // Plazos de cada fase de una conexión, en milisegundos (0: sin plazo):
+  // establecer el contexto, completar una trama empezada y esperar la
+  // siguiente trama
+  final int handshakeTimeoutMillis;
+  final int readTimeoutMillis;
+  final int idleTimeoutMillis;
+  // Plazo para que terminen las sesiones en curso al parar el servicio,
+  // tras el cual se cierran las que queden
+  final int drainTimeoutMillis;
+
+  private ServiceConfig () {
+    this.engine = string("engine", "blocking");
+    this.workQueueCapacity = integer("queue", 1024);
+    this.shards = integer("shards", 1);
+    this.maxInFlight = integer("maxInFlight", 1000);
+    this.maxFrameSize = integer("maxFrame", JGSSSecureAssociation.DEFAULT_MAX_FRAME_SIZE);
+    this.maxHandshakeFrameSize = integer("maxHandshakeFrame",
+            JGSSSecureAssociation.DEFAULT_MAX_HANDSHAKE_FRAME_SIZE);
+    this.ackWindow = integer("ackWindow", JGSSSecureAssociation.DEFAULT_ACK_WINDOW);
+    this.ackDelayMillis = integer("ackDelay", JGSSSecureAssociation.DEFAULT_ACK_DELAY_MILLIS);
+    this.compressionAllowed = Boolean.parseBoolean(string("compression", "true"));
+    this.metricsPort = integer("metricsPort", 0);
+    this.credentialRefreshSeconds = integer("credentialRefresh", 3600);
+    this.admission = string("admission", "delay");
+    this.admissionLimit = string("limit", "adaptive");
+    this.admissionDelayMillis = integer("admissionDelay", 1000);
+    this.busyRetryMillis = integer("busyRetry", 1000);
+    this.handshakeTimeoutMillis = integer("handshakeTimeout", 10000);
+    this.readTimeoutMillis = integer("readTimeout", 5000);
+    this.idleTimeoutMillis = integer("idleTimeout", 300000);
+    this.drainTimeoutMillis = integer("drainTimeout", 30000);
+    final int resumeLifetime = integer("resumeLifetime", 600);
+    this.resumption = resumeLifetime > 0
+            ? new SessionResumption(resumeLifetime * 1000L) : null;
+    if ("jdk".equalsIgnoreCase(string("replayCache", "striped"))) {
+      this.replayCache = null;
+    } else {
+      // Las entradas se guardan lo que dura la tolerancia de reloj de
+      // Kerberos (clockskew, 300 segundos por defecto)
+      this.replayCache = new StripedReplayCache(integer("replayCacheEntries", 65536),
+              integer("replayWindow", 300) * 1000L);
+    }
+  }
+
+  static ServiceConfig fromSystemProperties () {
+    return new ServiceConfig();
+  }
+
+  boolean isNio () {
+    return "nio".equalsIgnoreCase(engine);
+  }
+
+  static private String string (final String name, final String defaultValue) {
+    return System.getProperty(PREFIX + name, defaultValue);
+  }
+
+  static private int integer (final String name, final int defaultValue) {
+    return Integer.getInteger(PREFIX + name, defaultValue);
+  }
+
+}
@@ -0,0 +1,51 @@
+package service;
+
+import java.security.PrivilegedExceptionAction;
+
+/**
+ * Lifecycle of a front end of the dossierbox service, for rolling
+ * deploys: run() starts the service and returns once it has been stopped
+ * and its sessions have ended; stopping takes three steps:
+ *
+ *   stopAccepting  closes the listening sockets, so new connections go to
+ *                  the other instances;
+ *   drain          lets the sessions in flight end, closing (with the close
+ *                  frame) each established one as soon as it is between
+ *                  messages, so no message is cut in the middle and its
+ *                  client reconnects elsewhere;
+ *   forceClose     closes the sessions that did not end within the drain.
+ *
+ * shutdown() runs all three with dossierbox.drainTimeout as the deadline,
+ * and is what ServiceLogin runs on SIGTERM.
+ */
+public interface ServiceLifecycle extends PrivilegedExceptionAction<Void> {
+
+  /**
+   * Closes the listening sockets; the sessions in flight go on.
+   */
+  void stopAccepting ();
+
+  /**
+   * Stops accepting and waits for the sessions in flight to end, closing
+   * the idle ones.
+   *
+   * @return true if every session ended within the timeout
+   */
+  boolean drain (long timeoutMillis);
+
+  /**
+   * Closes every connection still open and lets run() return.
+   */
+  void forceClose ();
+
+  /**
+   * @return the sessions accepted and not ended yet
+   */
+  long inFlight ();
+
+  /**
+   * Stops accepting, drains for dossierbox.drainTimeout milliseconds and
+   * closes whatever is left.
+   */
+  void shutdown ();
+}
@@ -0,0 +1,87 @@
+package service;
+
+import JGSSSecureAssociation.Metrics;
+import JGSSSecureAssociation.MetricsDynamicMBean;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+
+/**
+ * Publishes the metrics of the service: the gauges of the front end in
+ * use (active connections and work queue depth) are added to the
+ * JGSSSecureAssociation Metrics, which are then exposed as the MBean
+ * "dossierbox:type=Metrics" and, if dossierbox.metricsPort is set, as
+ * plain text on http://localhost:<port>/metrics.
+ *
+ * The endpoint only listens on the loopback interface; it is meant for
+ * a local scraper or an SSH tunnel, not for the clients of the service.
+ */
+final class ServiceMetrics {
+
+  static private final String CLASS_NAME = ServiceMetrics.class.getName();
+  static private final Logger LOGGER = Logger.getLogger(CLASS_NAME);
+
+  static private final String OBJECT_NAME = "dossierbox:type=Metrics";
+
+  static private HttpServer endpoint;
+
+  private ServiceMetrics () {
+  }
+
+  /**
+   * Registers the gauges of a front end and publishes the metrics. A
+   * failure to publish them is logged and does not stop the service.
+   */
+  static synchronized void start (final ServiceConfig config,
+          final LongSupplier activeConnections, final LongSupplier queueDepth) {
+    Metrics.gauge("dossierbox_active_connections",
+            "Connections accepted and not closed yet", activeConnections);
+    Metrics.gauge("dossierbox_work_queue_depth",
+            "Tasks waiting for a worker thread", queueDepth);
+
+    try {
+      MetricsDynamicMBean.register(OBJECT_NAME);
+    } catch (final JMException | SecurityException ex) {
+      LOGGER.log(Level.WARNING, "Could not register the metrics MBean:", ex);
+    }
+
+    if (config.metricsPort > 0 && endpoint == null) {
+      try {
+        endpoint = HttpServer.create(new InetSocketAddress(
+                InetAddress.getLoopbackAddress(), config.metricsPort), 0);
+        endpoint.createContext("/metrics", new TextHandler());
+        endpoint.start();
+      } catch (final IOException | SecurityException ex) {
+        LOGGER.log(Level.WARNING, "Could not start the metrics endpoint:", ex);
+      }
+    }
+  }
+
+  /**
+   * Answers every request with the metrics in the Prometheus text format.
+   */
+  static private final class TextHandler implements HttpHandler {
+
+    @Override
+    public void handle (final HttpExchange exchange) throws IOException {
+      final StringBuilder text = new StringBuilder(8192);
+      Metrics.writeText(text);
+      final byte[] body = text.toString().getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+      exchange.sendResponseHeaders(200, body.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(body);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,209 @@
+package JGSSSecureAssociation;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import org.ietf.jgss.GSSException;
+import org.junit.Test;
+
+/**
+ * ApRequest against initial context tokens built here, well formed and
+ * not: whatever the bytes, it must find the authenticator, answer null or
+ * throw DEFECTIVE_TOKEN, and never read outside the token it is given.
+ */
+public class ApRequestTest {
+
+    private static final byte[] KRB5_OID = {
+        0x2A, (byte) 0x86, 0x48, (byte) 0x86, (byte) 0xF7, 0x12, 0x01, 0x02, 0x02};
+    // 1.3.6.1.5.5.2, SPNEGO
+    private static final byte[] SPNEGO_OID = {0x2B, 0x06, 0x01, 0x05, 0x05, 0x02};
+    private static final byte[] TOK_ID_AP_REQ = {0x01, 0x00};
+    private static final byte[] TOK_ID_AP_REP = {0x02, 0x00};
+
+    @Test
+    public void findsTheCipherOfTheAuthenticator() throws GSSException {
+        final byte[] cipher = bytes(48, 1);
+        final byte[] token = initialToken(KRB5_OID, TOK_ID_AP_REQ, apReq(cipher, false));
+        assertArrayEquals(cipher, authenticator(token, 0, token.length));
+    }
+
+    @Test
+    public void skipsTheOptionalKvno() throws GSSException {
+        final byte[] cipher = bytes(48, 2);
+        final byte[] token = initialToken(KRB5_OID, TOK_ID_AP_REQ, apReq(cipher, true));
+        assertArrayEquals(cipher, authenticator(token, 0, token.length));
+    }
+
+    @Test
+    public void readsLongFormLengths() throws GSSException {
+        // Lengths of one and two bytes in the long form
+        for (final int size : new int[] {200, 1500, 70000}) {
+            final byte[] cipher = bytes(size, size);
+            final byte[] token = initialToken(KRB5_OID, TOK_ID_AP_REQ, apReq(cipher, true));
+            assertArrayEquals(cipher, authenticator(token, 0, token.length));
+        }
+    }
+
+    @Test
+    public void staysWithinTheGivenRange() throws GSSException {
+        final byte[] cipher = bytes(48, 3);
+        final byte[] token = initialToken(KRB5_OID, TOK_ID_AP_REQ, apReq(cipher, false));
+        final byte[] framed = new byte[token.length + 10];
+        Arrays.fill(framed, (byte) 0xFF);
+        System.arraycopy(token, 0, framed, 7, token.length);
+        assertArrayEquals(cipher, authenticator(framed, 7, token.length));
+    }
+
+    @Test
+    public void ignoresOtherMechanisms() throws GSSException {
+        final byte[] token = initialToken(SPNEGO_OID, TOK_ID_AP_REQ, apReq(bytes(48, 4), false));
+        assertNull(ApRequest.authenticator(token, 0, token.length));
+    }
+
+    @Test
+    public void refusesKerberosTokensOtherThanApReq() {
+        final byte[] token = initialToken(KRB5_OID, TOK_ID_AP_REP, apReq(bytes(48, 5), false));
+        assertDefective(token, 0, token.length);
+    }
+
+    @Test
+    public void refusesTokensWithoutGssFraming() {
+        final byte[] token = apReq(bytes(48, 6), false);
+        assertDefective(token, 0, token.length);
+        assertDefective(new byte[0], 0, 0);
+    }
+
+    @Test
+    public void refusesEveryTruncation() {
+        final byte[] apReq = apReq(bytes(300, 7), true);
+        final byte[] token = initialToken(KRB5_OID, TOK_ID_AP_REQ, apReq);
+        for (int length = 0; length < token.length; length++) {
+            assertDefective(token, 0, length);
+        }
+        // Framing that is consistent, around an AP-REQ cut short
+        for (int length = 0; length < apReq.length; length++) {
+            final byte[] truncated = initialToken(KRB5_OID, TOK_ID_AP_REQ,
+                    Arrays.copyOf(apReq, length));
+            assertDefective(truncated, 0, truncated.length);
+        }
+    }
+
+    @Test
+    public void refusesLengthsPastTheToken() {
+        final byte[] cipher = bytes(48, 8);
+        final byte[] token = initialToken(KRB5_OID, TOK_ID_AP_REQ, apReq(cipher, false));
+        // The OCTET STRING of the cipher claims one byte more than it has
+        final int lengthAt = indexOf(token, cipher) - 1;
+        token[lengthAt]++;
+        assertDefective(token, 0, token.length);
+    }
+
+    @Test
+    public void refusesLengthsOfMoreThanThreeBytes() {
+        final byte[] token = {0x60, (byte) 0x84, 0x00, 0x00, 0x00, 0x10};
+        assertDefective(token, 0, token.length);
+    }
+
+    @Test
+    public void survivesCorruptedTokens() {
+        final byte[] token = initialToken(KRB5_OID, TOK_ID_AP_REQ, apReq(bytes(200, 9), true));
+        final Random random = new Random(42);
+        for (int i = 0; i < token.length; i++) {
+            for (int n = 0; n < 8; n++) {
+                final byte[] corrupted = token.clone();
+                corrupted[i] = (byte) random.nextInt(256);
+                try {
+                    final int[] found = ApRequest.authenticator(corrupted, 0, corrupted.length);
+                    if (found != null) {
+                        assertTrue(found[0] >= 0 && found[1] >= 0
+                                && found[0] + found[1] <= corrupted.length);
+                    }
+                } catch (final GSSException ex) {
+                    assertEquals(GSSException.DEFECTIVE_TOKEN, ex.getMajor());
+                }
+            }
+        }
+    }
+
+    private static byte[] authenticator(final byte[] token, final int offset, final int length)
+            throws GSSException {
+        final int[] found = ApRequest.authenticator(token, offset, length);
+        return Arrays.copyOfRange(token, found[0], found[0] + found[1]);
+    }
+
+    private static void assertDefective(final byte[] token, final int offset, final int length) {
+        try {
+            ApRequest.authenticator(token, offset, length);
+            fail("Token of " + length + " bytes accepted");
+        } catch (final GSSException ex) {
+            assertEquals(GSSException.DEFECTIVE_TOKEN, ex.getMajor());
+        }
+    }
+
+    private static byte[] initialToken(final byte[] oid, final byte[] tokId, final byte[] apReq) {
+        return der(0x60, der(0x06, oid), tokId, apReq);
+    }
+
+    /**
+     * AP-REQ with dummy fields before the authenticator, as a real one has.
+     */
+    private static byte[] apReq(final byte[] cipher, final boolean withKvno) {
+        final byte[] encryptedData = withKvno
+                ? der(0x30, der(0xA0, integer(18)), der(0xA1, integer(2)),
+                        der(0xA2, der(0x04, cipher)))
+                : der(0x30, der(0xA0, integer(18)), der(0xA2, der(0x04, cipher)));
+        return der(0x6E, der(0x30,
+                der(0xA0, integer(5)),
+                der(0xA1, integer(14)),
+                der(0xA2, der(0x03, new byte[] {0, 0, 0, 0, 0})),
+                der(0xA3, der(0x61, bytes(120, 0))),
+                der(0xA4, encryptedData)));
+    }
+
+    private static byte[] integer(final int value) {
+        return der(0x02, new byte[] {(byte) value});
+    }
+
+    private static byte[] der(final int tag, final byte[]... contents) {
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        for (final byte[] content : contents) {
+            body.write(content, 0, content.length);
+        }
+        final int length = body.size();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(tag);
+        if (length < 0x80) {
+            out.write(length);
+        } else {
+            final int bytes = length < 0x100 ? 1 : length < 0x10000 ? 2 : 3;
+            out.write(0x80 | bytes);
+            for (int i = bytes - 1; i >= 0; i--) {
+                out.write(length >>> (8 * i));
+            }
+        }
+        final byte[] encoded = body.toByteArray();
+        out.write(encoded, 0, encoded.length);
+        return out.toByteArray();
+    }
+
+    private static byte[] bytes(final int size, final long seed) {
+        final byte[] bytes = new byte[size];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static int indexOf(final byte[] array, final byte[] part) {
+        for (int i = 0; i + part.length <= array.length; i++) {
+            if (Arrays.equals(Arrays.copyOfRange(array, i, i + part.length), part)) {
+                return i;
+            }
+        }
+        throw new AssertionError("Not found");
+    }
+}
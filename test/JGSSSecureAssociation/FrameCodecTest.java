@@ -0,0 +1,154 @@
+package JGSSSecureAssociation;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * FrameCodec over streams and over a channel: frames of every size around
+ * the pooled buffers come back whole, and headers that announce too much,
+ * or more than arrives, are refused.
+ */
+public class FrameCodecTest {
+
+    private static final int MAX = 4 * BufferPool.BUFFER_SIZE;
+    private static final int[] SIZES = {
+        1, 100, BufferPool.BUFFER_SIZE - 4, BufferPool.BUFFER_SIZE - 1,
+        BufferPool.BUFFER_SIZE, BufferPool.BUFFER_SIZE + 1, 3 * BufferPool.BUFFER_SIZE + 17,
+        // Back to small frames after a large one
+        10, BufferPool.BUFFER_SIZE / 2};
+
+    @Test
+    public void streamsCarryFramesOfEverySize() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final FrameCodec writer = FrameCodec.forStreams(new ByteArrayInputStream(new byte[0]), out);
+        for (final int size : SIZES) {
+            writer.writeFrame(token(size));
+        }
+        writer.writeClose();
+        final FrameCodec reader = FrameCodec.forStreams(
+                new ByteArrayInputStream(out.toByteArray()), new ByteArrayOutputStream());
+        for (final int size : SIZES) {
+            assertFrame(reader, token(size));
+        }
+        assertEquals(-1, reader.readFrame(MAX));
+    }
+
+    @Test
+    public void channelsCarryFramesOfEverySize() throws IOException {
+        final Path file = Files.createTempFile("frames", ".bin");
+        try {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                final FrameCodec writer = FrameCodec.forChannel(channel);
+                for (final int size : SIZES) {
+                    writer.writeFrame(token(size));
+                }
+                writer.writeClose();
+            }
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                final FrameCodec reader = FrameCodec.forChannel(channel);
+                for (final int size : SIZES) {
+                    assertFrame(reader, token(size));
+                }
+                assertEquals(-1, reader.readFrame(MAX));
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void prefixAndTokenMakeOneFrame() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final FrameCodec writer = FrameCodec.forStreams(new ByteArrayInputStream(new byte[0]), out);
+        final byte[] prefix = {1, 2, 3, 4};
+        final byte[] token = token(2 * BufferPool.BUFFER_SIZE);
+        writer.writeFrame(prefix, prefix.length, token, 5, token.length - 5);
+        final byte[] expected = new byte[token.length - 1];
+        System.arraycopy(prefix, 0, expected, 0, prefix.length);
+        System.arraycopy(token, 5, expected, prefix.length, token.length - 5);
+        assertFrame(reader(out.toByteArray()), expected);
+    }
+
+    @Test
+    public void refusesFramesOverTheLimitBeforeReadingThem() throws IOException {
+        final int length = BufferPool.BUFFER_SIZE + 1;
+        // Only the header: the token must not be waited for
+        final FrameCodec reader = reader(ByteBuffer.allocate(4).putInt(length).array());
+        try {
+            reader.readFrame(BufferPool.BUFFER_SIZE);
+            fail("Frame over the limit read");
+        } catch (final FrameTooLargeException ex) {
+            assertEquals(length, ex.getLength());
+            assertEquals(BufferPool.BUFFER_SIZE, ex.getLimit());
+        }
+    }
+
+    @Test
+    public void refusesNegativeLengths() {
+        try {
+            reader(ByteBuffer.allocate(4).putInt(-2).array()).readFrame(MAX);
+            fail("Negative length read");
+        } catch (final IOException ex) {
+            assertEquals("Invalid frame size -2", ex.getMessage());
+        }
+    }
+
+    @Test
+    public void reportsTheBusyFrame() throws IOException {
+        final FrameCodec reader = reader(ByteBuffer.allocate(8)
+                .putInt(JGSSSecureAssociation.BUSY_FRAME).putInt(1500).array());
+        try {
+            reader.readFrame(MAX);
+            fail("Busy frame read");
+        } catch (final ServiceBusyException ex) {
+            assertEquals(1500, ex.getRetryAfterMillis());
+        }
+    }
+
+    @Test
+    public void failsOnTruncatedFrames() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FrameCodec.forStreams(new ByteArrayInputStream(new byte[0]), out)
+                .writeFrame(token(BufferPool.BUFFER_SIZE + 100));
+        final byte[] frame = out.toByteArray();
+        for (final int cut : new int[] {2, 4, 5, BufferPool.BUFFER_SIZE, frame.length - 1}) {
+            try {
+                reader(Arrays.copyOf(frame, cut)).readFrame(MAX);
+                fail("Frame cut at " + cut + " read");
+            } catch (final EOFException ex) {
+                // Expected
+            }
+        }
+    }
+
+    private static FrameCodec reader(final byte[] input) {
+        return FrameCodec.forStreams(new ByteArrayInputStream(input), new ByteArrayOutputStream());
+    }
+
+    private static void assertFrame(final FrameCodec reader, final byte[] expected)
+            throws IOException {
+        final int length = reader.readFrame(MAX);
+        assertEquals(expected.length, length);
+        assertArrayEquals(expected, Arrays.copyOf(reader.frame(), length));
+    }
+
+    private static byte[] token(final int size) {
+        final byte[] token = new byte[size];
+        new Random(size).nextBytes(token);
+        return token;
+    }
+}
@@ -0,0 +1,118 @@
+package JGSSSecureAssociation;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * MessageCompression: bodies round trip, and deflated data from the peer
+ * that is invalid, truncated or inflates past maxMessageSize is refused
+ * without inflating more than maxMessageSize bytes.
+ */
+public class MessageCompressionTest {
+
+    private static final int HEADER = MessageCompression.HEADER_SIZE;
+
+    @Test
+    public void roundTripsCompressibleBodies() throws IOException {
+        final MessageCompression compression = new MessageCompression(16, 1 << 20);
+        for (final int size : new int[] {100, 1000, 100000}) {
+            final byte[] body = text(size);
+            final byte[] deflated = deflate(compression, body);
+            assertTrue(MessageCompression.isDeflated(deflated));
+            assertEquals(body.length, compression.inflate(deflated));
+            assertArrayEquals(body, Arrays.copyOf(compression.inflated(), body.length));
+        }
+    }
+
+    @Test
+    public void leavesSmallOrIncompressibleBodiesAlone() {
+        final MessageCompression compression = new MessageCompression(64, 1 << 20);
+        final byte[] small = plaintext(text(63));
+        assertEquals(-1, compression.deflate(small, small.length, new byte[small.length]));
+        final byte[] random = new byte[4096];
+        new Random(1).nextBytes(random);
+        final byte[] noise = plaintext(random);
+        assertEquals(-1, compression.deflate(noise, noise.length, new byte[noise.length]));
+    }
+
+    @Test
+    public void inflatesUpToMaxMessageSize() throws IOException {
+        final int max = 4096;
+        final byte[] body = text(max);
+        final MessageCompression compression = new MessageCompression(16, max);
+        assertEquals(max, compression.inflate(deflate(new MessageCompression(16, 1 << 20), body)));
+        assertArrayEquals(body, Arrays.copyOf(compression.inflated(), max));
+    }
+
+    @Test
+    public void refusesBodiesThatInflatePastMaxMessageSize() {
+        final int max = 4096;
+        final MessageCompression compression = new MessageCompression(16, max);
+        // One byte over, and a few kilobytes that inflate to megabytes
+        for (final byte[] body : new byte[][] {text(max + 1), new byte[8 << 20]}) {
+            final byte[] deflated = deflate(new MessageCompression(16, 1 << 30), body);
+            try {
+                compression.inflate(deflated);
+                fail("Body of " + body.length + " bytes inflated");
+            } catch (final IOException ex) {
+                assertTrue(compression.inflated().length <= max);
+            }
+        }
+    }
+
+    @Test
+    public void refusesInvalidDeflateData() throws IOException {
+        final MessageCompression compression = new MessageCompression(16, 1 << 20);
+        final byte[] garbage = new byte[200];
+        new Random(2).nextBytes(garbage);
+        final byte[] deflated = deflate(compression, text(10000));
+        final byte[][] invalid = {
+            plaintext(garbage),
+            // Cut before the end of the stream
+            Arrays.copyOf(deflated, deflated.length / 2),
+            Arrays.copyOf(deflated, HEADER),
+        };
+        for (final byte[] plaintext : invalid) {
+            try {
+                compression.inflate(plaintext);
+                fail("Invalid data of " + plaintext.length + " bytes inflated");
+            } catch (final IOException ex) {
+                // Expected
+            }
+        }
+        // and the Inflater is still usable afterwards
+        assertEquals(10000, compression.inflate(deflated));
+    }
+
+    private static byte[] deflate(final MessageCompression compression, final byte[] body) {
+        final byte[] plaintext = plaintext(body);
+        final byte[] out = new byte[plaintext.length];
+        final int length = compression.deflate(plaintext, plaintext.length, out);
+        assertTrue("Body of " + body.length + " bytes not deflated", length > 0);
+        return Arrays.copyOf(out, length);
+    }
+
+    private static byte[] plaintext(final byte[] body) {
+        final byte[] plaintext = new byte[HEADER + body.length];
+        plaintext[0] = 7;
+        plaintext[JGSSSecureAssociation.REQUEST_ID_SIZE] = MessageCompression.STORED;
+        System.arraycopy(body, 0, plaintext, HEADER, body.length);
+        return plaintext;
+    }
+
+    private static byte[] text(final int size) {
+        final byte[] text = new byte[size];
+        final byte[] line = "the same line again and again\n".getBytes();
+        for (int i = 0; i < size; i++) {
+            text[i] = line[i % line.length];
+        }
+        return text;
+    }
+}
@@ -0,0 +1,131 @@
+package JGSSSecureAssociation;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import org.junit.Test;
+
+/**
+ * PayloadCodec encodes and decodes text exactly as String.getBytes() and
+ * new String() do with UTF-8, malformed text included.
+ */
+public class PayloadCodecTest {
+
+    private static final String[] TEXTS = {
+        "",
+        "hola",
+        "año, acción, pingüino",
+        "日本語のテキスト",
+        "emoji 😀 in the middle",
+        // Unpaired surrogates: high, low, and high at the end
+        "a\uD800b",
+        "a\uDC00b",
+        "abc\uD83D",
+        "\uDE00\uD83D",
+    };
+
+    @Test
+    public void encodesAsStringGetBytes() {
+        final PayloadCodec codec = new PayloadCodec();
+        for (final String text : TEXTS) {
+            codec.start(7, false).append(text).finish();
+            assertArrayEquals(text, text.getBytes(StandardCharsets.UTF_8), body(codec));
+        }
+    }
+
+    @Test
+    public void decodesAsNewString() {
+        final PayloadCodec codec = new PayloadCodec();
+        for (final String text : TEXTS) {
+            final byte[] utf8 = text.getBytes(StandardCharsets.UTF_8);
+            assertEquals(new String(utf8, StandardCharsets.UTF_8), decode(codec, utf8));
+        }
+    }
+
+    @Test
+    public void roundTripsValidText() {
+        final PayloadCodec codec = new PayloadCodec();
+        for (final String text : new String[] {TEXTS[1], TEXTS[2], TEXTS[3], TEXTS[4]}) {
+            codec.start(7, false).append(text).finish();
+            assertEquals(text, decode(codec, body(codec)));
+        }
+    }
+
+    @Test
+    public void handlesTextLongerThanItsBuffers() {
+        // Longer than the initial buffer and than a decoded chunk, ASCII
+        // first so the encoder starts in the middle
+        final StringBuilder text = new StringBuilder("ascii first ");
+        for (int i = 0; i < 3000; i++) {
+            text.append("ñ€😀x");
+        }
+        final PayloadCodec codec = new PayloadCodec();
+        codec.start(7, false).append(text).finish();
+        final byte[] expected = text.toString().getBytes(StandardCharsets.UTF_8);
+        assertArrayEquals(expected, body(codec));
+        assertEquals(text.toString(), decode(codec, expected));
+    }
+
+    @Test
+    public void replacesMalformedUtf8() {
+        final byte[][] malformed = {
+            {'a', (byte) 0xFF, 'b'},
+            // Truncated sequence, overlong encoding, encoded surrogate
+            {'a', (byte) 0xE2, (byte) 0x82},
+            {(byte) 0xC0, (byte) 0xAF},
+            {(byte) 0xED, (byte) 0xA0, (byte) 0x80},
+        };
+        final PayloadCodec codec = new PayloadCodec();
+        for (final byte[] bytes : malformed) {
+            assertEquals(new String(bytes, StandardCharsets.UTF_8), decode(codec, bytes));
+        }
+    }
+
+    @Test
+    public void startsWithTheRequestId() {
+        final PayloadCodec codec = new PayloadCodec();
+        codec.start(0x01020304, false).append("x");
+        assertArrayEquals(new byte[] {1, 2, 3, 4, 'x'}, codec.copy());
+    }
+
+    @Test
+    public void deflatesOnlyWrappedMessagesOverTheThreshold() throws IOException {
+        final MessageCompression compression = new MessageCompression(64, 1 << 20);
+        final PayloadCodec codec = new PayloadCodec();
+        codec.setCompression(compression);
+        final StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            text.append("línea ").append(i).append('\n');
+        }
+        final byte[] utf8 = text.toString().getBytes(StandardCharsets.UTF_8);
+
+        final byte[] deflated = codec.start(9, true).append(text).finish().copy();
+        assertTrue(MessageCompression.isDeflated(deflated));
+        assertTrue(deflated.length < utf8.length);
+        final int length = compression.inflate(deflated);
+        assertArrayEquals(utf8, Arrays.copyOf(compression.inflated(), length));
+
+        final byte[] small = codec.start(9, true).append("corto").finish().copy();
+        assertEquals(MessageCompression.STORED, small[JGSSSecureAssociation.REQUEST_ID_SIZE]);
+        // Not wrapped: no flag at all
+        final byte[] clear = codec.start(9, false).append(text).finish().copy();
+        assertEquals(JGSSSecureAssociation.REQUEST_ID_SIZE + utf8.length, clear.length);
+    }
+
+    private static byte[] body(final PayloadCodec codec) {
+        return Arrays.copyOfRange(codec.array(), JGSSSecureAssociation.REQUEST_ID_SIZE,
+                codec.length());
+    }
+
+    private static String decode(final PayloadCodec codec, final byte[] bytes) {
+        final StringBuilder into = new StringBuilder("prefix:");
+        final byte[] framed = new byte[bytes.length + 4];
+        System.arraycopy(bytes, 0, framed, 2, bytes.length);
+        codec.decode(framed, 2, bytes.length, into);
+        return into.substring("prefix:".length());
+    }
+}
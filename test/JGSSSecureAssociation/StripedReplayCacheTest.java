@@ -0,0 +1,85 @@
+package JGSSSecureAssociation;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+/**
+ * StripedReplayCache: a token is seen once per window, and a full cache
+ * refuses new tokens rather than forget one still in the window.
+ */
+public class StripedReplayCacheTest {
+
+    private static final long WINDOW_MILLIS = 60000;
+
+    @Test
+    public void detectsDuplicates() {
+        final StripedReplayCache cache = new StripedReplayCache(1024, WINDOW_MILLIS);
+        final byte[] token = token(1);
+        assertTrue(cache.firstSeen(token, 0, token.length));
+        assertFalse(cache.firstSeen(token, 0, token.length));
+        assertFalse(cache.firstSeen(token.clone(), 0, token.length));
+        final byte[] other = token(2);
+        assertTrue(cache.firstSeen(other, 0, other.length));
+    }
+
+    @Test
+    public void keysOnTheGivenRangeOnly() {
+        final StripedReplayCache cache = new StripedReplayCache(1024, WINDOW_MILLIS);
+        final byte[] token = token(3);
+        final byte[] framed = new byte[token.length + 6];
+        System.arraycopy(token, 0, framed, 2, token.length);
+        assertTrue(cache.firstSeen(framed, 2, token.length));
+        assertFalse(cache.firstSeen(token, 0, token.length));
+        // A different range of the same array is a different token
+        assertTrue(cache.firstSeen(framed, 0, token.length));
+    }
+
+    @Test
+    public void refusesNewTokensInsteadOfEvictingLiveOnes() {
+        // Rounded up to the smallest table, of a few hundred entries
+        final StripedReplayCache cache = new StripedReplayCache(1, WINDOW_MILLIS);
+        final List<byte[]> accepted = new ArrayList<>();
+        byte[] refused = null;
+        for (int i = 0; i < 100000 && refused == null; i++) {
+            final byte[] token = token(i);
+            if (cache.firstSeen(token, 0, token.length)) {
+                accepted.add(token);
+            } else {
+                refused = token;
+            }
+        }
+        assertTrue("The cache never filled up", refused != null);
+        // Still refused while the set it maps to is full
+        assertFalse(cache.firstSeen(refused, 0, refused.length));
+        // and every token recorded is still there, so still a replay
+        for (final byte[] token : accepted) {
+            assertFalse(cache.firstSeen(token, 0, token.length));
+        }
+    }
+
+    @Test
+    public void reusesEntriesOutOfTheWindow() throws InterruptedException {
+        final long window = 200;
+        final StripedReplayCache cache = new StripedReplayCache(1, window);
+        byte[] refused = null;
+        for (int i = 0; i < 100000 && refused == null; i++) {
+            final byte[] token = token(i);
+            if (!cache.firstSeen(token, 0, token.length)) {
+                refused = token;
+            }
+        }
+        assertTrue("The cache never filled up", refused != null);
+        Thread.sleep(window * 3);
+        assertTrue(cache.firstSeen(refused, 0, refused.length));
+        assertFalse(cache.firstSeen(refused, 0, refused.length));
+    }
+
+    private static byte[] token(final int id) {
+        return ByteBuffer.allocate(32).putInt(0, id).putInt(28, ~id).array();
+    }
+}